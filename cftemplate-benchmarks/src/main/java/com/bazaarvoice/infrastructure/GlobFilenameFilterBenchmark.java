@@ -0,0 +1,175 @@
+package com.bazaarvoice.infrastructure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Match file names against include and exclude globs, as source discovery does for every file it finds.
+ * <p/>
+ * {@link GlobFilenameFilter} matches all globs with one automaton. It is compared to matching with one regex per
+ * glob, which is how the filter used to work, and with all globs combined into one regex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GlobFilenameFilterBenchmark {
+    private static final int NAMES = 1000;
+    private static final String[] EXTENSIONS = {"rb", "json", "txt", "yml", "sh"};
+
+    /**
+     * Number of include globs, and of exclude globs.
+     */
+    @Param({"2", "10", "50"})
+    public int globs;
+
+    private final File _directory = new File("templates");
+    private List<String> _names;
+    private GlobFilenameFilter _filter;
+    private Pattern[] _includePatterns;
+    private Pattern[] _excludePatterns;
+    private Pattern _includePattern;
+    private Pattern _excludePattern;
+
+    @Setup
+    public void setUp() {
+        List<String> includes = newArrayList();
+        List<String> excludes = newArrayList();
+
+        for (int i = 0; i < globs; ++i) {
+            includes.add(i % 2 == 0 ? "*app" + i + "-stack.rb" : "[a-m]*service" + i + "-stack.json");
+            excludes.add(i % 2 == 0 ? "*test" + i + "*" : "*.bak" + i);
+        }
+
+        Random random = new Random(0);
+        _names = newArrayList();
+
+        for (int i = 0; i < NAMES; ++i) {
+            String prefix = random.nextBoolean() ? "Web" : "api";
+            String kind = random.nextInt(4) == 0 ? "test" : random.nextBoolean() ? "app" : "service";
+            String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            _names.add(String.format("%s-%s%d-stack.%s", prefix, kind, random.nextInt(globs * 2), extension));
+        }
+
+        _filter = new GlobFilenameFilter(includes, excludes);
+        _includePatterns = new Pattern[includes.size()];
+        _excludePatterns = new Pattern[excludes.size()];
+
+        for (int i = 0; i < globs; ++i) {
+            _includePatterns[i] = Pattern.compile("^" + createRegexFromGlob(includes.get(i)) + "$", Pattern.CASE_INSENSITIVE);
+            _excludePatterns[i] = Pattern.compile("^" + createRegexFromGlob(excludes.get(i)) + "$", Pattern.CASE_INSENSITIVE);
+        }
+
+        _includePattern = combine(includes);
+        _excludePattern = combine(excludes);
+    }
+
+    @Benchmark
+    public int automaton() {
+        int accepted = 0;
+
+        for (String name : _names) {
+            if (_filter.accept(_directory, name)) {
+                accepted += 1;
+            }
+        }
+
+        return accepted;
+    }
+
+    @Benchmark
+    public int regexPerGlob() {
+        int accepted = 0;
+
+        for (String name : _names) {
+            if (matchesAny(_includePatterns, name) && !matchesAny(_excludePatterns, name)) {
+                accepted += 1;
+            }
+        }
+
+        return accepted;
+    }
+
+    @Benchmark
+    public int combinedRegex() {
+        int accepted = 0;
+
+        for (String name : _names) {
+            if (_includePattern.matcher(name).matches() && !_excludePattern.matcher(name).matches()) {
+                accepted += 1;
+            }
+        }
+
+        return accepted;
+    }
+
+    private static boolean matchesAny(Pattern[] patterns, String value) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Pattern combine(List<String> globs) {
+        StringBuilder buffer = new StringBuilder();
+
+        for (String glob : globs) {
+            buffer.append(buffer.length() == 0 ? "^(?:" : "|").append(createRegexFromGlob(glob));
+        }
+
+        return Pattern.compile(buffer.append(")$").toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Translate a name glob the way GlobFilenameFilter used to.
+     */
+    private static String createRegexFromGlob(String glob) {
+        StringBuilder buffer = new StringBuilder(glob.length() + 10);
+
+        for (int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+
+            switch (c) {
+                case '*':
+                    buffer.append(".*");
+                    break;
+                case '?':
+                    buffer.append('.');
+                    break;
+                case '.':
+                    buffer.append("\\.");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                default:
+                    buffer.append(c);
+                    break;
+            }
+        }
+
+        return buffer.toString();
+    }
+}
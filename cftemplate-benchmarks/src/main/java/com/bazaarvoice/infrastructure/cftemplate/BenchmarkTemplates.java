@@ -0,0 +1,251 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Templates used by the benchmarks.
+ * <p/>
+ * Templates named <code>syntheticN</code> are generated with N resources. Any other name refers to a template
+ * from the compiler unit tests (RubyTemplateCompilerTest resources), which are copied to a temporary directory
+ * so the DSL <code>file</code> helper can find the files they include.
+ */
+public class BenchmarkTemplates {
+    private static final String SYNTHETIC_PREFIX = "synthetic";
+    private static final String RESOURCES_PATH = "/com/bazaarvoice/infrastructure/cftemplate/RubyTemplateCompilerTest/";
+    private static final String[] SUPPORT_FILES = {"fileUtility_empty.txt", "fileUtility_novars.txt", "fileUtility_withvars.txt"};
+    private static final int SYNTHETIC_PARAMETERS = 10;
+    private static final int SYNTHETIC_OUTPUTS = 10;
+    private static final int SYNTHETIC_DEPENDS_ON_CHAIN = 10;
+
+    private final File _directory;
+
+    public BenchmarkTemplates() {
+        _directory = Files.createTempDir();
+
+        for (String name : SUPPORT_FILES) {
+            copyResource(name);
+        }
+    }
+
+    /**
+     * Get the Ruby DSL version of a template.
+     *
+     * @param name template name
+     * @return template file
+     */
+    public File rubyTemplate(String name) {
+        File file = new File(_directory, name + ".rb");
+
+        if (!file.exists()) {
+            if (name.startsWith(SYNTHETIC_PREFIX)) {
+                write(file, syntheticRubyTemplate(syntheticSize(name)));
+            } else {
+                copyResource(name + ".rb");
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Get the CloudFormation JSON version of a template.
+     *
+     * @param name template name
+     * @return template file
+     */
+    public File jsonTemplate(String name) {
+        File file = new File(_directory, name + ".json");
+
+        if (!file.exists()) {
+            if (name.startsWith(SYNTHETIC_PREFIX)) {
+                try {
+                    new ObjectMapper()
+                            .configure(SerializationConfig.Feature.INDENT_OUTPUT, true)
+                            .writeValue(file, syntheticJsonTemplate(syntheticSize(name)));
+                } catch (IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            } else {
+                copyResource(name + ".json");
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Get the CloudFormation JSON version of a template parsed to the structure the compilers validate.
+     *
+     * @param name template name
+     * @return template data
+     */
+    public Map<String, Object> jsonTemplateData(String name) {
+        try {
+            return new ObjectMapper().readValue(jsonTemplate(name), new TypeReference<Map<String, Object>>() {
+            });
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    /**
+     * Get a file to write compiled output to.
+     *
+     * @param name template name
+     * @return output file
+     */
+    public File outputFile(String name) {
+        return new File(new File(_directory, "output"), name + ".json");
+    }
+
+    /**
+     * Delete all template files.
+     */
+    public void delete() {
+        FileUtils.deleteQuietly(_directory);
+    }
+
+    private static int syntheticSize(String name) {
+        return Integer.parseInt(name.substring(SYNTHETIC_PREFIX.length()));
+    }
+
+    static String syntheticRubyTemplate(int resources) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("template '2010-09-09' do\n");
+        buffer.append(String.format("  description 'Synthetic template with %d resources'\n\n", resources));
+
+        for (int i = 0; i < SYNTHETIC_PARAMETERS; ++i) {
+            buffer.append(String.format("  parameter 'Param%d', :String do\n    default 'value%d'\n  end\n\n", i, i));
+        }
+
+        buffer.append("  mapping 'RegionMap' => {\n");
+        buffer.append("    'us-east-1' => {'Ami' => 'ami-11111111'},\n");
+        buffer.append("    'us-west-1' => {'Ami' => 'ami-22222222'}\n");
+        buffer.append("  }\n\n");
+
+        for (int i = 0; i < resources; ++i) {
+            buffer.append(String.format("  resource 'Resource%d', 'AWS::EC2::Instance' do\n", i));
+            buffer.append("    properties 'ImageId' => find_in_map('RegionMap', aws_region, 'Ami'),\n");
+            buffer.append(String.format("               'InstanceType' => ref('Param%d'),\n", i % SYNTHETIC_PARAMETERS));
+            buffer.append(String.format("               'Tags' => tags('Name' => 'Resource%d', 'Index' => '%d'),\n", i, i));
+            buffer.append("               'UserData' => base64(join('', \"#!/bin/bash\\n\", 'echo ', ref('AWS::StackName')))\n");
+
+            if (i % SYNTHETIC_DEPENDS_ON_CHAIN != 0) {
+                buffer.append(String.format("    depends_on 'Resource%d'\n", i - 1));
+            }
+
+            buffer.append("  end\n\n");
+        }
+
+        for (int i = 0; i < Math.min(SYNTHETIC_OUTPUTS, resources); ++i) {
+            buffer.append(String.format("  output 'Output%d' => get_att('Resource%d', 'PublicIp')\n", i, i));
+        }
+
+        buffer.append("end\n");
+        return buffer.toString();
+    }
+
+    static ObjectNode syntheticJsonTemplate(int resources) {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        ObjectNode template = factory.objectNode();
+        template.put("AWSTemplateFormatVersion", "2010-09-09");
+        template.put("Description", String.format("Synthetic template with %d resources", resources));
+
+        ObjectNode parameters = template.putObject("Parameters");
+
+        for (int i = 0; i < SYNTHETIC_PARAMETERS; ++i) {
+            ObjectNode parameter = parameters.putObject("Param" + i);
+            parameter.put("Type", "String");
+            parameter.put("Default", "value" + i);
+        }
+
+        ObjectNode mapping = template.putObject("Mappings").putObject("RegionMap");
+        mapping.putObject("us-east-1").put("Ami", "ami-11111111");
+        mapping.putObject("us-west-1").put("Ami", "ami-22222222");
+
+        ObjectNode resourcesNode = template.putObject("Resources");
+
+        for (int i = 0; i < resources; ++i) {
+            ObjectNode resource = resourcesNode.putObject("Resource" + i);
+            resource.put("Type", "AWS::EC2::Instance");
+
+            ObjectNode properties = resource.putObject("Properties");
+            ArrayNode findInMap = properties.putObject("ImageId").putArray("Fn::FindInMap");
+            findInMap.add("RegionMap");
+            findInMap.addObject().put("Ref", "AWS::Region");
+            findInMap.add("Ami");
+
+            properties.putObject("InstanceType").put("Ref", "Param" + (i % SYNTHETIC_PARAMETERS));
+
+            ArrayNode tags = properties.putArray("Tags");
+            ObjectNode nameTag = tags.addObject();
+            nameTag.put("Key", "Name");
+            nameTag.put("Value", "Resource" + i);
+            ObjectNode indexTag = tags.addObject();
+            indexTag.put("Key", "Index");
+            indexTag.put("Value", Integer.toString(i));
+
+            ArrayNode join = properties.putObject("UserData").putObject("Fn::Base64").putArray("Fn::Join");
+            join.add("");
+            ArrayNode joinValues = join.addArray();
+            joinValues.add("#!/bin/bash\n");
+            joinValues.add("echo ");
+            joinValues.addObject().put("Ref", "AWS::StackName");
+
+            if (i % SYNTHETIC_DEPENDS_ON_CHAIN != 0) {
+                resource.put("DependsOn", "Resource" + (i - 1));
+            }
+        }
+
+        if (resources > 0) {
+            ObjectNode outputs = template.putObject("Outputs");
+
+            for (int i = 0; i < Math.min(SYNTHETIC_OUTPUTS, resources); ++i) {
+                ArrayNode getAtt = outputs.putObject("Output" + i).putObject("Value").putArray("Fn::GetAtt");
+                getAtt.add("Resource" + i);
+                getAtt.add("PublicIp");
+            }
+        }
+
+        return template;
+    }
+
+    private void copyResource(String name) {
+        InputStream stream = getClass().getResourceAsStream(RESOURCES_PATH + name);
+
+        if (stream == null) {
+            throw new IllegalArgumentException("Unknown template resource: " + name);
+        }
+
+        try {
+            FileUtils.copyInputStreamToFile(stream, new File(_directory, name));
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private static void write(File file, String content) {
+        try {
+            Files.write(content, file, Charsets.UTF_8);
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.jruby.RubyHash;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Copy resources into {@link RubyTemplateCompiler.CompileOutput}, as the DSL does for every resource.
+ * <p/>
+ * The resources are Ruby hashes, like the ones the DSL builds. They are copied with {@link RubyValueConverter},
+ * and through the {@link Map} views JRuby gives Ruby hashes, which is how the resources used to be cloned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileOutputCloneBenchmark {
+    @Param({"synthetic10", "synthetic100", "synthetic500"})
+    public String template;
+
+    private BenchmarkTemplates _templates;
+    private ScriptingContainer _container;
+    private Map<String, IRubyObject> _resources;
+
+    @Setup
+    public void setUp() {
+        _templates = new BenchmarkTemplates();
+        _container = new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.TRANSIENT);
+        _container.put("$template_file", _templates.jsonTemplate(template).getAbsolutePath());
+
+        RubyHash resources = (RubyHash) _container.runScriptlet("require 'json'\nJSON.parse(IO.read($template_file))['Resources']");
+        _resources = newLinkedHashMap();
+
+        resources.visitAll(new RubyHash.Visitor() {
+            @Override
+            public void visit(IRubyObject name, IRubyObject resource) {
+                _resources.put(name.asJavaString(), resource);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        _container.terminate();
+        _templates.delete();
+    }
+
+    @Benchmark
+    public RubyTemplateCompiler.CompileOutput addResources() {
+        RubyTemplateCompiler.CompileOutput output = new RubyTemplateCompiler.CompileOutput();
+
+        for (Map.Entry<String, IRubyObject> resource : _resources.entrySet()) {
+            output.addResource(null, resource.getKey(), resource.getValue());
+        }
+
+        return output;
+    }
+
+    @Benchmark
+    public Map<String, Object> cloneThroughMapViews() {
+        Map<String, Object> resources = newLinkedHashMap();
+
+        for (Map.Entry<String, IRubyObject> resource : _resources.entrySet()) {
+            resources.put(resource.getKey(), cloneThroughMapView(resource.getValue()));
+        }
+
+        return resources;
+    }
+
+    /**
+     * Deep copy the way CompileOutput used to, after the DSL had already copied the hash in clean_obj.
+     */
+    private static Object cloneThroughMapView(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = newLinkedHashMap();
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey().toString(), cloneThroughMapView(entry.getValue()));
+            }
+
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = newArrayList();
+
+            for (Object item : (List<?>) value) {
+                copy.add(cloneThroughMapView(item));
+            }
+
+            return copy;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,57 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile JSON templates: parse, validate and write the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonTemplateCompilerBenchmark {
+    @Param({"synthetic10", "synthetic100", "synthetic500", "resources", "parameters", "mappings", "outputs"})
+    public String template;
+
+    private BenchmarkTemplates _templates;
+    private File _inputFile;
+    private File _outputFile;
+    private JsonTemplateCompiler _compiler;
+
+    @Setup
+    public void setUp() {
+        _templates = new BenchmarkTemplates();
+        _inputFile = _templates.jsonTemplate(template);
+        _outputFile = _templates.outputFile(template);
+        _outputFile.getParentFile().mkdirs();
+        _compiler = new JsonTemplateCompiler();
+    }
+
+    @TearDown
+    public void tearDown() {
+        _templates.delete();
+    }
+
+    @Benchmark
+    public CompileResult compile()
+            throws IOException {
+        return _compiler.compile(_inputFile, _outputFile);
+    }
+}
@@ -0,0 +1,80 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile Ruby DSL templates, with and without a warm JRuby engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RubyTemplateCompilerBenchmark {
+    @Param({"synthetic10", "synthetic100", "synthetic500", "resources", "parameters", "fileUtility", "tagsUtility"})
+    public String template;
+
+    private BenchmarkTemplates _templates;
+    private File _inputFile;
+    private File _outputFile;
+    private RubyEnginePool _warmPool;
+    private RubyTemplateCompiler _warmCompiler;
+
+    @Setup
+    public void setUp() {
+        _templates = new BenchmarkTemplates();
+        _inputFile = _templates.rubyTemplate(template);
+        _outputFile = _templates.outputFile(template);
+        _warmPool = new RubyEnginePool(1);
+        _warmCompiler = new RubyTemplateCompiler(_warmPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _warmPool.close();
+        _templates.delete();
+    }
+
+    /**
+     * JRuby boot, DSL load and compile.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public CompileResult coldCompile()
+            throws IOException {
+        RubyEnginePool pool = new RubyEnginePool(1);
+
+        try {
+            return new RubyTemplateCompiler(pool).compile(_inputFile, _outputFile);
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Compile with an engine that already has the DSL loaded.
+     */
+    @Benchmark
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public CompileResult warmCompile()
+            throws IOException {
+        return _warmCompiler.compile(_inputFile, _outputFile);
+    }
+}
@@ -0,0 +1,97 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read a template and write a compiled template, with a new mapper per call (as the compilers used to) and with
+ * the mapper, reader and writers shared by all compilers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateSerializationBenchmark {
+    @Param({"synthetic10", "synthetic500"})
+    public String template;
+
+    private BenchmarkTemplates _templates;
+    private File _inputFile;
+    private ObjectNode _compiledTemplate;
+    private CompileResult _indentedResult;
+    private CompileResult _compactResult;
+
+    @Setup
+    public void setUp() {
+        _templates = new BenchmarkTemplates();
+        _inputFile = _templates.jsonTemplate(template);
+        _compiledTemplate = BenchmarkTemplates.syntheticJsonTemplate(syntheticSize());
+
+        Iterable<String> files = ImmutableList.of(_inputFile.toString());
+        _indentedResult = new CompileResult(files, Collections.<CompileIssue>emptyList(), _compiledTemplate, TemplateCompiler.INDENTED_WRITER);
+        _compactResult = new CompileResult(files, Collections.<CompileIssue>emptyList(), _compiledTemplate, TemplateCompiler.COMPACT_WRITER);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _templates.delete();
+    }
+
+    @Benchmark
+    public Map<String, Object> readWithNewMapper()
+            throws IOException {
+        return new ObjectMapper().readValue(_inputFile, new TypeReference<Map<String, Object>>() {
+        });
+    }
+
+    @Benchmark
+    public Map<String, Object> readWithSharedReader()
+            throws IOException {
+        return TemplateCompiler.TEMPLATE_READER.readValue(_inputFile);
+    }
+
+    @Benchmark
+    public byte[] writeWithNewMapper()
+            throws IOException {
+        return new ObjectMapper().configure(SerializationConfig.Feature.INDENT_OUTPUT, true).writeValueAsBytes(_compiledTemplate);
+    }
+
+    @Benchmark
+    public byte[] writeWithSharedIndentedWriter()
+            throws IOException {
+        return _indentedResult.getTemplateBytes();
+    }
+
+    @Benchmark
+    public byte[] writeWithSharedCompactWriter()
+            throws IOException {
+        return _compactResult.getTemplateBytes();
+    }
+
+    private int syntheticSize() {
+        return Integer.parseInt(template.substring("synthetic".length()));
+    }
+}
@@ -0,0 +1,66 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.codehaus.jackson.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Validate an already parsed template (TemplateNodeCompiler), without any parsing or writing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateValidationBenchmark {
+    @Param({"synthetic10", "synthetic100", "synthetic500", "resources", "parameters", "mappings", "outputs"})
+    public String template;
+
+    private BenchmarkTemplates _templates;
+    private Map<String, Object> _templateData;
+    private ValidatingCompiler _compiler;
+
+    @Setup
+    public void setUp() {
+        _templates = new BenchmarkTemplates();
+        _templateData = _templates.jsonTemplateData(template);
+        _compiler = new ValidatingCompiler();
+    }
+
+    @TearDown
+    public void tearDown() {
+        _templates.delete();
+    }
+
+    @Benchmark
+    public ObjectNode validate() {
+        return _compiler.validate(_templateData);
+    }
+
+    /**
+     * Exposes the validation step of {@link TemplateCompiler}.
+     */
+    private static class ValidatingCompiler extends JsonTemplateCompiler {
+        public ObjectNode validate(Map<String, Object> data) {
+            List<CompileIssue> issues = newArrayList();
+            return compile(data, issues);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Looks up templates in a {@link CompileCache} before compiling them with another compiler, and stores the
+ * results of the compiles it had to run.
+ * <p/>
+ * The cache key does not cover the resource schemas, so templates are only cached when the other compiler
+ * validates against the {@link ResourceSchemaRegistry#getDefault() bundled resource specification}. Results
+ * are serialized in the output format of this compiler, which is copied from the other compiler.
+ */
+public class CachingTemplateCompiler extends TemplateCompiler {
+    private final TemplateCompiler _compiler;
+    private final CompileCache _cache;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param compiler compiler to compile templates that are not in the cache with
+     * @param cache cache of compile results
+     */
+    public CachingTemplateCompiler(TemplateCompiler compiler, CompileCache cache) {
+        _compiler = checkNotNull(compiler);
+        _cache = checkNotNull(cache);
+        setCompact(compiler.isCompact());
+        setDependencyGraphFormat(compiler.getDependencyGraphFormat());
+        setResourceSchemas(compiler.getResourceSchemas());
+        setMaxErrors(compiler.getMaxErrors());
+    }
+
+    /**
+     * Compiler that compiles templates that are not in the cache.
+     *
+     * @return wrapped compiler
+     */
+    public TemplateCompiler getCompiler() {
+        return _compiler;
+    }
+
+    @Override
+    public CompileResult compile(File inputFile)
+            throws IOException {
+        return compile(checkNotNull(inputFile), null, getParameters());
+    }
+
+    @Override
+    public CompileResult compile(Reader source, File sourceFile)
+            throws IOException {
+        return compile(checkNotNull(sourceFile), IOUtils.toString(checkNotNull(source)), getParameters());
+    }
+
+    /**
+     * Compile a template file once for each of several sets of parameter overrides. The variants that are in
+     * the cache are taken from it, and the others are compiled together by the other compiler.
+     */
+    @Override
+    public Map<String, CompileResult> compileVariants(File inputFile, Map<String, Map<String, String>> variants)
+            throws IOException {
+        checkNotNull(inputFile);
+
+        if (!isCacheable()) {
+            _compiler.setParameters(getParameters());
+            return _compiler.compileVariants(inputFile, variants);
+        }
+
+        Map<String, String> keys = newHashMap();
+        Map<String, CompileResult> cached = newHashMap();
+        Map<String, Map<String, String>> missing = newLinkedHashMap();
+        long start = System.nanoTime();
+
+        for (Map.Entry<String, Map<String, String>> variant : variants.entrySet()) {
+            String key = _cache.getKey(inputFile, null, mergeParameters(getParameters(), variant.getValue()));
+            CompileResult result = _cache.get(key, inputFile);
+
+            keys.put(variant.getKey(), key);
+
+            if (result == null) {
+                missing.put(variant.getKey(), variant.getValue());
+            } else {
+                cached.put(variant.getKey(), result);
+            }
+        }
+
+        long lookup = System.nanoTime() - start;
+        Map<String, CompileResult> compiled = newHashMap();
+
+        if (!missing.isEmpty()) {
+            _compiler.setParameters(getParameters());
+            compiled = _compiler.compileVariants(inputFile, missing);
+
+            for (Map.Entry<String, CompileResult> result : compiled.entrySet()) {
+                _cache.put(keys.get(result.getKey()), inputFile, result.getValue());
+            }
+        }
+
+        Map<String, CompileResult> results = newLinkedHashMap();
+
+        for (String variant : variants.keySet()) {
+            CompileResult result = cached.get(variant);
+            result = result != null ? reformat(result) : compiled.get(variant);
+            result.getMetrics().addPhase(CompileMetrics.CACHE, lookup);
+            results.put(variant, result);
+        }
+
+        return results;
+    }
+
+    /**
+     * @param source template source, or null to read it from the source file
+     */
+    private CompileResult compile(File sourceFile, String source, Map<String, String> parameters)
+            throws IOException {
+        _compiler.setParameters(parameters);
+
+        if (!isCacheable()) {
+            return source == null ? _compiler.compile(sourceFile) : _compiler.compile(source, sourceFile);
+        }
+
+        long start = System.nanoTime();
+        String key = _cache.getKey(sourceFile, source, parameters);
+        CompileResult result = _cache.get(key, sourceFile);
+        long lookup = System.nanoTime() - start;
+
+        if (result != null) {
+            result = reformat(result);
+        } else {
+            result = source == null ? _compiler.compile(sourceFile) : _compiler.compile(source, sourceFile);
+            _cache.put(key, sourceFile, result);
+        }
+
+        result.getMetrics().addPhase(CompileMetrics.CACHE, lookup);
+        return result;
+    }
+
+    /**
+     * Resource schemas other than the bundled ones are not part of the cache key.
+     */
+    private boolean isCacheable() {
+        return _compiler.getResourceSchemas() == ResourceSchemaRegistry.getDefault();
+    }
+
+    /**
+     * Serialize the template of a cached result in the output format of this compiler. The metrics of the
+     * compile that stored it are left out, as that compile did not run now.
+     */
+    private CompileResult reformat(CompileResult result) {
+        return newResult(result.getFiles(), result.getIssues(), result.getTemplate());
+    }
+}
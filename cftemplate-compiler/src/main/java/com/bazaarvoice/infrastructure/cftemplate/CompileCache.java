@@ -0,0 +1,359 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newTreeMap;
+
+/**
+ * Cache of compile results on disk, addressed by a hash of everything that goes into a compile: the template
+ * source, the files it includes, the parameter overrides and the compiler version. Templates with the same
+ * inputs compile to the same result wherever they are, so the cache can be shared by builds of different
+ * branches or projects and by concurrent builds.
+ * <p/>
+ * The files a template includes are only known after it is compiled, so a lookup takes two steps. The hash of
+ * the source, the parameter overrides and the compiler version addresses a manifest that lists the files the
+ * template included the last time it was compiled. That hash together with the content of those files addresses
+ * the result. Paths in the manifest and the result are relative to the directory of the template, so a result
+ * can be used for a checkout in another directory.
+ * <p/>
+ * Entries are written to a temporary file and renamed, so readers never see a partial entry. When the cache
+ * grows beyond its maximum size, the entries that were used least recently are deleted.
+ *
+ * @see CachingTemplateCompiler
+ */
+public class CompileCache {
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String RESULT_EXTENSION = ".json";
+
+    /**
+     * Fraction of the maximum size the cache is reduced to when it is full, so it is not trimmed on every store.
+     */
+    private static final double TRIMMED_SIZE = 0.8;
+
+    private final File _directory;
+    private final long _maxSize;
+    private final AtomicInteger _hits = new AtomicInteger();
+    private final AtomicInteger _misses = new AtomicInteger();
+    private long _size = -1;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param directory directory to keep the entries in; created when the first entry is stored
+     * @param maxSize maximum total size of the entries in bytes
+     */
+    public CompileCache(File directory, long maxSize) {
+        checkArgument(maxSize > 0, "maxSize must be > 0");
+        _directory = checkNotNull(directory);
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Directory the entries are kept in.
+     *
+     * @return cache directory
+     */
+    public File getDirectory() {
+        return _directory;
+    }
+
+    /**
+     * Number of lookups that found a result.
+     *
+     * @return hits since the instance was created
+     */
+    public int getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Number of lookups that found no result.
+     *
+     * @return misses since the instance was created
+     */
+    public int getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * Hash the inputs of a compile that are known before it runs.
+     *
+     * @param sourceFile template file
+     * @param source template source, or null if it is read from the template file
+     * @param parameters parameter overrides
+     * @return key to {@link #get(String, File) get} and {@link #put(String, File, CompileResult) put} the result with
+     */
+    public String getKey(File sourceFile, String source, Map<String, String> parameters)
+            throws IOException {
+        ObjectNode key = JsonNodeFactory.instance.objectNode();
+        key.put("version", TemplateCompiler.getVersion());
+        key.put("source", sourceFile.getName());
+        key.put("sourceHash", source == null
+                ? Files.hash(sourceFile, Hashing.sha1()).toString()
+                : Hashing.sha1().hashString(source, Charsets.UTF_8).toString());
+
+        ObjectNode parametersNode = key.putObject("parameters");
+
+        for (Map.Entry<String, String> parameter : new TreeMap<String, String>(parameters).entrySet()) {
+            // Overrides with null values are ignored by the compilers
+            if (parameter.getValue() != null) {
+                parametersNode.put(parameter.getKey(), parameter.getValue());
+            }
+        }
+
+        return hash(key);
+    }
+
+    /**
+     * Look up the result of a compile.
+     *
+     * @param key hash of the inputs known before the compile
+     * @param sourceFile template file
+     * @return result with the paths resolved against the directory of the template, or null if there is none
+     */
+    public CompileResult get(String key, File sourceFile) {
+        File sourceDirectory = sourceFile.getAbsoluteFile().getParentFile();
+        JsonNode manifest = read(new File(_directory, key + MANIFEST_EXTENSION));
+        String resultKey = manifest == null ? null : getResultKey(key, sourceDirectory, manifest.path("files"));
+        JsonNode result = resultKey == null ? null : read(new File(_directory, resultKey + RESULT_EXTENSION));
+
+        if (result == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        _hits.incrementAndGet();
+        return relocate(CompileResult.fromJson(result), sourceDirectory, false);
+    }
+
+    /**
+     * Store the result of a compile. Results with errors or without a template are not stored, so failed
+     * compiles are always repeated. A result that can not be written is not stored either, as the cache only
+     * saves time.
+     *
+     * @param key hash of the inputs known before the compile
+     * @param sourceFile template file
+     * @param result result of the compile
+     */
+    public void put(String key, File sourceFile, CompileResult result) {
+        if (result.getTemplate() == null || !result.getIssues(CompileIssueLevel.ERROR).isEmpty()) {
+            return;
+        }
+
+        File sourceDirectory = sourceFile.getAbsoluteFile().getParentFile();
+        CompileResult relativeResult = relocate(result, sourceDirectory, true);
+        ArrayNode files = JsonNodeFactory.instance.arrayNode();
+
+        // The first file is the template itself, which is part of the key
+        for (String file : relativeResult.getFiles().subList(1, relativeResult.getFiles().size())) {
+            files.add(file);
+        }
+
+        String resultKey = getResultKey(key, sourceDirectory, files);
+
+        if (resultKey == null) {
+            // An included file was deleted
+            return;
+        }
+
+        ObjectNode manifest = JsonNodeFactory.instance.objectNode();
+        manifest.put("files", files);
+
+        write(new File(_directory, resultKey + RESULT_EXTENSION), relativeResult.toJson());
+        write(new File(_directory, key + MANIFEST_EXTENSION), manifest);
+    }
+
+    /**
+     * Hash the key of the compile with the content of the files it included.
+     *
+     * @return hash, or null if an included file does not exist
+     */
+    private static String getResultKey(String key, File sourceDirectory, JsonNode files) {
+        Map<String, String> fileHashes = newTreeMap();
+
+        for (JsonNode file : files) {
+            File includedFile = resolve(sourceDirectory, file.getTextValue());
+
+            try {
+                if (!includedFile.isFile()) {
+                    return null;
+                }
+
+                fileHashes.put(file.getTextValue(), Files.hash(includedFile, Hashing.sha1()).toString());
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        ObjectNode resultKey = JsonNodeFactory.instance.objectNode();
+        resultKey.put("key", key);
+        resultKey.putPOJO("files", fileHashes);
+        return hash(resultKey);
+    }
+
+    private static String hash(JsonNode node) {
+        try {
+            return Hashing.sha1().hashBytes(TemplateCompiler.MAPPER.writeValueAsBytes(node)).toString();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Make the paths of a result relative to the template directory, or resolve them against it.
+     */
+    private static CompileResult relocate(CompileResult result, File sourceDirectory, boolean relative) {
+        List<String> files = newArrayList();
+        List<CompileIssue> issues = newArrayList();
+
+        for (String file : result.getFiles()) {
+            files.add(relocate(file, sourceDirectory, relative));
+        }
+
+        for (CompileIssue issue : result.getIssues()) {
+            CompileIssueLocation location = issue.getLocation();
+
+            if (location != null && location.getFile() != null) {
+                File file = new File(relocate(location.getFile().getPath(), sourceDirectory, relative));
+                location = new CompileIssueLocation(file, location.getLine(), location.getPath());
+            }
+
+            issues.add(new CompileIssue(issue.getLevel(), issue.getMessage(), location));
+        }
+
+        return new CompileResult(files, issues, result.getTemplate());
+    }
+
+    private static String relocate(String path, File sourceDirectory, boolean relative) {
+        if (!relative) {
+            return resolve(sourceDirectory, path).getPath();
+        }
+
+        String prefix = sourceDirectory.getPath() + File.separator;
+        String absolutePath = resolve(sourceDirectory, path).getPath();
+
+        // Files outside the template directory keep their absolute path
+        return absolutePath.startsWith(prefix)
+                ? absolutePath.substring(prefix.length()).replace(File.separatorChar, '/')
+                : absolutePath;
+    }
+
+    private static File resolve(File sourceDirectory, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(sourceDirectory, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Read an entry and mark it as recently used.
+     *
+     * @return entry, or null if it does not exist or can not be read
+     */
+    private static JsonNode read(File file) {
+        try {
+            JsonNode node = TemplateCompiler.MAPPER.readTree(file);
+            file.setLastModified(System.currentTimeMillis());
+            return node;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void write(File file, JsonNode node) {
+        File tempFile = new File(_directory, UUID.randomUUID() + ".tmp");
+        byte[] bytes;
+
+        try {
+            bytes = TemplateCompiler.MAPPER.writeValueAsBytes(node);
+            Files.createParentDirs(tempFile.getAbsoluteFile());
+            Files.write(bytes, tempFile);
+        } catch (IOException ex) {
+            tempFile.delete();
+            return;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            // Another build stored the same entry, or the platform does not replace files on rename
+            file.delete();
+
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+        }
+
+        added(bytes.length);
+    }
+
+    private synchronized void added(long size) {
+        if (_size < 0) {
+            _size = size(listEntries());
+        } else {
+            _size += size;
+        }
+
+        if (_size > _maxSize) {
+            trim();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is well below its maximum size.
+     */
+    private void trim() {
+        File[] entries = listEntries();
+        long size = size(entries);
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long leftModified = left.lastModified();
+                long rightModified = right.lastModified();
+                return leftModified < rightModified ? -1 : leftModified > rightModified ? 1 : 0;
+            }
+        });
+
+        for (int i = 0; i < entries.length && size > _maxSize * TRIMMED_SIZE; ++i) {
+            long entrySize = entries[i].length();
+
+            if (entries[i].delete()) {
+                size -= entrySize;
+            }
+        }
+
+        _size = size;
+    }
+
+    private File[] listEntries() {
+        File[] entries = _directory.listFiles();
+        return entries == null ? new File[0] : entries;
+    }
+
+    private static long size(File[] entries) {
+        long size = 0;
+
+        for (File entry : entries) {
+            size += entry.length();
+        }
+
+        return size;
+    }
+}
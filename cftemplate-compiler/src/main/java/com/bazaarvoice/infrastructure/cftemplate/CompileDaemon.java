@@ -0,0 +1,344 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Compiles templates for other processes on the same host, so a build does not have to start JRuby and load
+ * the DSL again in every JVM.
+ * <p/>
+ * The daemon listens on a loopback port and advertises it in a daemon file, together with the compiler version
+ * and a random token that must be sent with every request, so only users that can read the file can use the
+ * daemon. Each connection carries a single request and its response, both JSON objects:
+ * <pre>
+ * {"version": "...", "token": "...", "sourceFile": "/src/web-stack.rb", "source": null, "variants": [{"Env": "dev"}], "maxErrors": 0}
+ * {"results": [{"files": ["/src/web-stack.rb"], "issues": [], "template": {...}}]}
+ * </pre>
+ * The template is compiled once for each set of parameter overrides in "variants". The source is read from the
+ * source file unless it is given, and "maxErrors" caps the errors of each compile as
+ * {@link TemplateCompiler#setMaxErrors(int)} does. A request without a source file only checks that the daemon
+ * is up. A request that can not be handled gets a response with an "error" message instead of results, as does
+ * a request larger than {@link #MAX_REQUEST_BYTES} or one that is not sent within {@link #READ_TIMEOUT_MILLIS}.
+ *
+ * @see CompileDaemonClient
+ */
+public class CompileDaemon {
+    private static final String DEFAULT_DAEMON_FILE = ".cftemplate/daemon.json";
+
+    /**
+     * Largest request the daemon reads. Requests carry at most the source of one template.
+     */
+    static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Time a client has to send its request, so a client that never finishes does not hold a thread.
+     */
+    static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final RubyEnginePool _enginePool;
+    private final ExecutorService _executor;
+    private ServerSocket _serverSocket;
+    private Thread _acceptThread;
+    private File _daemonFile;
+    private String _token;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param enginePool pool of engines to evaluate Ruby templates with; the daemon closes it when stopped
+     * @param threads number of requests to handle concurrently
+     */
+    public CompileDaemon(RubyEnginePool enginePool, int threads) {
+        checkArgument(threads > 0, "threads must be > 0");
+        _enginePool = checkNotNull(enginePool);
+        _executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Daemon file used when none is given: .cftemplate/daemon.json in the home directory of the user.
+     *
+     * @return default daemon file
+     */
+    public static File getDefaultDaemonFile() {
+        return new File(System.getProperty("user.home"), DEFAULT_DAEMON_FILE);
+    }
+
+    /**
+     * Start every engine of the pool, listen for requests and advertise the daemon in a daemon file.
+     *
+     * @param daemonFile file to write the port and token to; deleted when the daemon is stopped
+     */
+    public synchronized void start(File daemonFile)
+            throws IOException {
+        checkState(_serverSocket == null, "Daemon is already started");
+
+        warmUp();
+
+        _daemonFile = checkNotNull(daemonFile);
+        _token = new BigInteger(130, new SecureRandom()).toString(32);
+        _serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+        _acceptThread = new Thread("cftemplate-daemon") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        _acceptThread.start();
+
+        writeDaemonFile();
+    }
+
+    /**
+     * Stop listening, delete the daemon file and terminate the engines. Requests in progress are completed.
+     */
+    public synchronized void stop() {
+        if (_serverSocket == null) {
+            return;
+        }
+
+        if (_daemonFile.isFile() && _token.equals(CompileDaemonClient.readDaemonFile(_daemonFile).path("token").getTextValue())) {
+            _daemonFile.delete();
+        }
+
+        IOUtils.closeQuietly(_serverSocket);
+        _executor.shutdown();
+        _enginePool.close();
+    }
+
+    /**
+     * Block until the daemon is stopped.
+     */
+    public void await()
+            throws InterruptedException {
+        Thread acceptThread;
+
+        synchronized (this) {
+            acceptThread = _acceptThread;
+        }
+
+        if (acceptThread != null) {
+            acceptThread.join();
+        }
+    }
+
+    /**
+     * Port the daemon listens on.
+     *
+     * @return port on the loopback interface, or -1 if the daemon is not started
+     */
+    public synchronized int getPort() {
+        return _serverSocket == null ? -1 : _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Run a daemon until the process is killed.
+     * <p/>
+     * Arguments: [daemon file [threads]]. Default is the {@link #getDefaultDaemonFile() default daemon file} and
+     * one thread per available processor.
+     */
+    public static void main(String[] args)
+            throws Exception {
+        File daemonFile = args.length > 0 ? new File(args[0]) : getDefaultDaemonFile();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        final CompileDaemon daemon = new CompileDaemon(new RubyEnginePool(threads), threads);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                daemon.stop();
+            }
+        });
+
+        daemon.start(daemonFile);
+        System.out.println(String.format("Compile daemon %s listening on port %d, advertised in %s", TemplateCompiler.getVersion(), daemon.getPort(), daemonFile));
+        daemon.await();
+    }
+
+    private void warmUp() {
+        List<RubyEnginePool.Engine> engines = newArrayList();
+
+        try {
+            for (int i = 0; i < _enginePool.getSize(); ++i) {
+                engines.add(_enginePool.acquire());
+            }
+        } finally {
+            for (RubyEnginePool.Engine engine : engines) {
+                _enginePool.release(engine);
+            }
+        }
+    }
+
+    private void writeDaemonFile()
+            throws IOException {
+        ObjectNode daemon = JsonNodeFactory.instance.objectNode();
+        daemon.put("version", TemplateCompiler.getVersion());
+        daemon.put("port", _serverSocket.getLocalPort());
+        daemon.put("token", _token);
+
+        // Only the owner may read the token. The file is made private before the token is written to it.
+        File tempFile = new File(_daemonFile.getAbsolutePath() + ".tmp");
+        Files.createParentDirs(tempFile.getAbsoluteFile());
+        Files.write(new byte[0], tempFile);
+        tempFile.setReadable(false, false);
+        tempFile.setReadable(true, true);
+        Files.write(TemplateCompiler.MAPPER.writeValueAsString(daemon), tempFile, Charsets.UTF_8);
+
+        if (!tempFile.renameTo(_daemonFile)) {
+            _daemonFile.delete();
+            Files.move(tempFile, _daemonFile);
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+
+            try {
+                socket = _serverSocket.accept();
+            } catch (SocketException ex) {
+                // Closed by stop()
+                return;
+            } catch (IOException ex) {
+                continue;
+            }
+
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            JsonNode response;
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+
+            try {
+                response = respond(TemplateCompiler.MAPPER.readTree(readRequest(socket.getInputStream())));
+            } catch (Exception ex) {
+                response = error("%s", Throwables.getStackTraceAsString(ex));
+            }
+
+            OutputStream output = socket.getOutputStream();
+            output.write(TemplateCompiler.MAPPER.writeValueAsBytes(response));
+            output.flush();
+        } catch (IOException ex) {
+            // The client went away, it will compile in-process
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private static byte[] readRequest(InputStream input)
+            throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+
+        while ((count = input.read(buffer)) != -1) {
+            if (request.size() + count > MAX_REQUEST_BYTES) {
+                throw new IOException(String.format("Request exceeds %d bytes", MAX_REQUEST_BYTES));
+            }
+
+            request.write(buffer, 0, count);
+        }
+
+        return request.toByteArray();
+    }
+
+    private JsonNode respond(JsonNode request)
+            throws IOException {
+        String token = request.path("token").getTextValue();
+
+        // Compared in constant time, so the time to reject a token does not reveal how much of it was right
+        if (token == null || !MessageDigest.isEqual(_token.getBytes(Charsets.UTF_8), token.getBytes(Charsets.UTF_8))) {
+            return error("Invalid token");
+        } else if (!TemplateCompiler.getVersion().equals(request.path("version").getTextValue())) {
+            return error("Compiler version %s does not match daemon version %s", request.path("version").getTextValue(), TemplateCompiler.getVersion());
+        }
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        ArrayNode results = response.putArray("results");
+
+        if (request.path("sourceFile").isTextual()) {
+            File sourceFile = new File(request.get("sourceFile").getTextValue());
+            String source = request.path("source").getTextValue();
+            TemplateCompiler compiler = FilenameUtils.getExtension(sourceFile.getName()).equals("rb")
+                    ? new RubyTemplateCompiler(_enginePool)
+                    : new JsonTemplateCompiler();
+            compiler.setMaxErrors(Math.max(request.path("maxErrors").getIntValue(), 0));
+
+            Map<String, Map<String, String>> variants = newLinkedHashMap();
+
+            for (JsonNode variant : request.path("variants")) {
+                variants.put(String.valueOf(variants.size()), toParameters(variant));
+            }
+
+            if (source == null) {
+                // Lets a Ruby template be evaluated only once for all variants
+                for (CompileResult result : compiler.compileVariants(sourceFile, variants).values()) {
+                    results.add(result.toJson());
+                }
+            } else {
+                for (Map<String, String> variant : variants.values()) {
+                    compiler.setParameters(variant);
+                    results.add(compiler.compile(source, sourceFile).toJson());
+                }
+            }
+        }
+
+        return response;
+    }
+
+    private static Map<String, String> toParameters(JsonNode variant) {
+        Map<String, String> parameters = newHashMap();
+
+        for (Iterator<Map.Entry<String, JsonNode>> fields = variant.getFields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            parameters.put(field.getKey(), field.getValue().getTextValue());
+        }
+
+        return parameters;
+    }
+
+    private static JsonNode error(String format, Object... args) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("error", String.format(format, args));
+        return node;
+    }
+}
@@ -0,0 +1,170 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.MissingNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Connection to a running {@link CompileDaemon}. Instances are immutable and can be shared between threads.
+ *
+ * @see DaemonTemplateCompiler
+ */
+public class CompileDaemonClient {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Time to wait for the response to a request when none is given. Compiling a large template can take a
+     * while, so this only catches a daemon that stopped responding.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 300000;
+
+    private final int _port;
+    private final String _token;
+    private final int _readTimeoutMillis;
+
+    private CompileDaemonClient(int port, String token, int readTimeoutMillis) {
+        _port = port;
+        _token = token;
+        _readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Connect to the daemon advertised in a daemon file, waiting {@link #DEFAULT_READ_TIMEOUT_MILLIS} for each
+     * response.
+     *
+     * @param daemonFile daemon file written by the daemon
+     * @return client, or null if no daemon of the same compiler version is running
+     */
+    public static CompileDaemonClient connect(File daemonFile) {
+        return connect(daemonFile, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Connect to the daemon advertised in a daemon file.
+     *
+     * @param daemonFile daemon file written by the daemon
+     * @param readTimeoutMillis time to wait for the response to a request before failing it with an
+     * {@link IOException}, or 0 to wait forever
+     * @return client, or null if no daemon of the same compiler version is running
+     */
+    public static CompileDaemonClient connect(File daemonFile, int readTimeoutMillis) {
+        checkArgument(readTimeoutMillis >= 0, "readTimeoutMillis must be >= 0");
+        JsonNode daemon = readDaemonFile(checkNotNull(daemonFile));
+
+        if (!TemplateCompiler.getVersion().equals(daemon.path("version").getTextValue())) {
+            return null;
+        }
+
+        CompileDaemonClient client = new CompileDaemonClient(daemon.path("port").getIntValue(), daemon.path("token").getTextValue(), readTimeoutMillis);
+
+        try {
+            // The file outlives a daemon that was killed, so check it is really there
+            client.request(null, null, JsonNodeFactory.instance.arrayNode(), 0);
+            return client;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Port the daemon listens on.
+     *
+     * @return port on the loopback interface
+     */
+    public int getPort() {
+        return _port;
+    }
+
+    /**
+     * Compile a template in the daemon once for each of several sets of parameter overrides.
+     *
+     * @param sourceFile template file, which the daemon reads unless the source is given
+     * @param source template source, or null to read it from the file
+     * @param variants parameter overrides of each compile
+     * @param maxErrors errors after which the daemon stops validating a template, or 0 for no limit
+     * @return results in the order of the variants. The templates are serialized with the
+     * {@link TemplateCompiler#INDENTED_WRITER indented writer}.
+     * @throws IOException if the daemon can not be reached, can not handle the request or does not respond in time
+     */
+    public List<CompileResult> compile(File sourceFile, String source, List<Map<String, String>> variants, int maxErrors)
+            throws IOException {
+        ArrayNode variantsNode = JsonNodeFactory.instance.arrayNode();
+
+        for (Map<String, String> variant : variants) {
+            ObjectNode variantNode = variantsNode.addObject();
+
+            for (Map.Entry<String, String> parameter : variant.entrySet()) {
+                variantNode.put(parameter.getKey(), parameter.getValue());
+            }
+        }
+
+        List<CompileResult> results = newArrayList();
+
+        for (JsonNode result : request(checkNotNull(sourceFile).getAbsolutePath(), source, variantsNode, maxErrors)) {
+            results.add(CompileResult.fromJson(result));
+        }
+
+        return results;
+    }
+
+    static JsonNode readDaemonFile(File daemonFile) {
+        try {
+            return TemplateCompiler.MAPPER.readTree(daemonFile);
+        } catch (IOException ex) {
+            return MissingNode.getInstance();
+        }
+    }
+
+    private JsonNode request(String sourceFile, String source, ArrayNode variants, int maxErrors)
+            throws IOException {
+        ObjectNode request = JsonNodeFactory.instance.objectNode();
+        request.put("version", TemplateCompiler.getVersion());
+        request.put("token", _token);
+        request.put("sourceFile", sourceFile);
+        request.put("source", source);
+        request.put("variants", variants);
+        request.put("maxErrors", maxErrors);
+
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getByName(null), _port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(_readTimeoutMillis);
+
+            OutputStream output = socket.getOutputStream();
+            output.write(TemplateCompiler.MAPPER.writeValueAsBytes(request));
+            output.flush();
+            socket.shutdownOutput();
+
+            JsonNode response = TemplateCompiler.MAPPER.readTree(IOUtils.toByteArray(socket.getInputStream()));
+
+            if (response == null || response.has("error")) {
+                throw new IOException(String.format("Compile daemon on port %d failed: %s", _port,
+                        response == null ? "no response" : response.get("error").getTextValue()));
+            }
+
+            return response.path("results");
+        } catch (SocketTimeoutException ex) {
+            throw new IOException(String.format("Compile daemon on port %d did not respond within %d ms", _port, _readTimeoutMillis), ex);
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+}
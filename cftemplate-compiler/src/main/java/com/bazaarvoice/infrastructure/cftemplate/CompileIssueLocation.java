@@ -6,11 +6,12 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Location of a {@link CompileIssue}.
+ * Location of a {@link CompileIssue}: a line of a source file, a node of the compiled template, or both.
  */
 public class CompileIssueLocation {
     private final File _file;
     private final int _line;
+    private final String _path;
 
     /**
      * Initialize a new instance.
@@ -28,22 +29,56 @@ public class CompileIssueLocation {
      * @param line line number, starting from 0, or -1 if not applicable
      */
     public CompileIssueLocation(File file, int line) {
-        _file = checkNotNull(file);
+        this(checkNotNull(file), line, null);
+    }
+
+    /**
+     * Initialize a new instance for a node of the compiled template.
+     *
+     * @param path JSON pointer to the node, e.g. /Resources/Web/Properties
+     */
+    public CompileIssueLocation(String path) {
+        this(null, -1, checkNotNull(path));
+    }
 
+    /**
+     * Initialize a new instance.
+     *
+     * @param file file where the issue is located or null if not applicable
+     * @param line line number, starting from 0, or -1 if not applicable
+     * @param path JSON pointer to the node of the compiled template or null if not applicable
+     */
+    public CompileIssueLocation(File file, int line, String path) {
+        checkArgument(file != null || path != null, "file or path is required");
         checkArgument(line >= -1, "line must be >= 0 or -1");
+        _file = file;
         _line = line;
+        _path = path;
     }
 
     @Override
     public String toString() {
-        String result = getFile().toString();
-        return _line < 0 ? result : result + ":" + _line;
+        StringBuilder result = new StringBuilder();
+
+        if (_file != null) {
+            result.append(_file);
+
+            if (_line >= 0) {
+                result.append(':').append(_line);
+            }
+        }
+
+        if (_path != null) {
+            result.append(_file != null ? "#" : "").append(_path);
+        }
+
+        return result.toString();
     }
 
     /**
      * File where the issue is located.
      *
-     * @return file where issue is located
+     * @return file where issue is located or null if not applicable
      */
     public File getFile() {
         return _file;
@@ -57,4 +92,13 @@ public class CompileIssueLocation {
     public int getLine() {
         return _line;
     }
+
+    /**
+     * Node of the compiled template where the issue is located.
+     *
+     * @return JSON pointer to the node, e.g. /Resources/Web/Properties, or null if not applicable
+     */
+    public String getPath() {
+        return _path;
+    }
 }
@@ -0,0 +1,291 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Where the time of a compile went, and how large its template is.
+ * <p/>
+ * Phases are recorded by the compilers in the order they run. A phase that runs more than once, such as the
+ * conversion of each DSL value, is recorded as its total. Phases a result shares with other results, such as
+ * the evaluation of a Ruby template compiled for several variants, are recorded in each of them.
+ */
+public class CompileMetrics {
+    /**
+     * Starting a JRuby runtime for a new engine.
+     */
+    public static final String BOOT = "boot";
+
+    /**
+     * Loading the DSL into a new engine.
+     */
+    public static final String REQUIRE = "require";
+
+    /**
+     * Waiting for an engine from the pool.
+     */
+    public static final String ACQUIRE = "acquire";
+
+    /**
+     * Evaluating a Ruby template, without converting the values it adds.
+     */
+    public static final String EVALUATE = "evaluate";
+
+    /**
+     * Copying the values a Ruby template adds to Java collections.
+     */
+    public static final String CONVERT = "convert";
+
+    /**
+     * Parsing a JSON template.
+     */
+    public static final String READ = "read";
+
+    /**
+     * Validating a template and building the compiled template.
+     */
+    public static final String VALIDATE = "validate";
+
+    /**
+     * Serializing the compiled template and writing it to the output file.
+     */
+    public static final String WRITE = "write";
+
+    /**
+     * Looking up a template in the {@link CompileCache}.
+     */
+    public static final String CACHE = "cache";
+
+    /**
+     * Round trip to the {@link CompileDaemon}, less the phases the daemon reported.
+     */
+    public static final String DAEMON = "daemon";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Map<String, Long> _phases = newLinkedHashMap();
+    private int _resources = -1;
+    private int _parameters = -1;
+    private int _outputs = -1;
+    private long _outputBytes = -1;
+    private long _allocatedBytes = -1;
+
+    /**
+     * Duration of each phase in nanoseconds, in the order the phases first ran.
+     *
+     * @return phase durations by phase name
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(newLinkedHashMap(_phases));
+    }
+
+    /**
+     * Duration of a phase.
+     *
+     * @param phase phase name, such as {@link #EVALUATE}
+     * @return nanoseconds, or 0 if the phase did not run
+     */
+    public synchronized long getPhase(String phase) {
+        Long nanos = _phases.get(phase);
+        return nanos == null ? 0 : nanos;
+    }
+
+    /**
+     * Total duration of the phases.
+     *
+     * @return nanoseconds
+     */
+    public synchronized long getTotal() {
+        long total = 0;
+
+        for (long nanos : _phases.values()) {
+            total += nanos;
+        }
+
+        return total;
+    }
+
+    /**
+     * Number of resources in the compiled template.
+     *
+     * @return resource count, or -1 if the compile failed
+     */
+    public synchronized int getResourceCount() {
+        return _resources;
+    }
+
+    /**
+     * Number of parameters in the compiled template.
+     *
+     * @return parameter count, or -1 if the compile failed or the template was streamed
+     */
+    public synchronized int getParameterCount() {
+        return _parameters;
+    }
+
+    /**
+     * Number of outputs in the compiled template.
+     *
+     * @return output count, or -1 if the compile failed or the template was streamed
+     */
+    public synchronized int getOutputCount() {
+        return _outputs;
+    }
+
+    /**
+     * Size of the compiled template as written.
+     *
+     * @return bytes, or -1 if the template was not serialized
+     */
+    public synchronized long getOutputBytes() {
+        return _outputBytes;
+    }
+
+    /**
+     * Memory allocated by the thread that compiled the template, while it compiled it.
+     *
+     * @return bytes, or -1 if the JVM does not measure allocations per thread
+     */
+    public synchronized long getAllocatedBytes() {
+        return _allocatedBytes;
+    }
+
+    /**
+     * Add to the duration of a phase.
+     *
+     * @param phase phase name
+     * @param nanos nanoseconds to add
+     */
+    public synchronized void addPhase(String phase, long nanos) {
+        Long previous = _phases.get(phase);
+        _phases.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    /**
+     * Add the phases, output size and allocations of other metrics to these. The counts of the template are
+     * left as they are.
+     *
+     * @param metrics metrics to add
+     */
+    public void addAll(CompileMetrics metrics) {
+        for (Map.Entry<String, Long> phase : metrics.getPhases().entrySet()) {
+            addPhase(phase.getKey(), phase.getValue());
+        }
+
+        addAllocatedBytes(metrics.getAllocatedBytes());
+
+        synchronized (this) {
+            if (metrics.getOutputBytes() >= 0) {
+                _outputBytes = Math.max(_outputBytes, 0) + metrics.getOutputBytes();
+            }
+        }
+    }
+
+    synchronized void setCounts(JsonNode template) {
+        _resources = template.path("Resources").size();
+        _parameters = template.path("Parameters").size();
+        _outputs = template.path("Outputs").size();
+    }
+
+    synchronized void setResourceCount(int resources) {
+        _resources = resources;
+    }
+
+    synchronized void setOutputBytes(long outputBytes) {
+        _outputBytes = outputBytes;
+    }
+
+    /**
+     * @param allocatedBytes bytes as returned by {@link #getThreadAllocatedBytes()}, ignored if -1
+     */
+    synchronized void addAllocatedBytes(long allocatedBytes) {
+        if (allocatedBytes >= 0) {
+            _allocatedBytes = Math.max(_allocatedBytes, 0) + allocatedBytes;
+        }
+    }
+
+    /**
+     * Memory the current thread allocated so far, to take the difference of around a compile.
+     *
+     * @return bytes, or -1 if the JVM does not measure allocations per thread
+     */
+    static long getThreadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Memory the current thread allocated since an earlier measurement.
+     *
+     * @param start bytes as returned by {@link #getThreadAllocatedBytes()}
+     * @return bytes, or -1 if the JVM does not measure allocations per thread
+     */
+    static long getThreadAllocatedBytes(long start) {
+        return start < 0 ? -1 : getThreadAllocatedBytes() - start;
+    }
+
+    /**
+     * Metrics as JSON, with durations in nanoseconds. Counts and sizes that are not known are left out.
+     *
+     * @return object with "phases" and the counts and sizes
+     */
+    public synchronized JsonNode toJson() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        ObjectNode phases = node.putObject("phases");
+
+        for (Map.Entry<String, Long> phase : _phases.entrySet()) {
+            phases.put(phase.getKey(), phase.getValue());
+        }
+
+        putIfKnown(node, "resources", _resources);
+        putIfKnown(node, "parameters", _parameters);
+        putIfKnown(node, "outputs", _outputs);
+        putIfKnown(node, "outputBytes", _outputBytes);
+        putIfKnown(node, "allocatedBytes", _allocatedBytes);
+        return node;
+    }
+
+    /**
+     * Read metrics written with {@link #toJson()}.
+     *
+     * @param node JSON form of the metrics
+     * @return metrics
+     */
+    static CompileMetrics fromJson(JsonNode node) {
+        CompileMetrics metrics = new CompileMetrics();
+
+        for (Iterator<Map.Entry<String, JsonNode>> phases = node.path("phases").getFields(); phases.hasNext(); ) {
+            Map.Entry<String, JsonNode> phase = phases.next();
+            metrics._phases.put(phase.getKey(), phase.getValue().getLongValue());
+        }
+
+        metrics._resources = node.path("resources").asInt(-1);
+        metrics._parameters = node.path("parameters").asInt(-1);
+        metrics._outputs = node.path("outputs").asInt(-1);
+        metrics._outputBytes = node.path("outputBytes").asLong(-1);
+        metrics._allocatedBytes = node.path("allocatedBytes").asLong(-1);
+        return metrics;
+    }
+
+    private static void putIfKnown(ObjectNode node, String name, long value) {
+        if (value >= 0) {
+            node.put(name, value);
+        }
+    }
+}
@@ -3,11 +3,19 @@ package com.bazaarvoice.infrastructure.cftemplate;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
 import static java.util.Collections.unmodifiableList;
 
 /**
@@ -20,6 +28,10 @@ public class CompileResult {
     private final ListMultimap<CompileIssueLevel, CompileIssue> _issuesByLevel = ArrayListMultimap.create();
 
     private final List<String> _files;
+    private final ObjectNode _template;
+    private final ObjectWriter _writer;
+    private final CompileMetrics _metrics = new CompileMetrics();
+    private DependencyGraph _resourceGraph;
 
     /**
      * Initialize a new instance.
@@ -28,6 +40,30 @@ public class CompileResult {
      * @param issues compilation issues or empty if compile completed with no issues
      */
     public CompileResult(Iterable<String> files, Iterable<CompileIssue> issues) {
+        this(files, issues, null);
+    }
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param files files that were part of the compilation unit
+     * @param issues compilation issues or empty if compile completed with no issues
+     * @param template compiled template, ignored if there are any {@link CompileIssueLevel#ERROR ERROR} issues
+     */
+    public CompileResult(Iterable<String> files, Iterable<CompileIssue> issues, ObjectNode template) {
+        this(files, issues, template, TemplateCompiler.INDENTED_WRITER);
+    }
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param files files that were part of the compilation unit
+     * @param issues compilation issues or empty if compile completed with no issues
+     * @param template compiled template, ignored if there are any {@link CompileIssueLevel#ERROR ERROR} issues
+     * @param writer writer used to serialize the template
+     */
+    public CompileResult(Iterable<String> files, Iterable<CompileIssue> issues, ObjectNode template, ObjectWriter writer) {
+        _writer = checkNotNull(writer);
         _files = ImmutableList.copyOf(files);
         _issues = ImmutableList.copyOf(issues);
 
@@ -35,6 +71,32 @@ public class CompileResult {
             checkArgument(issue != null, "issues can not contain null");
             _issuesByLevel.put(issue.getLevel(), issue);
         }
+
+        _template = _issuesByLevel.containsKey(CompileIssueLevel.ERROR) ? null : template;
+
+        if (_template != null) {
+            _metrics.setCounts(_template);
+        }
+    }
+
+    /**
+     * Initialize a new instance for a template that was written while it was compiled, so the compiled
+     * template itself is not available.
+     *
+     * @param file file that was compiled
+     * @param issues compilation issues or empty if compile completed with no issues
+     * @param resourceGraph resource dependency graph, ignored if there are any {@link CompileIssueLevel#ERROR ERROR} issues
+     */
+    public CompileResult(File file, Iterable<CompileIssue> issues, DependencyGraph resourceGraph) {
+        this(file, issues);
+
+        if (!_issuesByLevel.containsKey(CompileIssueLevel.ERROR)) {
+            _resourceGraph = resourceGraph;
+        }
+
+        if (_resourceGraph != null) {
+            _metrics.setResourceCount(_resourceGraph.getNodes().size());
+        }
     }
 
     /**
@@ -66,6 +128,45 @@ public class CompileResult {
         return _files;
     }
 
+    /**
+     * Compiled CloudFormation template.
+     *
+     * @return compiled template or null if the compile failed
+     */
+    public ObjectNode getTemplate() {
+        return _template;
+    }
+
+    /**
+     * Compiled CloudFormation template serialized to JSON, exactly as it is written to an output file.
+     *
+     * @return UTF-8 encoded JSON or null if the compile failed
+     */
+    public byte[] getTemplateBytes()
+            throws IOException {
+        if (_template == null) {
+            return null;
+        }
+
+        byte[] bytes = _writer.writeValueAsBytes(_template);
+        _metrics.setOutputBytes(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Graph of the order CloudFormation creates the resources of the template in, from DependsOn and from the
+     * resources each resource refers to with Ref or Fn::GetAtt.
+     *
+     * @return resource dependency graph or null if the compile failed
+     */
+    public synchronized DependencyGraph getResourceGraph() {
+        if (_resourceGraph == null && _template != null) {
+            _resourceGraph = TemplateCompiler.getResourceGraph(_template);
+        }
+
+        return _resourceGraph;
+    }
+
     /**
      * Compilation issues or empty if compile completed with no issues.
      *
@@ -84,4 +185,81 @@ public class CompileResult {
     public List<CompileIssue> getIssues(CompileIssueLevel level) {
         return unmodifiableList(_issuesByLevel.get(level));
     }
+
+    /**
+     * Time the compile took by phase, and the size of the template.
+     *
+     * @return metrics, which the compiler adds to until it returns the result
+     */
+    public CompileMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Files, issues and template of the result as JSON, as the {@link CompileDaemon} sends results and the
+     * {@link CompileCache} stores them.
+     *
+     * @return object with "files", "issues", "template" and "metrics" fields
+     */
+    JsonNode toJson() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        ArrayNode files = node.putArray("files");
+        ArrayNode issues = node.putArray("issues");
+
+        for (String file : _files) {
+            files.add(file);
+        }
+
+        for (CompileIssue issue : _issues) {
+            ObjectNode issueNode = issues.addObject();
+            issueNode.put("level", issue.getLevel().name());
+            issueNode.put("message", issue.getMessage());
+
+            CompileIssueLocation location = issue.getLocation();
+
+            if (location != null) {
+                ObjectNode locationNode = issueNode.putObject("location");
+                locationNode.put("file", location.getFile() == null ? null : location.getFile().getPath());
+                locationNode.put("line", location.getLine());
+                locationNode.put("path", location.getPath());
+            }
+        }
+
+        node.put("template", _template);
+        node.put("metrics", _metrics.toJson());
+        return node;
+    }
+
+    /**
+     * Read a result written with {@link #toJson()}. The template is serialized with the
+     * {@link TemplateCompiler#INDENTED_WRITER indented writer}.
+     *
+     * @param node JSON form of the result
+     * @return result
+     */
+    static CompileResult fromJson(JsonNode node) {
+        List<String> files = newArrayList();
+        List<CompileIssue> issues = newArrayList();
+
+        for (JsonNode file : node.path("files")) {
+            files.add(file.getTextValue());
+        }
+
+        for (JsonNode issue : node.path("issues")) {
+            JsonNode location = issue.get("location");
+            CompileIssueLocation issueLocation = null;
+
+            if (location != null) {
+                String file = location.path("file").getTextValue();
+                issueLocation = new CompileIssueLocation(file == null ? null : new File(file), location.path("line").getIntValue(), location.path("path").getTextValue());
+            }
+
+            issues.add(new CompileIssue(CompileIssueLevel.valueOf(issue.path("level").getTextValue()), issue.path("message").getTextValue(), issueLocation));
+        }
+
+        JsonNode template = node.path("template");
+        CompileResult result = new CompileResult(files, issues, template.isObject() ? (ObjectNode) template : null);
+        result._metrics.addAll(CompileMetrics.fromJson(node.path("metrics")));
+        return result;
+    }
 }
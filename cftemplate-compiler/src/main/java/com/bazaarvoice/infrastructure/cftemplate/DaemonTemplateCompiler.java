@@ -0,0 +1,93 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Compiles templates in a running {@link CompileDaemon}, which keeps its JRuby engines warm between builds.
+ * <p/>
+ * The daemon reads the template and the files it includes itself, so it must run on the same host. The
+ * compiled templates are written and their dependency graphs built by this compiler, with its own output
+ * options. Failures to reach the daemon are thrown as {@link IOException}, so callers can fall back to
+ * compiling in-process.
+ */
+public class DaemonTemplateCompiler extends TemplateCompiler {
+    private final CompileDaemonClient _client;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param client connection to the daemon
+     */
+    public DaemonTemplateCompiler(CompileDaemonClient client) {
+        _client = checkNotNull(client);
+    }
+
+    @Override
+    public CompileResult compile(File inputFile)
+            throws IOException {
+        return compile(checkNotNull(inputFile), null, Collections.<Map<String, String>>emptyList()).get(0);
+    }
+
+    @Override
+    public CompileResult compile(Reader source, File sourceFile)
+            throws IOException {
+        return compile(checkNotNull(sourceFile), IOUtils.toString(checkNotNull(source)), Collections.<Map<String, String>>emptyList()).get(0);
+    }
+
+    @Override
+    public Map<String, CompileResult> compileVariants(File inputFile, Map<String, Map<String, String>> variants)
+            throws IOException {
+        List<CompileResult> results = compile(checkNotNull(inputFile), null, newArrayList(variants.values()));
+        Map<String, CompileResult> resultsByVariant = newLinkedHashMap();
+
+        for (String variant : variants.keySet()) {
+            resultsByVariant.put(variant, results.get(resultsByVariant.size()));
+        }
+
+        return resultsByVariant;
+    }
+
+    /**
+     * @param variants parameter overrides of each variant, or empty for a single compile with the parameter
+     * overrides of this compiler
+     */
+    private List<CompileResult> compile(File sourceFile, String source, List<Map<String, String>> variants)
+            throws IOException {
+        List<Map<String, String>> parameters = newArrayList();
+
+        for (Map<String, String> variant : variants.isEmpty() ? ImmutableList.<Map<String, String>>of(getParameters()) : variants) {
+            parameters.add(mergeParameters(getParameters(), variant));
+        }
+
+        List<CompileResult> results = newArrayList();
+        long start = System.nanoTime();
+        List<CompileResult> daemonResults = _client.compile(sourceFile, source, parameters, getMaxErrors());
+        long roundTrip = System.nanoTime() - start;
+
+        for (CompileResult daemonResult : daemonResults) {
+            // Serialize the template in the output format of this compiler
+            CompileResult result = newResult(daemonResult.getFiles(), daemonResult.getIssues(), daemonResult.getTemplate());
+            result.getMetrics().addAll(daemonResult.getMetrics());
+            result.getMetrics().addPhase(CompileMetrics.DAEMON, Math.max(roundTrip - daemonResult.getMetrics().getTotal(), 0));
+            results.add(result);
+        }
+
+        if (results.size() != parameters.size()) {
+            throw new IOException(String.format("Compile daemon on port %d returned %d results for %d variants", _client.getPort(), results.size(), parameters.size()));
+        }
+
+        return results;
+    }
+}
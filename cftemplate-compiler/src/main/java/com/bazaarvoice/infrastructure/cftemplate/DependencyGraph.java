@@ -0,0 +1,326 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Directed graph of dependencies between named template entries, e.g. resources and their DependsOn targets.
+ * <p/>
+ * Nodes keep the order they were added in, and all results list nodes in that order so issues are reported in
+ * the order of the template.
+ */
+public class DependencyGraph {
+    private final Map<String, Integer> _indexes = newHashMap();
+    private final List<String> _names = newArrayList();
+    private final List<List<Integer>> _dependencies = newArrayList();
+
+    /**
+     * Add a node. Adding a node that already exists has no effect.
+     *
+     * @param name node name
+     */
+    public void addNode(String name) {
+        if (!_indexes.containsKey(name)) {
+            _indexes.put(name, _names.size());
+            _names.add(name);
+            List<Integer> dependencies = newArrayListWithCapacity(1);
+            _dependencies.add(dependencies);
+        }
+    }
+
+    /**
+     * Check whether a node exists.
+     *
+     * @param name node name
+     * @return true if the node was added
+     */
+    public boolean hasNode(String name) {
+        return _indexes.containsKey(name);
+    }
+
+    /**
+     * Add a dependency between two existing nodes.
+     *
+     * @param name node that depends on the other node
+     * @param dependency node that is depended on
+     */
+    public void addDependency(String name, String dependency) {
+        checkArgument(hasNode(name), "Unknown node: %s", name);
+        checkArgument(hasNode(dependency), "Unknown node: %s", dependency);
+
+        List<Integer> dependencies = _dependencies.get(_indexes.get(name));
+        Integer dependencyIndex = _indexes.get(dependency);
+
+        if (!dependencies.contains(dependencyIndex)) {
+            dependencies.add(dependencyIndex);
+        }
+    }
+
+    /**
+     * All nodes, in the order they were added.
+     *
+     * @return node names
+     */
+    public List<String> getNodes() {
+        return Collections.unmodifiableList(_names);
+    }
+
+    /**
+     * Nodes a node depends on directly, in the order the dependencies were added.
+     *
+     * @param name node name
+     * @return names of the dependencies
+     */
+    public List<String> getDependencies(String name) {
+        checkArgument(hasNode(name), "Unknown node: %s", name);
+
+        List<String> result = newArrayList();
+
+        for (int dependency : _dependencies.get(_indexes.get(name))) {
+            result.add(_names.get(dependency));
+        }
+
+        return result;
+    }
+
+    /**
+     * Find every dependency cycle.
+     * <p/>
+     * Each cycle is a strongly connected component with more than one node, or a single node that depends on
+     * itself. Every node in a cycle can reach every other node in it.
+     *
+     * @return members of each cycle in node order, with the cycles ordered by their first member
+     */
+    public List<List<String>> getCycles() {
+        List<List<String>> cycles = newArrayList();
+
+        for (List<Integer> component : getStronglyConnectedComponents()) {
+            int first = component.get(0);
+
+            if (component.size() > 1 || _dependencies.get(first).contains(first)) {
+                List<String> cycle = newArrayList();
+
+                for (int node : component) {
+                    cycle.add(_names.get(node));
+                }
+
+                cycles.add(cycle);
+            }
+        }
+
+        Collections.sort(cycles, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> left, List<String> right) {
+                return _indexes.get(left.get(0)).compareTo(_indexes.get(right.get(0)));
+            }
+        });
+
+        return cycles;
+    }
+
+    /**
+     * Group the nodes into levels, where every node is in the level after the deepest of its dependencies.
+     * <p/>
+     * Nodes in the same level do not depend on each other, so each level is a set of nodes that can be created
+     * at the same time once the previous levels are done. Nodes in a cycle, and nodes that depend on a cycle,
+     * are in no level.
+     *
+     * @return nodes of each level in node order, starting with the nodes that have no dependencies
+     */
+    public List<List<String>> getLevels() {
+        int[] level = getNodeLevels(null);
+        List<List<String>> levels = newArrayList();
+
+        for (int node = 0; node < level.length; ++node) {
+            if (level[node] >= 0) {
+                while (levels.size() <= level[node]) {
+                    List<String> nodes = newArrayList();
+                    levels.add(nodes);
+                }
+
+                levels.get(level[node]).add(_names.get(node));
+            }
+        }
+
+        return levels;
+    }
+
+    /**
+     * Find the longest chain of dependencies, which bounds how fast all nodes can be created no matter how
+     * many are created at the same time. Nodes in or depending on a cycle are ignored.
+     *
+     * @return nodes of the chain, starting with the node that has no dependencies
+     */
+    public List<String> getCriticalPath() {
+        int[] deepest = new int[_names.size()];
+        int[] level = getNodeLevels(deepest);
+        int last = -1;
+
+        for (int node = 0; node < level.length; ++node) {
+            if (level[node] >= 0 && (last < 0 || level[node] > level[last])) {
+                last = node;
+            }
+        }
+
+        List<String> path = newArrayList();
+
+        for (int node = last; node >= 0; node = deepest[node]) {
+            path.add(_names.get(node));
+        }
+
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Longest path from a node without dependencies to each node, using Kahn's topological sort in
+     * O(nodes + dependencies) time.
+     *
+     * @param deepest if not null, set to the dependency of each node with the highest level, or -1
+     * @return level of each node, or -1 for nodes in or depending on a cycle
+     */
+    private int[] getNodeLevels(int[] deepest) {
+        int count = _names.size();
+        int[] level = new int[count];
+        int[] remaining = new int[count];
+        int[] queue = new int[count];
+        int queueStart = 0;
+        int queueEnd = 0;
+        List<List<Integer>> dependents = newArrayListWithCapacity(count);
+
+        for (int node = 0; node < count; ++node) {
+            List<Integer> nodeDependents = newArrayList();
+            dependents.add(nodeDependents);
+        }
+
+        for (int node = 0; node < count; ++node) {
+            remaining[node] = _dependencies.get(node).size();
+            level[node] = -1;
+
+            if (deepest != null) {
+                deepest[node] = -1;
+            }
+
+            for (int dependency : _dependencies.get(node)) {
+                dependents.get(dependency).add(node);
+            }
+
+            if (remaining[node] == 0) {
+                level[node] = 0;
+                queue[queueEnd++] = node;
+            }
+        }
+
+        while (queueStart < queueEnd) {
+            int node = queue[queueStart++];
+
+            for (int dependent : dependents.get(node)) {
+                if (level[node] + 1 > level[dependent]) {
+                    level[dependent] = level[node] + 1;
+
+                    if (deepest != null) {
+                        deepest[dependent] = node;
+                    }
+                }
+
+                if (--remaining[dependent] == 0) {
+                    queue[queueEnd++] = dependent;
+                }
+            }
+        }
+
+        // Nodes that were never queued are in or behind a cycle, even if some of their dependencies were levelled
+        for (int node = 0; node < count; ++node) {
+            if (remaining[node] > 0) {
+                level[node] = -1;
+            }
+        }
+
+        return level;
+    }
+
+    /**
+     * Tarjan's strongly connected components algorithm, in O(nodes + dependencies) time.
+     * <p/>
+     * The depth first search keeps its own stack instead of recursing, so long dependency chains in templates with
+     * thousands of resources can not overflow the thread stack.
+     *
+     * @return node indexes of each component, sorted
+     */
+    private List<List<Integer>> getStronglyConnectedComponents() {
+        int count = _names.size();
+        int[] index = new int[count];
+        int[] lowLink = new int[count];
+        boolean[] onStack = new boolean[count];
+        int[] componentStack = new int[count];
+        int componentStackSize = 0;
+        int[] searchStack = new int[count];
+        int[] searchPosition = new int[count];
+        int nextIndex = 1;
+        List<List<Integer>> components = newArrayList();
+
+        for (int root = 0; root < count; ++root) {
+            if (index[root] != 0) {
+                continue;
+            }
+
+            int searchDepth = 0;
+            searchStack[0] = root;
+            searchPosition[0] = 0;
+            index[root] = lowLink[root] = nextIndex++;
+            componentStack[componentStackSize++] = root;
+            onStack[root] = true;
+
+            while (searchDepth >= 0) {
+                int node = searchStack[searchDepth];
+                List<Integer> dependencies = _dependencies.get(node);
+
+                if (searchPosition[searchDepth] < dependencies.size()) {
+                    int dependency = dependencies.get(searchPosition[searchDepth]++);
+
+                    if (index[dependency] == 0) {
+                        index[dependency] = lowLink[dependency] = nextIndex++;
+                        componentStack[componentStackSize++] = dependency;
+                        onStack[dependency] = true;
+
+                        searchDepth += 1;
+                        searchStack[searchDepth] = dependency;
+                        searchPosition[searchDepth] = 0;
+                    } else if (onStack[dependency]) {
+                        lowLink[node] = Math.min(lowLink[node], index[dependency]);
+                    }
+                } else {
+                    if (lowLink[node] == index[node]) {
+                        List<Integer> component = newArrayList();
+                        int member;
+
+                        do {
+                            member = componentStack[--componentStackSize];
+                            onStack[member] = false;
+                            component.add(member);
+                        } while (member != node);
+
+                        Collections.sort(component);
+                        components.add(component);
+                    }
+
+                    searchDepth -= 1;
+
+                    if (searchDepth >= 0) {
+                        int parent = searchStack[searchDepth];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                    }
+                }
+            }
+        }
+
+        return components;
+    }
+}
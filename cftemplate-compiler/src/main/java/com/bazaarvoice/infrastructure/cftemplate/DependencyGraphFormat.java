@@ -0,0 +1,146 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.apache.commons.io.FilenameUtils;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * File formats a resource dependency graph can be written in.
+ * <p/>
+ * Both formats include the creation levels and the critical path, which is the longest chain of resources that
+ * must be created one after another and so bounds the creation time of the stack.
+ */
+public enum DependencyGraphFormat {
+    /**
+     * Graphviz DOT, with an edge from each resource to each resource it depends on and the critical path in red.
+     */
+    DOT("dot") {
+        @Override
+        public String format(DependencyGraph graph) {
+            List<String> path = graph.getCriticalPath();
+            Set<String> criticalPath = newHashSet(path);
+            Set<List<String>> criticalEdges = newHashSet();
+
+            for (int i = 1; i < path.size(); ++i) {
+                criticalEdges.add(ImmutableList.of(path.get(i), path.get(i - 1)));
+            }
+
+            StringBuilder dot = new StringBuilder("digraph Resources {\n");
+            List<List<String>> levels = graph.getLevels();
+
+            for (int i = 0; i < levels.size(); ++i) {
+                dot.append(String.format("    // Level %d (%d resources)\n", i, levels.get(i).size()));
+                dot.append("    { rank = same;");
+
+                for (String name : levels.get(i)) {
+                    dot.append(' ').append(quote(name)).append(';');
+                }
+
+                dot.append(" }\n");
+            }
+
+            for (String name : graph.getNodes()) {
+                dot.append("    ").append(quote(name));
+                dot.append(criticalPath.contains(name) ? " [color = red];\n" : ";\n");
+
+                for (String dependency : graph.getDependencies(name)) {
+                    dot.append("    ").append(quote(name)).append(" -> ").append(quote(dependency));
+                    dot.append(criticalEdges.contains(ImmutableList.of(name, dependency)) ? " [color = red];\n" : ";\n");
+                }
+            }
+
+            return dot.append("}\n").toString();
+        }
+
+        private String quote(String name) {
+            return '"' + name.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+    },
+
+    /**
+     * JSON with the dependencies of each resource, the creation levels and the critical path.
+     */
+    JSON("json") {
+        @Override
+        public String format(DependencyGraph graph)
+                throws IOException {
+            ObjectNode root = JsonNodeFactory.instance.objectNode();
+            ObjectNode resources = root.putObject("Resources");
+            ArrayNode levels = root.putArray("Levels");
+
+            for (String name : graph.getNodes()) {
+                ArrayNode dependencies = resources.putArray(name);
+
+                for (String dependency : graph.getDependencies(name)) {
+                    dependencies.add(dependency);
+                }
+            }
+
+            for (List<String> level : graph.getLevels()) {
+                ArrayNode levelNode = levels.addArray();
+
+                for (String name : level) {
+                    levelNode.add(name);
+                }
+            }
+
+            ArrayNode criticalPath = root.putArray("CriticalPath");
+
+            for (String name : graph.getCriticalPath()) {
+                criticalPath.add(name);
+            }
+
+            return TemplateCompiler.INDENTED_WRITER.writeValueAsString(root) + "\n";
+        }
+    };
+
+    private final String _extension;
+
+    private DependencyGraphFormat(String extension) {
+        _extension = extension;
+    }
+
+    /**
+     * Format a dependency graph.
+     *
+     * @param graph graph to format
+     * @return formatted graph
+     */
+    public abstract String format(DependencyGraph graph)
+            throws IOException;
+
+    /**
+     * File the graph of a compiled template is written to, next to the template, e.g. stack.graph.dot for
+     * stack.json.
+     *
+     * @param templateFile compiled template file
+     * @return graph file
+     */
+    public File getGraphFile(File templateFile) {
+        String name = FilenameUtils.getBaseName(templateFile.getName());
+        return new File(templateFile.getParentFile(), String.format("%s.graph.%s", name, _extension));
+    }
+
+    /**
+     * Write a dependency graph to a file, replacing any existing file.
+     *
+     * @param graph graph to write
+     * @param file file to write to
+     */
+    public void write(DependencyGraph graph, File file)
+            throws IOException {
+        Files.createParentDirs(file.getAbsoluteFile());
+        Files.write(format(graph), file, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,264 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Text file included with the DSL <code>file</code> helper, split into the literal text and the {{ }}
+ * expressions to interpolate into it.
+ * <p/>
+ * Files are scanned once, and the result is cached by path until the file is modified, so a file included by
+ * many templates or compiled again by a daemon is not scanned again. A file modified within the last
+ * {@link #MTIME_RESOLUTION_MILLIS} is not cached, since a second change in the same modification time tick with
+ * the same length would not be noticed. Each expression carries the line and column
+ * of its {{, so the DSL can report where an expression that fails to evaluate is.
+ */
+public class InterpolatedFile {
+    private static final String OPEN = "{{";
+    private static final String CLOSE = "}}";
+
+    /**
+     * Files larger than this are mapped into memory instead of read into a byte array before being decoded.
+     */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Maximum number of characters of the cached files.
+     */
+    private static final long CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Coarsest modification time resolution of the file systems templates may be on.
+     */
+    private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+    private static final Cache<String, InterpolatedFile> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(CACHE_SIZE)
+            .weigher(new Weigher<String, InterpolatedFile>() {
+                @Override
+                public int weigh(String path, InterpolatedFile file) {
+                    return file._length;
+                }
+            })
+            .build();
+
+    private final File _file;
+    private final long _lastModified;
+    private final long _size;
+    private final int _length;
+    private final List<Segment> _segments;
+    private final Segment _unclosed;
+
+    private InterpolatedFile(File file, long lastModified, long size, String content) {
+        List<Segment> segments = newArrayList();
+        Segment unclosed = null;
+        Position position = new Position();
+        int end = 0;
+
+        while (end < content.length()) {
+            int start = content.indexOf(OPEN, end);
+            int close = start < 0 ? -1 : content.indexOf(CLOSE, start);
+            int textEnd = close < 0 ? content.length() : start;
+
+            if (textEnd > end) {
+                segments.add(new Segment(content.substring(end, textEnd), false, position.line, position.column(end)));
+            }
+
+            if (close < 0) {
+                if (start >= 0) {
+                    // The text after an unmatched {{ is kept as it is
+                    position.advance(content, start);
+                    unclosed = new Segment(OPEN, false, position.line, position.column(start));
+                }
+
+                break;
+            }
+
+            position.advance(content, start);
+            segments.add(new Segment(content.substring(start + OPEN.length(), close), true, position.line, position.column(start)));
+            position.advance(content, close);
+            end = close + CLOSE.length();
+        }
+
+        _file = file;
+        _lastModified = lastModified;
+        _size = size;
+        _length = content.length();
+        _segments = ImmutableList.copyOf(segments);
+        _unclosed = unclosed;
+    }
+
+    /**
+     * Get a file split into text and expressions, scanning it only if it changed since it was last scanned.
+     *
+     * @param file file to read
+     * @return parsed file
+     */
+    public static InterpolatedFile read(File file)
+            throws IOException {
+        File absoluteFile = checkNotNull(file).getAbsoluteFile();
+
+        // Taken before reading, so a file modified while it is read is scanned again the next time
+        long lastModified = absoluteFile.lastModified();
+        long size = absoluteFile.length();
+        InterpolatedFile cached = CACHE.getIfPresent(absoluteFile.getPath());
+
+        if (cached != null && cached._lastModified == lastModified && cached._size == size) {
+            return cached;
+        }
+
+        InterpolatedFile parsed = new InterpolatedFile(absoluteFile, lastModified, size, readContent(absoluteFile));
+
+        if (System.currentTimeMillis() - lastModified >= MTIME_RESOLUTION_MILLIS) {
+            CACHE.put(absoluteFile.getPath(), parsed);
+        } else {
+            CACHE.invalidate(absoluteFile.getPath());
+        }
+
+        return parsed;
+    }
+
+    /**
+     * File the text was read from.
+     *
+     * @return absolute file
+     */
+    public File getFile() {
+        return _file;
+    }
+
+    /**
+     * Literal text and expressions of the file, in order. Text segments are never empty.
+     *
+     * @return segments
+     */
+    public List<Segment> getSegments() {
+        return _segments;
+    }
+
+    /**
+     * Check whether the file has any expressions to interpolate.
+     *
+     * @return true if at least one segment is an expression
+     */
+    public boolean hasExpressions() {
+        for (Segment segment : _segments) {
+            if (segment.isExpression()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The {{ that has no matching }}, if any. The text from there on is a literal segment.
+     *
+     * @return segment with the location of the {{ or null if all braces are matched
+     */
+    public Segment getUnclosed() {
+        return _unclosed;
+    }
+
+    private static String readContent(File file)
+            throws IOException {
+        if (file.length() <= MAP_THRESHOLD) {
+            return Files.toString(file, Charsets.UTF_8);
+        }
+
+        FileInputStream input = new FileInputStream(file);
+
+        try {
+            FileChannel channel = input.getChannel();
+            return Charsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).toString();
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Line and column of an offset in the content, found by counting the line breaks before it.
+     */
+    private static class Position {
+        int line = 1;
+        int lineStart = 0;
+
+        void advance(String content, int offset) {
+            for (int i = content.indexOf('\n', lineStart); i >= 0 && i < offset; i = content.indexOf('\n', i + 1)) {
+                line += 1;
+                lineStart = i + 1;
+            }
+        }
+
+        int column(int offset) {
+            return offset - lineStart + 1;
+        }
+    }
+
+    /**
+     * Literal text or expression of an {@link InterpolatedFile}.
+     */
+    public static class Segment {
+        private final String _text;
+        private final boolean _expression;
+        private final int _line;
+        private final int _column;
+
+        private Segment(String text, boolean expression, int line, int column) {
+            _text = text;
+            _expression = expression;
+            _line = line;
+            _column = column;
+        }
+
+        /**
+         * Literal text, or the Ruby expression between the braces.
+         *
+         * @return text
+         */
+        public String getText() {
+            return _text;
+        }
+
+        /**
+         * Check whether this is an expression to evaluate.
+         *
+         * @return true for an expression, false for literal text
+         */
+        public boolean isExpression() {
+            return _expression;
+        }
+
+        /**
+         * Line the segment starts on.
+         *
+         * @return line number, starting from 1
+         */
+        public int getLine() {
+            return _line;
+        }
+
+        /**
+         * Column the segment starts at, which is the column of the {{ for an expression.
+         *
+         * @return column number, starting from 1
+         */
+        public int getColumn() {
+            return _column;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.JsonNode;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Call to an intrinsic function that refers to another part of the template (Ref, Fn::GetAtt or Fn::FindInMap),
+ * found in a resource or an output.
+ */
+public class IntrinsicReference {
+    public static final String REF = "Ref";
+    public static final String GET_ATT = "Fn::GetAtt";
+    public static final String FIND_IN_MAP = "Fn::FindInMap";
+
+    private static final Set<String> FUNCTIONS = ImmutableSet.of(REF, GET_ATT, FIND_IN_MAP);
+
+    private final String _section;
+    private final String _name;
+    private final String _function;
+    private final JsonNode _arguments;
+    private final NodePath _path;
+
+    public IntrinsicReference(String section, String name, String function, JsonNode arguments, NodePath path) {
+        _section = section;
+        _name = name;
+        _function = function;
+        _arguments = arguments;
+        _path = path;
+    }
+
+    /**
+     * Find every reference in a compiled resource or output, in document order.
+     * <p/>
+     * The arguments of a reference are searched as well, so a Ref used as the key of a Fn::FindInMap is found
+     * after the Fn::FindInMap itself.
+     *
+     * @param section template section of the entry, "Resources" or "Outputs"
+     * @param name entry name
+     * @param node compiled entry
+     * @param references list the references are added to
+     */
+    public static void collect(String section, String name, JsonNode node, List<IntrinsicReference> references) {
+        collect(section, name, NodePath.ROOT.append(section).append(name), node, references);
+    }
+
+    private static void collect(String section, String name, NodePath path, JsonNode node, List<IntrinsicReference> references) {
+        if (node.isObject()) {
+            if (node.size() == 1) {
+                String function = node.getFieldNames().next();
+
+                if (FUNCTIONS.contains(function)) {
+                    references.add(new IntrinsicReference(section, name, function, node.get(function), path));
+                }
+            }
+
+            for (Iterator<Map.Entry<String, JsonNode>> fields = node.getFields(); fields.hasNext(); ) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                collect(section, name, path.append(field.getKey()), field.getValue(), references);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); ++i) {
+                collect(section, name, path.append(i), node.get(i), references);
+            }
+        }
+    }
+
+    /**
+     * @return template section of the entry the reference was found in, "Resources" or "Outputs"
+     */
+    public String getSection() {
+        return _section;
+    }
+
+    /**
+     * @return name of the entry the reference was found in
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return entry the reference was found in, for messages, e.g. "resource Server"
+     */
+    public String getLocation() {
+        return String.format("%s %s", _section.equals("Outputs") ? "output" : "resource", _name);
+    }
+
+    /**
+     * @return path of the function call in the compiled template
+     */
+    public NodePath getPath() {
+        return _path;
+    }
+
+    public String getFunction() {
+        return _function;
+    }
+
+    public JsonNode getArguments() {
+        return _arguments;
+    }
+
+    /**
+     * Literal argument of the call.
+     *
+     * @param index argument index, or -1 for the only argument of a Ref
+     * @return argument text, or null if the argument is missing or is another function call
+     */
+    public String getLiteralArgument(int index) {
+        JsonNode argument = index < 0 ? _arguments : _arguments.get(index);
+        return argument != null && argument.isTextual() ? argument.getTextValue() : null;
+    }
+}
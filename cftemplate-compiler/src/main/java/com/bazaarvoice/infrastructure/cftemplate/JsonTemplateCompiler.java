@@ -1,48 +1,146 @@
 package com.bazaarvoice.infrastructure.cftemplate;
 
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.SerializationConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.node.ObjectNode;
-import org.codehaus.jackson.type.TypeReference;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * Compiles JSON CloudFormation templates to JSON.
  * <p/>
- * Performs validations on the input template.
+ * Performs validations on the input template. In streaming mode the template is compiled while it is read and
+ * the output is written one section entry at a time, so large templates are never held in memory as a whole.
+ * Streaming output keeps the section order of the input template. Only {@link #compile(File, File)} streams: the
+ * methods that return the compiled template, including {@link #compileVariants(File, Map)}, hold it in memory,
+ * so callers that want streamed variants compile each one to its output file.
  */
 public class JsonTemplateCompiler extends TemplateCompiler {
+    private boolean _streaming;
+
+    public boolean isStreaming() {
+        return _streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        _streaming = streaming;
+    }
+
     @Override
     public CompileResult compile(File inputFile, File outputFile)
             throws IOException {
+        if (_streaming) {
+            CompileResult result = compileStreaming(inputFile, outputFile);
+            writeDependencyGraph(result, outputFile);
+            return result;
+        }
+
+        return super.compile(inputFile, outputFile);
+    }
+
+    @Override
+    public CompileResult compile(File inputFile)
+            throws IOException {
+        // Let Jackson detect the encoding of the file
+        return compileTemplate(null, checkNotNull(inputFile));
+    }
+
+    @Override
+    public CompileResult compile(Reader source, File sourceFile)
+            throws IOException {
+        return compileTemplate(checkNotNull(source), checkNotNull(sourceFile));
+    }
+
+    private CompileResult compileTemplate(Reader source, File sourceFile) {
+        CompileMetrics metrics = new CompileMetrics();
         List<CompileIssue> issues = newArrayList();
-        CompileResult result = null;
         ObjectNode resultNode = null;
+        long allocated = CompileMetrics.getThreadAllocatedBytes();
+        long start = System.nanoTime();
 
         try {
-            Map<String, Object> inputData = new ObjectMapper().readValue(inputFile, new TypeReference<Map<String, Object>>() {
-            });
+            Map<String, Object> inputData = source == null
+                    ? TEMPLATE_READER.<Map<String, Object>>readValue(sourceFile)
+                    : TEMPLATE_READER.<Map<String, Object>>readValue(source);
 
             checkOverrides(inputData);
+            metrics.addPhase(CompileMetrics.READ, System.nanoTime() - start);
+            start = System.nanoTime();
 
             resultNode = compile(inputData, issues);
+            metrics.addPhase(CompileMetrics.VALIDATE, System.nanoTime() - start);
+        } catch (TooManyErrorsException ex) {
+            issues.add(ex.getIssue());
         } catch (Exception ex) {
-            issues.add(new CompileIssue(CompileIssueLevel.ERROR, ex.getMessage(), new CompileIssueLocation(inputFile)));
+            issues.add(new CompileIssue(CompileIssueLevel.ERROR, ex.getMessage(), new CompileIssueLocation(sourceFile)));
         }
 
-        result = new CompileResult(inputFile, issues);
+        CompileResult result = newResult(ImmutableList.of(sourceFile.toString()), issues, resultNode);
+        result.getMetrics().addAll(metrics);
+        result.getMetrics().addAllocatedBytes(CompileMetrics.getThreadAllocatedBytes(allocated));
+        return result;
+    }
 
-        if (resultNode != null && result.getIssues(CompileIssueLevel.ERROR).size() == 0) {
-            new ObjectMapper().configure(SerializationConfig.Feature.INDENT_OUTPUT, true).writeValue(outputFile, resultNode);
-        }
+    private CompileResult compileStreaming(File inputFile, File outputFile)
+            throws IOException {
+        List<CompileIssue> issues = newArrayList();
+        DependencyGraph resourceGraph = null;
+        long allocated = CompileMetrics.getThreadAllocatedBytes();
+        long start = System.nanoTime();
 
-        return result;
+        // Write to a temporary file next to the output so a failed compile never leaves a partial template behind
+        Files.createParentDirs(outputFile.getAbsoluteFile());
+        File tempFile = File.createTempFile(outputFile.getName(), ".tmp", outputFile.getAbsoluteFile().getParentFile());
+
+        try {
+            JsonParser parser = MAPPER.getJsonFactory().createJsonParser(inputFile);
+            JsonGenerator generator = MAPPER.getJsonFactory().createJsonGenerator(tempFile, JsonEncoding.UTF8);
+
+            if (!isCompact()) {
+                generator.useDefaultPrettyPrinter();
+            }
+
+            try {
+                resourceGraph = compile(parser, generator, issues);
+            } catch (TooManyErrorsException ex) {
+                issues.add(ex.getIssue());
+            } catch (Exception ex) {
+                issues.add(new CompileIssue(CompileIssueLevel.ERROR, ex.getMessage(), new CompileIssueLocation(inputFile)));
+            } finally {
+                Closeables.closeQuietly(parser);
+                Closeables.close(generator, false);
+            }
+
+            CompileResult result = new CompileResult(inputFile, issues, resourceGraph);
+
+            if (result.getIssues(CompileIssueLevel.ERROR).size() == 0) {
+                Files.move(tempFile, outputFile);
+                result.getMetrics().setOutputBytes(outputFile.length());
+            } else if (outputFile.exists()) {
+                // Like write(), so the output of an earlier compile is not mistaken for the result of this one
+                outputFile.delete();
+            }
+
+            // The template is read, validated and written in one pass
+            result.getMetrics().addPhase(CompileMetrics.VALIDATE, System.nanoTime() - start);
+            result.getMetrics().addAllocatedBytes(CompileMetrics.getThreadAllocatedBytes(allocated));
+
+            return result;
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
     }
 
     private void checkOverrides(Map<String, Object> template) {
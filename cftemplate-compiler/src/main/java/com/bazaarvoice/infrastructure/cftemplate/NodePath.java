@@ -0,0 +1,82 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Path from the root of a template to one of its nodes, e.g. Resources, Web, Properties, Tags, 0.
+ * <p/>
+ * Paths are immutable and share their parent, so appending a name is constant time and every child of a node
+ * reuses the path of the node. The string form is a JSON pointer (RFC 6901), e.g.
+ * {@code /Resources/Web/Properties/Tags/0}.
+ */
+public final class NodePath {
+    /**
+     * Path of the template itself.
+     */
+    public static final NodePath ROOT = new NodePath(null, "");
+
+    private final NodePath _parent;
+    private final String _name;
+
+    private NodePath(NodePath parent, String name) {
+        _parent = parent;
+        _name = name;
+    }
+
+    /**
+     * Path of a child node.
+     *
+     * @param name name of the child in this node
+     * @return child path
+     */
+    public NodePath append(String name) {
+        return new NodePath(this, checkNotNull(name));
+    }
+
+    /**
+     * Path of a list item.
+     *
+     * @param index index of the item in this list
+     * @return item path
+     */
+    public NodePath append(int index) {
+        return new NodePath(this, Integer.toString(index));
+    }
+
+    /**
+     * @return true for the path of the template itself
+     */
+    public boolean isRoot() {
+        return _parent == null;
+    }
+
+    /**
+     * @return path of the parent node, or null for the root
+     */
+    public NodePath getParent() {
+        return _parent;
+    }
+
+    /**
+     * @return name of the node in its parent, or an empty string for the root
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return JSON pointer to the node, or an empty string for the root
+     */
+    @Override
+    public String toString() {
+        return isRoot() ? "" : appendTo(new StringBuilder()).toString();
+    }
+
+    private StringBuilder appendTo(StringBuilder pointer) {
+        if (!_parent.isRoot()) {
+            _parent.appendTo(pointer);
+        }
+
+        return pointer.append('/').append(_name.replace("~", "~0").replace("/", "~1"));
+    }
+}
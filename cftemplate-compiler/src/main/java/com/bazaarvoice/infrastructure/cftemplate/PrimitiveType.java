@@ -0,0 +1,166 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Types of the literal values of resource properties, named as in the PrimitiveType of the AWS CloudFormation
+ * resource specification.
+ * <p/>
+ * Templates often give numbers and booleans as strings, and the Ruby DSL passes them as Ruby values, so each type
+ * converts the literals it accepts to the JSON node CloudFormation itself uses for the type.
+ */
+public enum PrimitiveType {
+    STRING("String", "a string") {
+        @Override
+        public JsonNode coerce(Object value) {
+            return JsonNodeFactory.instance.textNode(ObjectUtils.toString(value));
+        }
+    },
+
+    INTEGER("Integer", "an integer") {
+        @Override
+        public JsonNode coerce(Object value) {
+            return toIntegral(value);
+        }
+    },
+
+    LONG("Long", "an integer") {
+        @Override
+        public JsonNode coerce(Object value) {
+            return toIntegral(value);
+        }
+    },
+
+    DOUBLE("Double", "a number") {
+        @Override
+        public JsonNode coerce(Object value) {
+            if (value instanceof Double || value instanceof Float) {
+                return JsonNodeFactory.instance.numberNode(((Number) value).doubleValue());
+            } else if (value instanceof BigDecimal) {
+                return JsonNodeFactory.instance.numberNode((BigDecimal) value);
+            } else if (value instanceof String && DECIMAL_PATTERN.matcher((String) value).matches()) {
+                return JsonNodeFactory.instance.numberNode(new BigDecimal((String) value));
+            }
+
+            return toIntegral(value);
+        }
+    },
+
+    BOOLEAN("Boolean", "true or false") {
+        @Override
+        public JsonNode coerce(Object value) {
+            if (value instanceof Boolean) {
+                return JsonNodeFactory.instance.booleanNode((Boolean) value);
+            } else if ("true".equalsIgnoreCase(ObjectUtils.toString(value))) {
+                return JsonNodeFactory.instance.booleanNode(true);
+            } else if ("false".equalsIgnoreCase(ObjectUtils.toString(value))) {
+                return JsonNodeFactory.instance.booleanNode(false);
+            }
+
+            return null;
+        }
+    },
+
+    TIMESTAMP("Timestamp", "a timestamp") {
+        @Override
+        public JsonNode coerce(Object value) {
+            return STRING.coerce(value);
+        }
+    },
+
+    /**
+     * Free-form JSON, e.g. an IAM policy document, in which every literal keeps its own type.
+     */
+    JSON("Json", "JSON") {
+        @Override
+        public JsonNode coerce(Object value) {
+            if (value == null) {
+                return JsonNodeFactory.instance.nullNode();
+            } else if (value instanceof Boolean) {
+                return JsonNodeFactory.instance.booleanNode((Boolean) value);
+            } else if (value instanceof Number) {
+                JsonNode number = DOUBLE.coerce(value);
+                return number == null ? STRING.coerce(value) : number;
+            }
+
+            return STRING.coerce(value);
+        }
+    };
+
+    private static final Pattern INTEGER_PATTERN = Pattern.compile("^[\\+\\-]?[0-9]+$");
+    private static final Pattern DECIMAL_PATTERN = Pattern.compile("^[\\+\\-]?[0-9]+\\.[0-9]+$");
+
+    private final String _name;
+    private final String _description;
+
+    private PrimitiveType(String name, String description) {
+        _name = name;
+        _description = description;
+    }
+
+    /**
+     * Type with a name from the resource specification.
+     *
+     * @param name type name, e.g. Integer
+     * @return type, or null if the name is not a known type
+     */
+    public static PrimitiveType forName(String name) {
+        for (PrimitiveType type : values()) {
+            if (type._name.equals(name)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Convert a literal value to a JSON node of this type.
+     *
+     * @param value literal value: a string, number, boolean or null
+     * @return node, or null if the value is not a valid literal of this type
+     */
+    public abstract JsonNode coerce(Object value);
+
+    /**
+     * @return name of the type in the resource specification
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return what values of the type must be, for messages, e.g. "an integer"
+     */
+    public String getDescription() {
+        return _description;
+    }
+
+    private static JsonNode toIntegral(Object value) {
+        BigInteger integer = null;
+
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            integer = BigInteger.valueOf(((Number) value).longValue());
+        } else if (value instanceof BigInteger) {
+            integer = (BigInteger) value;
+        } else if (value instanceof String && INTEGER_PATTERN.matcher((String) value).matches()) {
+            integer = new BigInteger(((String) value).startsWith("+") ? ((String) value).substring(1) : (String) value);
+        }
+
+        if (integer == null) {
+            return null;
+        } else if (integer.bitLength() < Integer.SIZE) {
+            return JsonNodeFactory.instance.numberNode(integer.intValue());
+        } else if (integer.bitLength() < Long.SIZE) {
+            return JsonNodeFactory.instance.numberNode(integer.longValue());
+        }
+
+        return JsonNodeFactory.instance.numberNode(integer);
+    }
+}
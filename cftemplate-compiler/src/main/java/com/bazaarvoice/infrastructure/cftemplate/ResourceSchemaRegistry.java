@@ -0,0 +1,146 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Schemas of the resource types the compiler validates the properties of.
+ * <p/>
+ * Schemas are read from a resource specification in the format of the AWS CloudFormation resource
+ * specification, of which only the property names, their Required flags and primitive types, and the attribute
+ * names are used:
+ * <pre>
+ * {
+ *     "ResourceTypes": {
+ *         "AWS::EC2::EIP": {
+ *             "Properties": {
+ *                 "InstanceId": {"PrimitiveType": "String", "Required": false}
+ *             },
+ *             "Attributes": {
+ *                 "AllocationId": {}
+ *             }
+ *         }
+ *     }
+ * }
+ * </pre>
+ * Resource types that are not in the registry are not validated. A registry is immutable, so the
+ * {@link #getDefault() default registry} is read once and shared by all compilers.
+ */
+public class ResourceSchemaRegistry {
+    private static final String DEFAULT_SPECIFICATION = "resource-specification.json";
+
+    /**
+     * Registry with no resource types, which validates nothing.
+     */
+    public static final ResourceSchemaRegistry EMPTY = new ResourceSchemaRegistry(ImmutableMap.<String, ResourceTypeSchema>of());
+
+    private final Map<String, ResourceTypeSchema> _schemas;
+
+    private ResourceSchemaRegistry(Map<String, ResourceTypeSchema> schemas) {
+        _schemas = schemas;
+    }
+
+    /**
+     * Registry of the resource specification bundled with the compiler.
+     *
+     * @return shared registry
+     */
+    public static ResourceSchemaRegistry getDefault() {
+        return DefaultHolder.REGISTRY;
+    }
+
+    /**
+     * Read a registry from a resource specification. The stream is not closed.
+     *
+     * @param specification resource specification JSON
+     * @return registry of the resource types in the specification
+     */
+    public static ResourceSchemaRegistry read(InputStream specification)
+            throws IOException {
+        JsonNode resourceTypes = TemplateCompiler.MAPPER.readTree(checkNotNull(specification)).path("ResourceTypes");
+        checkArgument(resourceTypes.isObject(), "Resource specification has no ResourceTypes object");
+
+        ImmutableMap.Builder<String, ResourceTypeSchema> schemas = ImmutableMap.builder();
+
+        for (Iterator<Map.Entry<String, JsonNode>> types = resourceTypes.getFields(); types.hasNext(); ) {
+            Map.Entry<String, JsonNode> resourceType = types.next();
+            List<String> properties = newArrayList();
+            List<String> requiredProperties = newArrayList();
+            Map<String, PrimitiveType> propertyTypes = newHashMap();
+            List<String> attributes = null;
+
+            for (Iterator<Map.Entry<String, JsonNode>> fields = resourceType.getValue().path("Properties").getFields(); fields.hasNext(); ) {
+                Map.Entry<String, JsonNode> property = fields.next();
+                properties.add(property.getKey());
+
+                if (property.getValue().path("Required").asBoolean()) {
+                    requiredProperties.add(property.getKey());
+                }
+
+                PrimitiveType propertyType = PrimitiveType.forName(property.getValue().path("PrimitiveType").getTextValue());
+
+                if (propertyType != null) {
+                    propertyTypes.put(property.getKey(), propertyType);
+                }
+            }
+
+            if (resourceType.getValue().has("Attributes")) {
+                attributes = newArrayList(resourceType.getValue().get("Attributes").getFieldNames());
+            }
+
+            schemas.put(resourceType.getKey(), new ResourceTypeSchema(resourceType.getKey(), properties, requiredProperties, propertyTypes, attributes));
+        }
+
+        return new ResourceSchemaRegistry(schemas.build());
+    }
+
+    /**
+     * Schema of a resource type.
+     *
+     * @param type resource type name, e.g. AWS::EC2::Instance
+     * @return schema or null if the type is not in the registry
+     */
+    public ResourceTypeSchema get(String type) {
+        return _schemas.get(type);
+    }
+
+    /**
+     * @return names of all resource types in the registry
+     */
+    public Set<String> getTypes() {
+        return _schemas.keySet();
+    }
+
+    /**
+     * Reads the bundled specification when the default registry is first used.
+     */
+    private static class DefaultHolder {
+        private static final ResourceSchemaRegistry REGISTRY = readDefault();
+
+        private static ResourceSchemaRegistry readDefault() {
+            InputStream specification = ResourceSchemaRegistry.class.getResourceAsStream(DEFAULT_SPECIFICATION);
+
+            try {
+                return read(checkNotNull(specification, "Missing resource specification: %s", DEFAULT_SPECIFICATION));
+            } catch (IOException ex) {
+                throw Throwables.propagate(ex);
+            } finally {
+                IOUtils.closeQuietly(specification);
+            }
+        }
+    }
+}
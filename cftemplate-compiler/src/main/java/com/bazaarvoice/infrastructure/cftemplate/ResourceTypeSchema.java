@@ -0,0 +1,77 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Properties and attributes of a CloudFormation resource type, e.g. AWS::EC2::Instance.
+ * <p/>
+ * Instances are immutable and can be shared between threads.
+ *
+ * @see ResourceSchemaRegistry
+ */
+public class ResourceTypeSchema {
+    private final String _type;
+    private final Set<String> _properties;
+    private final Set<String> _requiredProperties;
+    private final Map<String, PrimitiveType> _propertyTypes;
+    private final Set<String> _attributes;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param type resource type name
+     * @param properties names of all properties of the type
+     * @param requiredProperties names of the properties every resource of the type must have
+     * @param propertyTypes types of the properties with literal values, by property name
+     * @param attributes names of the attributes Fn::GetAtt can get, or null if they are not known
+     */
+    public ResourceTypeSchema(String type, Iterable<String> properties, Iterable<String> requiredProperties, Map<String, PrimitiveType> propertyTypes, Iterable<String> attributes) {
+        _type = checkNotNull(type);
+        _properties = ImmutableSet.copyOf(properties);
+        _requiredProperties = ImmutableSet.copyOf(requiredProperties);
+        _propertyTypes = ImmutableMap.copyOf(propertyTypes);
+        _attributes = attributes == null ? null : ImmutableSet.copyOf(attributes);
+    }
+
+    public String getType() {
+        return _type;
+    }
+
+    /**
+     * @return names of all properties, in the order of the specification
+     */
+    public Set<String> getProperties() {
+        return _properties;
+    }
+
+    /**
+     * @return names of the properties every resource of the type must have
+     */
+    public Set<String> getRequiredProperties() {
+        return _requiredProperties;
+    }
+
+    /**
+     * Type of the literal values of a property. Properties without a type, e.g. lists and nested objects, are
+     * copied as they are.
+     *
+     * @param property property name
+     * @return property type, or null if the property has no primitive type
+     */
+    public PrimitiveType getPropertyType(String property) {
+        return _propertyTypes.get(property);
+    }
+
+    /**
+     * @return names of the attributes Fn::GetAtt can get, or null if they are not known
+     */
+    public Set<String> getAttributes() {
+        return _attributes;
+    }
+}
@@ -0,0 +1,487 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.jruby.CompatVersion;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Pool of warm JRuby engines with the cftemplate DSL preloaded.
+ * <p/>
+ * Each engine owns an isolated Ruby runtime ({@link LocalContextScope#SINGLETHREAD}), so engines in the
+ * pool never share state with each other. An engine is handed to one caller at a time. Templates are
+ * loaded with the wrap flag set, so top-level methods and constants defined by a template live in an
+ * anonymous module that is thrown away after the run. The Ruby files a template loads or requires are
+ * recorded, so they count as inputs of the compile like the files included with the DSL file helper. The
+ * per-template globals are reset when the engine is returned and, if the template changed the runtime in any
+ * other detectable way (global variables, loaded features, top-level constants, methods of existing modules,
+ * or constants, class variables, module instance variables or methods of the DSL that were added, reassigned or
+ * redefined), the engine is terminated instead of being reused. The values of the DSL's constants and variables
+ * are frozen, so they can not be changed in place.
+ */
+public class RubyEnginePool {
+    /**
+     * Loads the DSL and records the modules it defines in $cftemplate_dsl_modules: the modules of the constants
+     * it adds to Object and the modules nested in them. The values of the constants, class variables and instance
+     * variables of those modules are then frozen, along with the arrays, hashes and DSL objects they contain, so a
+     * template that changes one of them in place fails instead of leaking the change to the next template.
+     */
+    private static final String LOAD_SCRIPT =
+            "lambda { |constants|\n" +
+            "  require 'cftemplate'\n" +
+            "  $cftemplate_dsl_modules = {}\n" +
+            "  deep_freeze = lambda { |v|\n" +
+            "    next if Module === v || v.frozen?\n" +
+            "    case v\n" +
+            "      when String then v.freeze\n" +
+            "      when Array then v.freeze.each { |e| deep_freeze.call(e) }\n" +
+            "      when Hash then v.freeze.each { |k, e| deep_freeze.call(k); deep_freeze.call(e) }\n" +
+            "      else\n" +
+            "        next unless v.class == Object || $cftemplate_dsl_modules[v.class.__id__]\n" +
+            "        v.freeze.instance_variables.each { |i| deep_freeze.call(v.instance_variable_get(i)) }\n" +
+            "    end\n" +
+            "  }\n" +
+            "  values = (Object.constants - constants).collect { |c| Object.const_get(c) }\n" +
+            "  dsl_modules = []\n" +
+            "  until values.empty?\n" +
+            "    m = values.shift\n" +
+            "    next unless Module === m && !$cftemplate_dsl_modules[m.__id__]\n" +
+            "    $cftemplate_dsl_modules[m.__id__] = true\n" +
+            "    dsl_modules << m\n" +
+            "    m.constants(false).each { |c| values << m.const_get(c) if m.autoload?(c).nil? }\n" +
+            "  end\n" +
+            "  (Object.constants - constants).each { |c| deep_freeze.call(Object.const_get(c)) }\n" +
+            "  dsl_modules.each { |m|\n" +
+            "    m.constants(false).each { |c| deep_freeze.call(m.const_get(c)) if m.autoload?(c).nil? }\n" +
+            "    m.class_variables.each { |v| deep_freeze.call(m.class_variable_get(v)) }\n" +
+            "    m.instance_variables.each { |v| deep_freeze.call(m.instance_variable_get(v)) }\n" +
+            "  }\n" +
+            "}.call(Object.constants)";
+
+    /**
+     * Sets $cftemplate_changed when a method is added to, removed from or undefined in a module that existed
+     * when the engine started, or such a module is included in or extends another one. The modules are those
+     * reachable through constants from Object, recorded by identity in $cftemplate_modules. Modules a template
+     * creates itself are thrown away with the template, so they are not watched. JRuby calls the singleton hooks
+     * of a class on the singleton class of BasicObject, so they are defined there as well.
+     * <p/>
+     * This is what lets {@link #STATE_SCRIPT} skip the methods of the thousands of core and Java modules, which
+     * would cost more to walk after every template than starting the engine saves.
+     */
+    private static final String WATCH_SCRIPT =
+            "$cftemplate_modules = {}\n" +
+            "lambda {\n" +
+            "  reflect = lambda { |owner, name, target, *args| owner.instance_method(name).bind(target).call(*args) }\n" +
+            "  modules = [Object]\n" +
+            "  until modules.empty?\n" +
+            "    m = modules.shift\n" +
+            "    next if $cftemplate_modules[m.__id__]\n" +
+            "    $cftemplate_modules[m.__id__] = true\n" +
+            "    reflect.call(Module, :constants, m, false).each { |c|\n" +
+            "      next unless reflect.call(Module, :autoload?, m, c).nil?\n" +
+            "      v = reflect.call(Module, :const_get, m, c) rescue next\n" +
+            "      modules << v if Module === v\n" +
+            "    }\n" +
+            "  end\n" +
+            "}.call\n" +
+            "class Module\n" +
+            "  private\n" +
+            "  def method_added(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "  def method_removed(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "  def method_undefined(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "  def included(base) $cftemplate_changed = true if $cftemplate_modules[base.__id__] end\n" +
+            "  def extended(base) $cftemplate_changed = true if $cftemplate_modules[base.__id__] end\n" +
+            "end\n" +
+            "[BasicObject, BasicObject.singleton_class].each { |k|\n" +
+            "  k.class_eval {\n" +
+            "    private\n" +
+            "    def singleton_method_added(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "    def singleton_method_removed(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "    def singleton_method_undefined(name) $cftemplate_changed = true if $cftemplate_modules[__id__] end\n" +
+            "  }\n" +
+            "}\n" +
+            "$cftemplate_changed = false";
+
+    /**
+     * Ruby expression that summarizes the global state of a runtime. If the value differs before and after
+     * a template is run, the template modified the runtime and the engine can not be reused.
+     * <p/>
+     * The summary records the identity of what a template could replace rather than counts: the value of each
+     * global variable, including $cftemplate_changed from {@link #WATCH_SCRIPT}, the value of each constant of
+     * Object, and for Object and the modules of the DSL their ancestors and the value of each class variable.
+     * For the modules of the DSL, which templates use and are most likely to patch, it also records the value of
+     * each nested constant and instance variable and the owner and source location of each method, including
+     * singleton methods. Values are compared by identity, so changes made in place are caught by freezing the
+     * values of the DSL in {@link #LOAD_SCRIPT} instead. The
+     * module methods are called unbound, so Java package modules and templates that override them do not change
+     * how the runtime is inspected. Globals that Ruby sets per frame or per match, and the script name that is
+     * set for every scriptlet, are skipped.
+     */
+    private static final String STATE_SCRIPT =
+            "lambda {\n" +
+            "  reflect = lambda { |owner, name, target, *args| owner.instance_method(name).bind(target).call(*args) }\n" +
+            "  state = [$LOADED_FEATURES.length]\n" +
+            "  (global_variables - [:$_, :$~, :$!, :$@, :$?, :$&, :$`, :$', :$+, :$=, :$KCODE, :$-K, :$IGNORECASE,\n" +
+            "                       :$LAST_READ_LINE, :$LAST_MATCH_INFO, :$ERROR_INFO, :$ERROR_POSITION, :$CHILD_STATUS,\n" +
+            "                       :$MATCH, :$PREMATCH, :$POSTMATCH, :$LAST_PAREN_MATCH, :$0, :$PROGRAM_NAME]).each { |g| state << [g, eval(g.to_s).__id__] }\n" +
+            "  seen = {}\n" +
+            "  modules = [Object]\n" +
+            "  until modules.empty?\n" +
+            "    m = modules.shift\n" +
+            "    next if seen[m.__id__]\n" +
+            "    seen[m.__id__] = true\n" +
+            "    reflect.call(Module, :constants, m, false).each { |c|\n" +
+            "      next unless reflect.call(Module, :autoload?, m, c).nil?\n" +
+            "      v = reflect.call(Module, :const_get, m, c) rescue next\n" +
+            "      state << [m.__id__, c, v.__id__]\n" +
+            "      modules << v if Module === v && $cftemplate_dsl_modules[v.__id__]\n" +
+            "    }\n" +
+            "    state << reflect.call(Module, :ancestors, m).collect { |a| a.__id__ }\n" +
+            "    reflect.call(Module, :class_variables, m).each { |v| state << [m.__id__, v, reflect.call(Module, :class_variable_get, m, v).__id__] }\n" +
+            "    next unless $cftemplate_dsl_modules[m.__id__]\n" +
+            "    reflect.call(Kernel, :instance_variables, m).each { |v| state << [m.__id__, v, reflect.call(Kernel, :instance_variable_get, m, v).__id__] }\n" +
+            "    [m, reflect.call(Kernel, :singleton_class, m)].each { |k|\n" +
+            "      (reflect.call(Module, :instance_methods, k, false) + reflect.call(Module, :private_instance_methods, k, false)).each { |n|\n" +
+            "        method = reflect.call(Module, :instance_method, k, n)\n" +
+            "        state << [k.__id__, n, method.owner.__id__, method.source_location]\n" +
+            "      }\n" +
+            "    }\n" +
+            "  end\n" +
+            "  state.hash\n" +
+            "}.call";
+
+    private static final String RESET_SCRIPT = "$cftemplate_parameters = nil\n$cftemplate_output = nil\n$cftemplate_source = nil\n$cftemplate_source_file = nil\n$cftemplate_loaded_files = nil";
+
+    /**
+     * Wraps Kernel#load to record the Ruby files a template loads, resolved the way load resolves them. Files a
+     * template requires are found from the entries it adds to $LOADED_FEATURES instead, see {@link #RUN_SCRIPT}.
+     */
+    private static final String TRACK_LOADS_SCRIPT =
+            "module Kernel\n" +
+            "  alias_method :cftemplate_load, :load\n" +
+            "  private :cftemplate_load\n" +
+            "  def load(file, wrap = false)\n" +
+            "    unless $cftemplate_loaded_files.nil?\n" +
+            "      path = ($LOAD_PATH + [Dir.pwd]).collect { |dir| File.expand_path(file.to_s, dir.to_s) }.find { |f| File.file?(f) }\n" +
+            "      $cftemplate_loaded_files << path unless path.nil?\n" +
+            "    end\n" +
+            "    cftemplate_load(file, wrap)\n" +
+            "  end\n" +
+            "  private :load\n" +
+            "end";
+
+    /**
+     * Runs a template script and records the files it loaded or required in $cftemplate_loaded_files, even if
+     * it fails.
+     */
+    private static final String RUN_SCRIPT =
+            "$cftemplate_loaded_files = []\n" +
+            "lambda { |features|\n" +
+            "  begin\n" +
+            "    %s\n" +
+            "  ensure\n" +
+            "    ($LOADED_FEATURES - features).each { |f| $cftemplate_loaded_files << File.expand_path(f) if File.file?(f) }\n" +
+            "  end\n" +
+            "}.call($LOADED_FEATURES.dup)";
+
+    /**
+     * Evaluates in-memory template source in a fresh anonymous module, like a file loaded with the wrap flag, so
+     * constants and local variables the template defines do not carry over to later templates. Top-level methods
+     * of a loaded file end up on Object, where the DSL blocks can call them, so the module is included in Object
+     * once the template defines a method. The engine is then discarded, as it is after such a file.
+     */
+    private static final String EVAL_SCRIPT =
+            "lambda { |wrap|\n" +
+            "  def wrap.method_added(name)\n" +
+            "    Object.send(:include, self) unless Object.include?(self)\n" +
+            "  end\n" +
+            "  wrap.module_eval($cftemplate_source, $cftemplate_source_file, 1)\n" +
+            "}.call(Module.new)";
+
+    private static RubyEnginePool _default;
+
+    private final int _size;
+    private final BlockingQueue<Engine> _idle;
+    private int _created;
+    private boolean _closed;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param size maximum number of engines the pool will create
+     */
+    public RubyEnginePool(int size) {
+        checkArgument(size > 0, "size must be > 0");
+        _size = size;
+        _idle = new LinkedBlockingQueue<Engine>(size);
+    }
+
+    /**
+     * Get the pool shared by compilers that are not given an explicit pool.
+     *
+     * @return shared pool with a single engine
+     */
+    public static synchronized RubyEnginePool getDefault() {
+        if (_default == null) {
+            _default = new RubyEnginePool(1);
+        }
+
+        return _default;
+    }
+
+    /**
+     * Maximum number of engines the pool will create.
+     *
+     * @return pool size
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Get an engine from the pool, creating one if none are idle and the pool is not full. Blocks until an
+     * engine is available otherwise.
+     *
+     * @return engine that must be given back with {@link #release(Engine)}
+     */
+    public Engine acquire() {
+        while (true) {
+            Engine engine = _idle.poll();
+
+            if (engine != null) {
+                return engine;
+            }
+
+            boolean create;
+
+            synchronized (this) {
+                checkState(!_closed, "Pool is closed");
+                create = _created < _size;
+
+                if (create) {
+                    _created += 1;
+                }
+            }
+
+            if (create) {
+                try {
+                    engine = newEngine();
+                    return engine;
+                } finally {
+                    // Free the slot if the runtime failed to start, also when JRuby throws an Error
+                    if (engine == null) {
+                        discarded();
+                    }
+                }
+            }
+
+            // Wake up periodically in case an engine was discarded, which frees a slot for a new engine
+            try {
+                engine = _idle.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a Ruby engine", ex);
+            }
+
+            if (engine != null) {
+                return engine;
+            }
+        }
+    }
+
+    /**
+     * Give an engine back to the pool.
+     *
+     * @param engine engine previously returned from {@link #acquire()}
+     */
+    public void release(Engine engine) {
+        checkNotNull(engine);
+
+        boolean reusable = false;
+
+        try {
+            reusable = engine.reset();
+        } catch (RuntimeException ex) {
+            // The engine is discarded below
+        } finally {
+            synchronized (this) {
+                reusable = reusable && !_closed;
+            }
+
+            if (reusable) {
+                _idle.offer(engine);
+            } else {
+                discard(engine);
+            }
+        }
+    }
+
+    /**
+     * Terminate all idle engines. Engines that are in use are terminated when they are released.
+     */
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+        }
+
+        Engine engine;
+
+        while ((engine = _idle.poll()) != null) {
+            discard(engine);
+        }
+    }
+
+    /**
+     * Start a new engine.
+     *
+     * @return engine with the DSL loaded
+     */
+    Engine newEngine() {
+        return new Engine();
+    }
+
+    private void discard(Engine engine) {
+        try {
+            engine.terminate();
+        } finally {
+            discarded();
+        }
+    }
+
+    private synchronized void discarded() {
+        _created -= 1;
+    }
+
+    /**
+     * JRuby runtime with the cftemplate DSL loaded.
+     */
+    public static class Engine {
+        private final ScriptingContainer _container;
+        private final String _cleanState;
+        private long _bootNanos;
+        private long _requireNanos;
+
+        private Engine() {
+            long start = System.nanoTime();
+            _container = new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.TRANSIENT);
+            _container.getLoadPaths().add("templates");
+            _container.setCompatVersion(CompatVersion.RUBY1_9);
+
+            // The runtime starts when it is first used
+            _container.getProvider().getRuntime();
+            _bootNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+
+            _container.runScriptlet(LOAD_SCRIPT);
+            _container.runScriptlet(TRACK_LOADS_SCRIPT);
+            _container.runScriptlet(WATCH_SCRIPT);
+            _container.runScriptlet(RESET_SCRIPT);
+
+            _cleanState = state();
+            _requireNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Record the time it took to start the engine, the first time it is used.
+         *
+         * @param metrics metrics to add the {@link CompileMetrics#BOOT boot} and
+         * {@link CompileMetrics#REQUIRE require} phases to
+         * @return nanoseconds recorded, 0 if the engine was used before
+         */
+        long recordStartup(CompileMetrics metrics) {
+            long startup = _bootNanos + _requireNanos;
+
+            if (startup > 0) {
+                metrics.addPhase(CompileMetrics.BOOT, _bootNanos);
+                metrics.addPhase(CompileMetrics.REQUIRE, _requireNanos);
+                _bootNanos = 0;
+                _requireNanos = 0;
+            }
+
+            return startup;
+        }
+
+        /**
+         * Evaluate a template file.
+         *
+         * @param templateFile template to evaluate
+         * @param parameters parameter overrides available to the template as $cftemplate_parameters
+         * @param output collector available to the template as $cftemplate_output
+         */
+        public void run(File templateFile, Map<String, String> parameters, Object output) {
+            _container.put("$cftemplate_parameters", parameters);
+            _container.put("$cftemplate_output", output);
+            _container.setCurrentDirectory(templateFile.getAbsoluteFile().getParent());
+            _container.runScriptlet(String.format(RUN_SCRIPT, String.format("load(%s, true)", quote(templateFile.getAbsolutePath()))));
+        }
+
+        /**
+         * Evaluate template source held in memory.
+         *
+         * @param source template source
+         * @param sourceFile file the source is reported as; files the template includes are resolved relative
+         * to its directory
+         * @param parameters parameter overrides available to the template as $cftemplate_parameters
+         * @param output collector available to the template as $cftemplate_output
+         */
+        public void eval(String source, File sourceFile, Map<String, String> parameters, Object output) {
+            _container.put("$cftemplate_parameters", parameters);
+            _container.put("$cftemplate_output", output);
+            _container.put("$cftemplate_source", source);
+            _container.put("$cftemplate_source_file", sourceFile.getAbsolutePath());
+            _container.setCurrentDirectory(sourceFile.getAbsoluteFile().getParent());
+            _container.runScriptlet(String.format(RUN_SCRIPT, EVAL_SCRIPT));
+        }
+
+        /**
+         * Ruby files the last template loaded or required, including the template itself if it was run from its
+         * file. Available until the engine is released, also after a template failed.
+         *
+         * @return absolute paths of the files
+         */
+        public List<String> getLoadedFiles() {
+            List<String> files = newArrayList();
+            Object loadedFiles = _container.runScriptlet("$cftemplate_loaded_files || []");
+
+            for (Object file : (List<?>) loadedFiles) {
+                files.add(String.valueOf(file));
+            }
+
+            return files;
+        }
+
+        private boolean reset() {
+            _container.remove("$cftemplate_parameters");
+            _container.remove("$cftemplate_output");
+            _container.remove("$cftemplate_source");
+            _container.remove("$cftemplate_source_file");
+            _container.runScriptlet(RESET_SCRIPT);
+
+            return _cleanState.equals(state());
+        }
+
+        private String state() {
+            return String.valueOf(_container.runScriptlet(STATE_SCRIPT));
+        }
+
+        private void terminate() {
+            _container.terminate();
+        }
+
+        private static String quote(String value) {
+            return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+        }
+    }
+}
@@ -1,27 +1,26 @@
 package com.bazaarvoice.infrastructure.cftemplate;
 
 import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.SerializationConfig;
+import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.node.ObjectNode;
-import org.jruby.CompatVersion;
 import org.jruby.embed.EvalFailedException;
-import org.jruby.embed.PathType;
-import org.jruby.embed.ScriptingContainer;
 import org.jruby.exceptions.RaiseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.filterEntries;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 
 /**
  * Compiles Ruby DSL templates to CloudFormation JSON.
@@ -34,41 +33,187 @@ public class RubyTemplateCompiler extends TemplateCompiler {
         }
     };
 
+    private final RubyEnginePool _enginePool;
+
+    /**
+     * Initialize a new instance that uses the shared {@link RubyEnginePool#getDefault() default} engine pool.
+     */
+    public RubyTemplateCompiler() {
+        this(RubyEnginePool.getDefault());
+    }
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param enginePool pool of engines to evaluate templates with
+     */
+    public RubyTemplateCompiler(RubyEnginePool enginePool) {
+        _enginePool = checkNotNull(enginePool);
+    }
+
+    /**
+     * Pool of engines used to evaluate templates.
+     *
+     * @return engine pool
+     */
+    public RubyEnginePool getEnginePool() {
+        return _enginePool;
+    }
+
+    @Override
+    public CompileResult compile(File inputFile)
+            throws IOException {
+        return compileTemplate(null, checkNotNull(inputFile), getParameters());
+    }
+
     @Override
-    public CompileResult compile(File inputFile, File outputFile)
+    public CompileResult compile(Reader source, File sourceFile)
+            throws IOException {
+        return compileTemplate(IOUtils.toString(checkNotNull(source)), checkNotNull(sourceFile), getParameters());
+    }
+
+    /**
+     * Compile a template file once for each of several sets of parameter overrides.
+     * <p/>
+     * The template is evaluated only once and each set of overrides is applied to the parameter defaults of the
+     * result, unless the template reads the overrides itself. A template that does may build a different
+     * template for each set, so it is evaluated once per variant instead. The first evaluation uses the overrides
+     * of the first variant, so it serves that variant either way.
+     */
+    @Override
+    public Map<String, CompileResult> compileVariants(File inputFile, Map<String, Map<String, String>> variants)
             throws IOException {
         checkNotNull(inputFile);
-        checkNotNull(outputFile);
 
-        if (outputFile.exists()) {
-            outputFile.delete();
-        } else if (!outputFile.getParentFile().exists()) {
-            outputFile.getParentFile().mkdirs();
+        Map<String, CompileResult> results = newLinkedHashMap();
+        Iterator<Map.Entry<String, Map<String, String>>> variantIterator = variants.entrySet().iterator();
+
+        if (!variantIterator.hasNext()) {
+            return results;
         }
 
+        Map.Entry<String, Map<String, String>> firstVariant = variantIterator.next();
+        Map<String, String> firstParameters = mergeParameters(getParameters(), firstVariant.getValue());
+        CompileMetrics metrics = new CompileMetrics();
         CompileOutput output = new CompileOutput();
-        CompileResult result = null;
+        long allocated = CompileMetrics.getThreadAllocatedBytes();
+        boolean evaluated = evaluate(null, inputFile, firstParameters, output, metrics);
+
+        if (output.overridesRead) {
+            results.put(firstVariant.getKey(), compileOutput(inputFile, firstParameters, evaluated, output, metrics, allocated));
+
+            while (variantIterator.hasNext()) {
+                Map.Entry<String, Map<String, String>> variant = variantIterator.next();
+                results.put(variant.getKey(), compileTemplate(null, inputFile, mergeParameters(getParameters(), variant.getValue())));
+            }
+
+            return results;
+        }
+
+        for (Map.Entry<String, Map<String, String>> variant : variants.entrySet()) {
+            List<CompileIssue> issues = newArrayList(output.issues);
+            ObjectNode resultNode = null;
+            long start = System.nanoTime();
+
+            if (evaluated) {
+                Map<String, String> parameters = mergeParameters(getParameters(), variant.getValue());
+                resultNode = compile(templateMap(output, overrideDefaults(output.parameters, parameters)), issues);
+            }
+
+            CompileResult result = newResult(output.getFiles(inputFile), issues, resultNode);
+            result.getMetrics().addAll(metrics);
+            result.getMetrics().addPhase(CompileMetrics.VALIDATE, System.nanoTime() - start);
+            results.put(variant.getKey(), result);
+        }
+
+        // The allocations of the variants are not told apart, so each variant reports those of all of them
+        long allocatedBytes = CompileMetrics.getThreadAllocatedBytes(allocated);
+
+        for (CompileResult result : results.values()) {
+            result.getMetrics().addAllocatedBytes(allocatedBytes);
+        }
+
+        return results;
+    }
+
+    /**
+     * Evaluate and compile a template.
+     *
+     * @param source template source or null to load the template from the source file
+     * @param sourceFile template file
+     * @param parameters parameter overrides to evaluate the template with
+     * @return result of compilation
+     */
+    private CompileResult compileTemplate(String source, File sourceFile, Map<String, String> parameters) {
+        CompileMetrics metrics = new CompileMetrics();
+        CompileOutput output = new CompileOutput();
+        long allocated = CompileMetrics.getThreadAllocatedBytes();
+        boolean evaluated = evaluate(source, sourceFile, parameters, output, metrics);
+
+        return compileOutput(sourceFile, parameters, evaluated, output, metrics, allocated);
+    }
+
+    /**
+     * Compile an evaluated template with the parameter overrides it was evaluated with applied to its defaults.
+     */
+    private CompileResult compileOutput(File sourceFile, Map<String, String> parameters, boolean evaluated,
+                                        CompileOutput output, CompileMetrics metrics, long allocated) {
         ObjectNode resultNode = null;
 
+        if (evaluated) {
+            long start = System.nanoTime();
+            resultNode = compile(templateMap(output, overrideDefaults(output.parameters, parameters)), output.issues);
+            metrics.addPhase(CompileMetrics.VALIDATE, System.nanoTime() - start);
+        }
+
+        CompileResult result = newResult(output.getFiles(sourceFile), output.issues, resultNode);
+        result.getMetrics().addAll(metrics);
+        result.getMetrics().addAllocatedBytes(CompileMetrics.getThreadAllocatedBytes(allocated));
+        return result;
+    }
+
+    /**
+     * Evaluate a template with a set of parameter overrides.
+     *
+     * @param source template source or null to load the template from the source file
+     * @param sourceFile template file
+     * @param parameters parameter overrides the template can read
+     * @param output collector for the evaluated template
+     * @param metrics metrics to record the time spent in each phase in
+     * @return true if the template was evaluated, false if evaluation failed and the error was added to the output
+     */
+    private boolean evaluate(String source, File sourceFile, Map<String, String> parameters, CompileOutput output,
+                             CompileMetrics metrics) {
+        long start = System.nanoTime();
+
         try {
-            ScriptingContainer engine = new ScriptingContainer();
-            engine.getLoadPaths().add("templates");
-            engine.put("$cftemplate_parameters", Maps.filterEntries(getParameters(), NULL_VALUE));
-            engine.put("$cftemplate_output", output);
-            engine.setCurrentDirectory(inputFile.getParent());
-            engine.setCompatVersion(CompatVersion.RUBY1_9);
-            engine.runScriptlet("require 'cftemplate'");
-            engine.runScriptlet(PathType.ABSOLUTE, inputFile.getAbsolutePath());
-
-            Map<String, Object> templateMap = newHashMap();
-            templateMap.put("AWSTemplateFormatVersion", output.version);
-            templateMap.put("Description", output.description);
-            templateMap.put("Parameters", output.parameters);
-            templateMap.put("Mappings", output.mappings);
-            templateMap.put("Outputs", output.outputs);
-            templateMap.put("Resources", output.resources);
-
-            resultNode = compile(templateMap, output.issues);
+            RubyEnginePool.Engine engine = _enginePool.acquire();
+
+            try {
+                long startup = engine.recordStartup(metrics);
+                long evaluateStart = System.nanoTime();
+
+                metrics.addPhase(CompileMetrics.ACQUIRE, evaluateStart - start - startup);
+                start = evaluateStart;
+
+                try {
+                    if (source == null) {
+                        engine.run(sourceFile, Maps.filterEntries(parameters, NULL_VALUE), output);
+                    } else {
+                        engine.eval(source, sourceFile, Maps.filterEntries(parameters, NULL_VALUE), output);
+                    }
+                } finally {
+                    metrics.addPhase(CompileMetrics.EVALUATE, System.nanoTime() - start - output.convertNanos);
+                    metrics.addPhase(CompileMetrics.CONVERT, output.convertNanos);
+
+                    // Also the files of a failed template, so it is compiled again when one of them changes
+                    output.loadedFiles.addAll(engine.getLoadedFiles());
+                }
+            } finally {
+                _enginePool.release(engine);
+            }
+
+            return true;
         } catch (EvalFailedException ex) {
             CompileIssueLocation location = null;
 
@@ -79,14 +224,37 @@ public class RubyTemplateCompiler extends TemplateCompiler {
             }
 
             output.issues.add(new CompileIssue(CompileIssueLevel.ERROR, ex.getMessage(), location));
+            return false;
         }
+    }
+
+    private static Map<String, Object> templateMap(CompileOutput output, Map<String, ?> parameters) {
+        Map<String, Object> templateMap = newHashMap();
+        templateMap.put("AWSTemplateFormatVersion", output.version);
+        templateMap.put("Description", output.description);
+        templateMap.put("Parameters", parameters);
+        templateMap.put("Mappings", output.mappings);
+        templateMap.put("Outputs", output.outputs);
+        templateMap.put("Resources", output.resources);
+        return templateMap;
+    }
 
-        result = new CompileResult(output.getFiles(inputFile), output.issues);
+    /**
+     * Copy evaluated parameters with the defaults replaced by overrides. The DSL leaves the defaults alone so that
+     * one evaluation can serve several sets of overrides.
+     */
+    private static Map<String, Map<String, Object>> overrideDefaults(Map<String, ? extends Map<String, ?>> parameters, Map<String, String> overrides) {
+        Map<String, Map<String, Object>> result = newLinkedHashMap();
 
-        if (resultNode != null && result.getIssues(CompileIssueLevel.ERROR).size() == 0) {
-            new ObjectMapper()
-                    .configure(SerializationConfig.Feature.INDENT_OUTPUT, true)
-                    .writeValue(outputFile, resultNode);
+        for (Map.Entry<String, ? extends Map<String, ?>> parameter : parameters.entrySet()) {
+            Map<String, Object> parameterCopy = newLinkedHashMap(parameter.getValue());
+            String override = overrides.get(parameter.getKey());
+
+            if (override != null) {
+                parameterCopy.put("Default", override);
+            }
+
+            result.put(parameter.getKey(), parameterCopy);
         }
 
         return result;
@@ -95,47 +263,59 @@ public class RubyTemplateCompiler extends TemplateCompiler {
     public static class CompileOutput {
         public String description;
         public String version;
+        public boolean overridesRead;
 
         public final List<String> files = newArrayList();
 
-        public final Map<String, Map<String, String>> parameters = newLinkedHashMap();
-        public final Map<String, Map<String, Map<String, Object>>> mappings = newLinkedHashMap();
+        /**
+         * Absolute paths of the Ruby files the template loaded or required.
+         */
+        public final List<String> loadedFiles = newArrayList();
+
+        public final Map<String, Map<String, Object>> parameters = newLinkedHashMap();
+        public final Map<String, Map<String, Object>> mappings = newLinkedHashMap();
         public final Map<String, Map<String, Object>> outputs = newLinkedHashMap();
         public final Map<String, Map<String, Object>> resources = newLinkedHashMap();
 
         public final List<CompileIssue> issues = newArrayList();
 
-        private static <T> T clone(T obj) {
-            if (obj instanceof Map) {
-                Map<String, Object> copy = newLinkedHashMap();
-
-                for (Map.Entry<String, Object> entry : ((Map<String, Object>) obj).entrySet()) {
-                    copy.put(entry.getKey(), clone(entry.getValue()));
-                }
-
-                return (T) copy;
-            } else if (obj instanceof Object[]) {
-                List<Object> copy = newArrayList();
-
-                for (Object value : ((Object[]) obj)) {
-                    copy.add(clone(value));
-                }
-
-                return (T) Iterables.toArray(copy, (Class) obj.getClass().getComponentType());
-            } else {
-                return obj;
+        /**
+         * Time spent converting values from the DSL, which is part of the time spent evaluating the template.
+         */
+        private long convertNanos;
+
+        /**
+         * Copy a hash from the DSL, which may change it after it has been added.
+         *
+         * @param strings true to convert numbers, booleans and symbols to strings, as the sections that only
+         * hold strings always have
+         */
+        private Map<String, Object> convert(Object value, boolean strings) {
+            long start = System.nanoTime();
+
+            try {
+                return strings ? RubyValueConverter.convertMapToStrings(value) : RubyValueConverter.convertMap(value);
+            } finally {
+                convertNanos += System.nanoTime() - start;
             }
         }
 
         public List<String> getFiles(File main) {
-            List<String> fileList = newArrayList(main.toString());
+            Set<String> fileList = newLinkedHashSet();
             File mainDir = main.getParentFile();
+            fileList.add(main.toString());
 
             for (String file : files) {
                 fileList.add(new File(mainDir, file).toString());
             }
-            
-            return fileList;
+
+            for (String file : loadedFiles) {
+                if (!new File(file).equals(main.getAbsoluteFile())) {
+                    fileList.add(file);
+                }
+            }
+
+            return newArrayList(fileList);
         }
 
         // Called from cftemplate.rb
@@ -145,8 +325,8 @@ public class RubyTemplateCompiler extends TemplateCompiler {
         }
 
         // Called from cftemplate.rb
-        public void addParameter(String caller, String name, Map<String, String> value) {
-            Map<String, String> args = clone(value); // Must copy the map, otherwise errors occur later
+        public void addParameter(String caller, String name, Object value) {
+            Map<String, Object> args = convert(value, true);
 
             if (parameters.containsKey(name)) {
                 error(caller, "Duplicate parameter name: %s", name);
@@ -156,8 +336,8 @@ public class RubyTemplateCompiler extends TemplateCompiler {
         }
 
         // Called from cftemplate.rb
-        public void addMapping(String caller, String name, Map<String, Map<String, Object>> value) {
-            Map<String, Map<String, Object>> mapValue = clone(value); // Must copy the map, otherwise errors occur later
+        public void addMapping(String caller, String name, Object value) {
+            Map<String, Object> mapValue = convert(value, true);
 
             if (mappings.containsKey(name)) {
                 error(caller, "Duplicate mapping name: %s", name);
@@ -167,8 +347,8 @@ public class RubyTemplateCompiler extends TemplateCompiler {
         }
 
         // Called from cftemplate.rb
-        public void addOutput(String caller, String name, Map<String, Object> value) {
-            Map<String, Object> args = clone(value); // Must copy the map, otherwise errors occur later
+        public void addOutput(String caller, String name, Object value) {
+            Map<String, Object> args = convert(value, true);
 
             if (outputs.containsKey(name)) {
                 error(caller, "Duplicate output name: %s", name);
@@ -178,8 +358,8 @@ public class RubyTemplateCompiler extends TemplateCompiler {
         }
 
         // Called from cftemplate.rb
-        public void addResource(String caller, String name, Map<String, Object> value) {
-            Map<String, Object> args = clone(value); // Must copy the map, otherwise errors occur later
+        public void addResource(String caller, String name, Object value) {
+            Map<String, Object> args = convert(value, false);
 
             if (resources.containsKey(name)) {
                 error(caller, "Duplicate resource name: %s", name);
@@ -205,11 +385,22 @@ public class RubyTemplateCompiler extends TemplateCompiler {
             return new CompileIssueLocation(file, line);
         }
 
+        // Called from cftemplate.rb
+        public void readOverrides() {
+            overridesRead = true;
+        }
+
         // Called from cftemplate.rb
         public void addFile(String value) {
             files.add(value);
         }
 
+        // Called from cftemplate.rb
+        public InterpolatedFile readFile(String path)
+                throws IOException {
+            return InterpolatedFile.read(new File(path));
+        }
+
         // Called from cftemplate.rb
         public void error(String caller, String message) {
             issues.add(new CompileIssue(CompileIssueLevel.ERROR, message, parseCaller(caller)));
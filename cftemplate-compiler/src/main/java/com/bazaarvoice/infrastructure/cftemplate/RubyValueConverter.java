@@ -0,0 +1,187 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Converts values built by the Ruby DSL to the form templates are compiled from: maps with string keys, lists,
+ * strings, numbers, booleans and null, which is also the form a JSON template is read into.
+ * <p/>
+ * Ruby hashes and arrays are walked once, directly, instead of through the {@link Map} and {@link List} views
+ * JRuby gives them, which convert each value again every time it is read. The result shares nothing with the
+ * Ruby objects, so the DSL can keep changing them after they have been added to the template.
+ * <p/>
+ * Parameters, mappings and outputs only hold strings in CloudFormation, and the DSL has always converted their
+ * values with Ruby's to_s, so {@link #convertMapToStrings(Object)} keeps that formatting, e.g. 1.0e+20 rather
+ * than Java's 1.0E20.
+ */
+public final class RubyValueConverter {
+    private static final RubyValueConverter NATIVE = new RubyValueConverter(false);
+    private static final RubyValueConverter STRINGS = new RubyValueConverter(true);
+
+    private final boolean _scalarsAsStrings;
+
+    private RubyValueConverter(boolean scalarsAsStrings) {
+        _scalarsAsStrings = scalarsAsStrings;
+    }
+
+    /**
+     * Convert a value.
+     *
+     * @param value Ruby object, or a value that was already converted to Java, e.g. by JRuby
+     * @return converted value
+     * @throws org.jruby.exceptions.RaiseException if the value contains a Ruby object that is not a hash, array,
+     * enumerable, string, symbol, number, boolean or nil, like the DSL used to raise
+     */
+    public static Object convert(Object value) {
+        return NATIVE.convertValue(value);
+    }
+
+    /**
+     * Convert a hash.
+     *
+     * @param value Ruby hash, or a map that was already converted to Java
+     * @return converted map
+     * @throws IllegalArgumentException if the value is not a hash
+     * @throws org.jruby.exceptions.RaiseException if the hash contains a value {@link #convert(Object)} rejects
+     */
+    public static Map<String, Object> convertMap(Object value) {
+        return NATIVE.convertMapValue(value);
+    }
+
+    /**
+     * Convert a hash, like {@link #convertMap(Object)}, but with every number, boolean and symbol in it
+     * converted to a string with Ruby's to_s.
+     *
+     * @param value Ruby hash, or a map that was already converted to Java
+     * @return converted map
+     * @throws IllegalArgumentException if the value is not a hash
+     * @throws org.jruby.exceptions.RaiseException if the hash contains a value {@link #convert(Object)} rejects
+     */
+    public static Map<String, Object> convertMapToStrings(Object value) {
+        return STRINGS.convertMapValue(value);
+    }
+
+    private Map<String, Object> convertMapValue(Object value) {
+        if (value instanceof RubyHash) {
+            return convertHash((RubyHash) value);
+        } else if (value instanceof Map) {
+            return convertJavaMap((Map<?, ?>) value);
+        }
+
+        throw new IllegalArgumentException("Expected a hash: " + value);
+    }
+
+    private Object convertValue(Object value) {
+        if (value instanceof IRubyObject) {
+            return convertRuby((IRubyObject) value);
+        } else if (value instanceof Map) {
+            return convertJavaMap((Map<?, ?>) value);
+        } else if (value instanceof Object[]) {
+            List<Object> result = newArrayListWithCapacity(((Object[]) value).length);
+
+            for (Object item : (Object[]) value) {
+                result.add(convertValue(item));
+            }
+
+            return result;
+        } else if (value instanceof Iterable) {
+            List<Object> result = newArrayList();
+
+            for (Object item : (Iterable<?>) value) {
+                result.add(convertValue(item));
+            }
+
+            return result;
+        } else if (_scalarsAsStrings && value != null) {
+            return value.toString();
+        }
+
+        return value;
+    }
+
+    private Map<String, Object> convertJavaMap(Map<?, ?> value) {
+        Map<String, Object> result = newLinkedHashMap();
+
+        for (Map.Entry<?, ?> entry : value.entrySet()) {
+            result.put(ObjectUtils.toString(convertValue(entry.getKey())), convertValue(entry.getValue()));
+        }
+
+        return result;
+    }
+
+    private Map<String, Object> convertHash(RubyHash value) {
+        final Map<String, Object> result = newLinkedHashMap();
+
+        value.visitAll(new RubyHash.Visitor() {
+            @Override
+            public void visit(IRubyObject key, IRubyObject entryValue) {
+                result.put(convertKey(key), convertRuby(entryValue));
+            }
+        });
+
+        return result;
+    }
+
+    private Object convertRuby(IRubyObject value) {
+        if (value.isNil()) {
+            return null;
+        } else if (value instanceof RubyString) {
+            return ((RubyString) value).decodeString();
+        } else if (value instanceof RubySymbol) {
+            return value.asJavaString();
+        } else if (_scalarsAsStrings && (value instanceof RubyNumeric || value instanceof RubyBoolean)) {
+            return value.asString().decodeString();
+        } else if (value instanceof RubyFixnum) {
+            return ((RubyFixnum) value).getLongValue();
+        } else if (value instanceof RubyFloat) {
+            return ((RubyFloat) value).getDoubleValue();
+        } else if (value instanceof RubyBignum) {
+            return ((RubyBignum) value).getValue();
+        } else if (value instanceof RubyBoolean) {
+            return value.isTrue();
+        } else if (value instanceof RubyHash) {
+            return convertHash((RubyHash) value);
+        } else if (value instanceof RubyArray) {
+            RubyArray array = (RubyArray) value;
+            List<Object> result = newArrayListWithCapacity(array.getLength());
+
+            for (int i = 0; i < array.getLength(); ++i) {
+                result.add(convertRuby(array.eltInternal(i)));
+            }
+
+            return result;
+        } else if (value.getMetaClass().hasModuleInHierarchy(value.getRuntime().getEnumerable())) {
+            return convertRuby(value.callMethod(value.getRuntime().getCurrentContext(), "to_a"));
+        }
+
+        throw value.getRuntime().newRuntimeError("Unsupported value type: " + value.asString().decodeString());
+    }
+
+    private static String convertKey(IRubyObject key) {
+        if (key instanceof RubyString) {
+            return ((RubyString) key).decodeString();
+        } else if (key instanceof RubySymbol) {
+            return key.asJavaString();
+        }
+
+        // Hash keys are always names in a template, like the to_s the DSL used to apply
+        return key.asString().decodeString();
+    }
+}
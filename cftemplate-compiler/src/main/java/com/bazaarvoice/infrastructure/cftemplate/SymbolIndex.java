@@ -0,0 +1,181 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * Names that intrinsic function calls in a template can refer to: parameters, resources with their types, mappings
+ * with their keys, and the pseudo parameters CloudFormation defines for every stack.
+ * <p/>
+ * Names keep the order they were added in, so suggestions for misspelled names are stable.
+ */
+public class SymbolIndex {
+    /**
+     * Pseudo parameters that can be referenced without being declared.
+     */
+    public static final Set<String> PSEUDO_PARAMETERS = ImmutableSet.of("AWS::NotificationARNs", "AWS::Region", "AWS::StackId", "AWS::StackName");
+
+    private final Set<String> _parameters = newLinkedHashSet();
+    private final Map<String, String> _resources = newLinkedHashMap();
+    private final Map<String, Map<String, Set<String>>> _mappings = newLinkedHashMap();
+
+    /**
+     * Index the parameters, resources and mappings of a compiled template.
+     *
+     * @param templateNode compiled template
+     * @return index of the template
+     */
+    public static SymbolIndex of(ObjectNode templateNode) {
+        SymbolIndex index = new SymbolIndex();
+
+        for (String name : fieldNames(templateNode.get("Parameters"))) {
+            index.addParameter(name);
+        }
+
+        JsonNode resourcesNode = templateNode.get("Resources");
+
+        for (String name : fieldNames(resourcesNode)) {
+            index.addResource(name, resourcesNode.get(name).path("Type").getTextValue());
+        }
+
+        JsonNode mappingsNode = templateNode.get("Mappings");
+
+        for (String name : fieldNames(mappingsNode)) {
+            index.addMapping(name, mappingsNode.get(name));
+        }
+
+        return index;
+    }
+
+    public void addParameter(String name) {
+        _parameters.add(name);
+    }
+
+    /**
+     * Add a resource.
+     *
+     * @param name resource name
+     * @param type resource type, e.g. AWS::EC2::Instance
+     */
+    public void addResource(String name, String type) {
+        _resources.put(name, type);
+    }
+
+    /**
+     * Add a mapping. Only the names of its keys and values are kept.
+     *
+     * @param name mapping name
+     * @param mappingNode compiled mapping
+     */
+    public void addMapping(String name, JsonNode mappingNode) {
+        Map<String, Set<String>> keys = newLinkedHashMap();
+
+        for (String key : fieldNames(mappingNode)) {
+            keys.put(key, ImmutableSet.copyOf(fieldNames(mappingNode.get(key))));
+        }
+
+        _mappings.put(name, keys);
+    }
+
+    public boolean hasParameter(String name) {
+        return _parameters.contains(name);
+    }
+
+    public boolean hasResource(String name) {
+        return _resources.containsKey(name);
+    }
+
+    /**
+     * @param name resource name
+     * @return type of the resource, or null if the resource does not exist
+     */
+    public String getResourceType(String name) {
+        return _resources.get(name);
+    }
+
+    public boolean hasMapping(String name) {
+        return _mappings.containsKey(name);
+    }
+
+    /**
+     * Check whether a name can be the target of a Ref.
+     *
+     * @param name name to check
+     * @return true for parameters, resources and pseudo parameters
+     */
+    public boolean isRefTarget(String name) {
+        return _parameters.contains(name) || _resources.containsKey(name) || PSEUDO_PARAMETERS.contains(name);
+    }
+
+    public Iterable<String> getRefTargets() {
+        return Iterables.concat(_parameters, _resources.keySet(), PSEUDO_PARAMETERS);
+    }
+
+    public Set<String> getParameters() {
+        return Collections.unmodifiableSet(_parameters);
+    }
+
+    public Set<String> getResources() {
+        return Collections.unmodifiableSet(_resources.keySet());
+    }
+
+    public Set<String> getMappings() {
+        return Collections.unmodifiableSet(_mappings.keySet());
+    }
+
+    /**
+     * Top level keys of a mapping.
+     *
+     * @param mapping mapping name
+     * @return key names, empty if the mapping does not exist
+     */
+    public Set<String> getMappingKeys(String mapping) {
+        Map<String, Set<String>> keys = _mappings.get(mapping);
+        return keys == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(keys.keySet());
+    }
+
+    /**
+     * Value names under a key of a mapping.
+     *
+     * @param mapping mapping name
+     * @param key key name, or null for the value names under any key
+     * @return value names, empty if the mapping or key does not exist
+     */
+    public Set<String> getMappingValues(String mapping, String key) {
+        Map<String, Set<String>> keys = _mappings.get(mapping);
+
+        if (keys == null) {
+            return Collections.emptySet();
+        } else if (key != null) {
+            Set<String> values = keys.get(key);
+            return values == null ? Collections.<String>emptySet() : values;
+        }
+
+        Set<String> values = newLinkedHashSet();
+
+        for (Set<String> keyValues : keys.values()) {
+            values.addAll(keyValues);
+        }
+
+        return values;
+    }
+
+    private static Iterable<String> fieldNames(final JsonNode node) {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return node == null ? Collections.<String>emptyList().iterator() : node.getFieldNames();
+            }
+        };
+    }
+}
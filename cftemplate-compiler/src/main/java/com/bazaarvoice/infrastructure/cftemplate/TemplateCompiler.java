@@ -1,30 +1,50 @@
 package com.bazaarvoice.infrastructure.cftemplate;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ForwardingList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import org.apache.commons.lang3.ArrayUtils;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.type.TypeReference;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Deque;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Queues.newArrayDeque;
+import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Sets.newHashSet;
 import static java.util.Collections.emptyList;
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -34,16 +54,217 @@ import static org.apache.commons.lang3.StringUtils.isEmpty;
  * Compiles and verifies AWS CloudFormation templates.
  */
 public abstract class TemplateCompiler {
+    private static final String VERSION_RESOURCE = "/cftemplate-compiler.properties";
+    private static String _version;
+
+    /**
+     * Mapper shared by all compilers. It is never reconfigured after construction, which makes it safe to use
+     * from any thread, and sharing it keeps Jackson's serializer and deserializer caches warm across compiles.
+     */
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Reader for templates and template entries, which keeps the order of the keys.
+     */
+    protected static final ObjectReader TEMPLATE_READER = MAPPER.reader(new TypeReference<LinkedHashMap<String, Object>>() {
+    });
+
+    static final ObjectWriter INDENTED_WRITER = MAPPER.writerWithDefaultPrettyPrinter();
+    static final ObjectWriter COMPACT_WRITER = MAPPER.writer();
+
     private Map<String, String> _parameters = newHashMap();
+    private boolean _compact;
+    private DependencyGraphFormat _dependencyGraphFormat;
+    private ResourceSchemaRegistry _resourceSchemas = ResourceSchemaRegistry.getDefault();
+    private int _maxErrors;
+
+    /**
+     * Version of the compiler library.
+     * <p/>
+     * Includes the build timestamp, so output from a rebuilt snapshot can be told apart from older output.
+     *
+     * @return version string, e.g. 0.0.1-SNAPSHOT (20121101-1530)
+     */
+    public static synchronized String getVersion() {
+        if (_version == null) {
+            Properties properties = new Properties();
+            InputStream stream = TemplateCompiler.class.getResourceAsStream(VERSION_RESOURCE);
+
+            try {
+                if (stream != null) {
+                    properties.load(stream);
+                }
+            } catch (IOException ex) {
+                // Ignore, version is unknown
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+
+            _version = String.format("%s (%s)", properties.getProperty("version", "unknown"), properties.getProperty("build", "unknown"));
+        }
+
+        return _version;
+    }
 
     /**
      * Compile a template file to CloudFormation JSON.
+     * <p/>
+     * Any existing output file is deleted first and nothing is written if the compile fails.
      *
      * @param inputFile template file to compile
      * @param outputFile file to write the CloudFormation JSON to
      * @return result of compilation
      */
-    public abstract CompileResult compile(File inputFile, File outputFile)
+    public CompileResult compile(File inputFile, File outputFile)
+            throws IOException {
+        checkNotNull(inputFile);
+        checkNotNull(outputFile);
+
+        CompileResult result = compile(inputFile);
+        write(result, outputFile);
+        writeDependencyGraph(result, outputFile);
+        return result;
+    }
+
+    /**
+     * Compile a template file once for each of several sets of parameter overrides.
+     * <p/>
+     * Each set is applied on top of the compiler's own {@link #getParameters() parameter overrides}.
+     *
+     * @param inputFile template file to compile
+     * @param variants parameter overrides for each variant, by variant name
+     * @return result of compilation for each variant, by variant name in the order of the variants
+     */
+    public Map<String, CompileResult> compileVariants(File inputFile, Map<String, Map<String, String>> variants)
+            throws IOException {
+        checkNotNull(inputFile);
+
+        Map<String, String> parameters = _parameters;
+        Map<String, CompileResult> results = newLinkedHashMap();
+
+        try {
+            for (Map.Entry<String, Map<String, String>> variant : variants.entrySet()) {
+                _parameters = mergeParameters(parameters, variant.getValue());
+                results.put(variant.getKey(), compile(inputFile));
+            }
+        } finally {
+            _parameters = parameters;
+        }
+
+        return results;
+    }
+
+    /**
+     * Write the compiled template of a result to a file.
+     * <p/>
+     * Any existing file is deleted first and nothing is written if the compile failed.
+     *
+     * @param result result of compilation
+     * @param outputFile file to write the CloudFormation JSON to
+     */
+    public static void write(CompileResult result, File outputFile)
+            throws IOException {
+        long start = System.nanoTime();
+
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+
+        byte[] template = result.getTemplateBytes();
+
+        if (template != null) {
+            Files.createParentDirs(outputFile.getAbsoluteFile());
+            Files.write(template, outputFile);
+            result.getMetrics().addPhase(CompileMetrics.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Write the resource dependency graph of a result next to the compiled template, in the
+     * {@link #getDependencyGraphFormat() dependency graph format} of this compiler.
+     * <p/>
+     * Any existing graph file is deleted first and nothing is written if the compile failed or no format is set.
+     *
+     * @param result result of compilation
+     * @param outputFile file the compiled template was written to
+     */
+    public void writeDependencyGraph(CompileResult result, File outputFile)
+            throws IOException {
+        if (_dependencyGraphFormat != null) {
+            File graphFile = _dependencyGraphFormat.getGraphFile(outputFile);
+
+            if (graphFile.exists()) {
+                graphFile.delete();
+            }
+
+            DependencyGraph graph = result.getResourceGraph();
+
+            if (graph != null) {
+                _dependencyGraphFormat.write(graph, graphFile);
+            }
+        }
+    }
+
+    /**
+     * Apply a set of parameter overrides on top of another. Overrides with null values are ignored.
+     *
+     * @param parameters base parameter overrides
+     * @param overrides parameter overrides to apply
+     * @return combined parameter overrides
+     */
+    protected static Map<String, String> mergeParameters(Map<String, String> parameters, Map<String, String> overrides) {
+        Map<String, String> result = newHashMap(parameters);
+
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            if (override.getValue() != null) {
+                result.put(override.getKey(), override.getValue());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Compile a template file without writing the output to disk.
+     *
+     * @param inputFile template file to compile
+     * @return result of compilation, including the compiled template
+     */
+    public CompileResult compile(File inputFile)
+            throws IOException {
+        checkNotNull(inputFile);
+
+        Reader source = new InputStreamReader(new FileInputStream(inputFile), Charsets.UTF_8);
+
+        try {
+            return compile(source, inputFile);
+        } finally {
+            Closeables.closeQuietly(source);
+        }
+    }
+
+    /**
+     * Compile a template held in memory.
+     *
+     * @param source template source
+     * @param sourceFile file the source is reported as in compile issues. Files the template includes are
+     * resolved relative to its directory. The file does not need to exist.
+     * @return result of compilation, including the compiled template
+     */
+    public CompileResult compile(String source, File sourceFile)
+            throws IOException {
+        return compile(new StringReader(checkNotNull(source)), sourceFile);
+    }
+
+    /**
+     * Compile a template read from a stream. The reader is not closed.
+     *
+     * @param source template source
+     * @param sourceFile file the source is reported as in compile issues. Files the template includes are
+     * resolved relative to its directory. The file does not need to exist.
+     * @return result of compilation, including the compiled template
+     */
+    public abstract CompileResult compile(Reader source, File sourceFile)
             throws IOException;
 
     /**
@@ -67,6 +288,107 @@ public abstract class TemplateCompiler {
         _parameters = checkNotNull(parameters);
     }
 
+    /**
+     * Whether compiled templates are written without indentation.
+     *
+     * @return true for compact output, false for indented output
+     */
+    public boolean isCompact() {
+        return _compact;
+    }
+
+    /**
+     * Set whether compiled templates are written without indentation. Default is indented output.
+     *
+     * @param compact true for compact output, false for indented output
+     */
+    public void setCompact(boolean compact) {
+        _compact = compact;
+    }
+
+    /**
+     * Format the resource dependency graph of each compiled template is written in, next to the template.
+     *
+     * @return graph format, or null if no graph is written
+     */
+    public DependencyGraphFormat getDependencyGraphFormat() {
+        return _dependencyGraphFormat;
+    }
+
+    /**
+     * Set the format the resource dependency graph of each compiled template is written in, next to the
+     * template. Default is to write no graph.
+     *
+     * @param dependencyGraphFormat graph format, or null to write no graph
+     */
+    public void setDependencyGraphFormat(DependencyGraphFormat dependencyGraphFormat) {
+        _dependencyGraphFormat = dependencyGraphFormat;
+    }
+
+    /**
+     * Schemas the properties of resources are validated against.
+     *
+     * @return resource schemas
+     */
+    public ResourceSchemaRegistry getResourceSchemas() {
+        return _resourceSchemas;
+    }
+
+    /**
+     * Set the schemas the properties of resources are validated against. Missing required properties and
+     * values of the wrong type are errors, while properties the schemas do not know are only warnings, as the
+     * specification may be older than the resource types it describes. Default is the
+     * {@link ResourceSchemaRegistry#getDefault() bundled resource specification}.
+     *
+     * @param resourceSchemas resource schemas, {@link ResourceSchemaRegistry#EMPTY} to validate no properties
+     */
+    public void setResourceSchemas(ResourceSchemaRegistry resourceSchemas) {
+        _resourceSchemas = checkNotNull(resourceSchemas);
+    }
+
+    /**
+     * Number of errors after which a template is no longer validated.
+     *
+     * @return maximum number of errors, or 0 to validate the whole template
+     */
+    public int getMaxErrors() {
+        return _maxErrors;
+    }
+
+    /**
+     * Set the number of errors after which a template is no longer validated, so a template that is broken
+     * throughout reports its first errors quickly. Errors from evaluating a Ruby template count towards it. A
+     * template that stopped early has a warning saying so after its errors. Default is to validate the whole
+     * template.
+     *
+     * @param maxErrors maximum number of errors, or 0 to validate the whole template
+     */
+    public void setMaxErrors(int maxErrors) {
+        checkArgument(maxErrors >= 0, "maxErrors must be >= 0");
+        _maxErrors = maxErrors;
+    }
+
+    /**
+     * Writer for compiled templates in the output format of this compiler.
+     *
+     * @return shared writer
+     */
+    protected ObjectWriter getWriter() {
+        return _compact ? COMPACT_WRITER : INDENTED_WRITER;
+    }
+
+    /**
+     * Create the result of a compile, which serializes the template in the output format of this compiler.
+     *
+     * @param files files that were part of the compilation unit
+     * @param issues compilation issues
+     * @param template compiled template or null if the compile failed
+     * @return result of compilation
+     */
+    protected CompileResult newResult(Iterable<String> files, Iterable<CompileIssue> issues, ObjectNode template) {
+        return new CompileResult(files, issues, template, getWriter());
+    }
+
     private static class TemplateValue {
         public final String stringValue;
         public final Double numericValue;
@@ -87,16 +409,6 @@ public abstract class TemplateCompiler {
         }
     }
 
-    private static class NodePathEntry {
-        public final String name;
-        public final Map<String, Object> node;
-
-        public NodePathEntry(String name, Map<String, Object> node) {
-            this.name = name;
-            this.node = node;
-        }
-    }
-
     private static abstract class NodeCompiler {
         private static final int MAX_DESCRIPTION_LENGTH = 4000;
         private static final Pattern LOGICAL_NAME_PATTERN = Pattern.compile("^[A-Za-z0-9]+$");
@@ -105,7 +417,7 @@ public abstract class TemplateCompiler {
 
         protected final List<CompileIssue> _issues;
 
-        protected NodePathEntry[] _currentPath;
+        protected NodePath _currentPath;
         protected Map<String, Object> _currentNode;
 
         public NodeCompiler(List<CompileIssue> issues) {
@@ -118,7 +430,7 @@ public abstract class TemplateCompiler {
             return null;
         }
 
-        public final ObjectNode compile(NodePathEntry[] path, Map<String, Object> node) {
+        public final ObjectNode compile(NodePath path, Map<String, Object> node) {
             if (node == null) {
                 return null;
             }
@@ -129,6 +441,8 @@ public abstract class TemplateCompiler {
             try {
                 validateKeys();
                 return compile();
+            } catch (TooManyErrorsException ex) {
+                throw ex;
             } catch (Exception ex) {
                 error("Internal compiler error: %s", ex.toString());
                 return null;
@@ -146,13 +460,25 @@ public abstract class TemplateCompiler {
             if (allowedKeys != null) {
                 for (String nodeKey : _currentNode.keySet()) {
                     if (!allowedKeys.contains(nodeKey)) {
-                        errorWithNearest(nodeKey, allowedKeys, "Unexpected key in %1$s: %2$s. Valid keys for %1$s: %3$s.", getName().toLowerCase(), nodeKey, StringUtils.join(allowedKeys, ", "));
+                        errorWithNearestAt(_currentPath.append(nodeKey), nodeKey, allowedKeys, "Unexpected key in %1$s: %2$s. Valid keys for %1$s: %3$s.", getName().toLowerCase(), nodeKey, StringUtils.join(allowedKeys, ", "));
                     }
                 }
             }
         }
 
         protected void errorWithNearest(String value, Iterable<String> values, String format, Object... args) {
+            errorWithNearestAt(_currentPath, value, values, format, args);
+        }
+
+        protected void errorWithNearestAt(NodePath path, String value, Iterable<String> values, String format, Object... args) {
+            errorAt(path, "%s", withNearest(value, values, format, args));
+        }
+
+        protected void warnWithNearestAt(NodePath path, String value, Iterable<String> values, String format, Object... args) {
+            warnAt(path, "%s", withNearest(value, values, format, args));
+        }
+
+        private static String withNearest(String value, Iterable<String> values, String format, Object... args) {
             String message = String.format(format, args);
             String nearestValue = findNearest(value, values);
 
@@ -160,15 +486,37 @@ public abstract class TemplateCompiler {
                 message += String.format(" Perhaps you meant %s?", nearestValue);
             }
 
-            error(message);
+            return message;
         }
 
         protected void error(String format, Object... args) {
-            _issues.add(CompileIssue.error(format, args));
+            errorAt(_currentPath, format, args);
+        }
+
+        /**
+         * Report an error at a node other than the node being compiled, e.g. one of its children.
+         *
+         * @param path path of the node, or null if the error is not about a single node
+         */
+        protected void errorAt(NodePath path, String format, Object... args) {
+            _issues.add(new CompileIssue(CompileIssueLevel.ERROR, String.format(format, args), getLocation(path)));
         }
 
         protected void warn(String format, Object... args) {
-            _issues.add(CompileIssue.warn(format, args));
+            warnAt(_currentPath, format, args);
+        }
+
+        /**
+         * Report a warning at a node other than the node being compiled, e.g. one of its children.
+         *
+         * @param path path of the node, or null if the warning is not about a single node
+         */
+        protected void warnAt(NodePath path, String format, Object... args) {
+            _issues.add(new CompileIssue(CompileIssueLevel.WARN, String.format(format, args), getLocation(path)));
+        }
+
+        private static CompileIssueLocation getLocation(NodePath path) {
+            return path == null || path.isRoot() ? null : new CompileIssueLocation(path.toString());
         }
 
         protected boolean validateDescription(String name, String value) {
@@ -181,10 +529,14 @@ public abstract class TemplateCompiler {
         }
 
         protected boolean validateLogicalName(String name, String value) {
+            return validateLogicalName(_currentPath, name, value);
+        }
+
+        protected boolean validateLogicalName(NodePath path, String name, String value) {
             if (isBlank(value)) {
-                error("A %s can not be blank. Only alphanumeric characters are allowed (A-Z, a-z, 0-9).", name.toLowerCase());
+                errorAt(path, "A %s can not be blank. Only alphanumeric characters are allowed (A-Z, a-z, 0-9).", name.toLowerCase());
             } else if (!LOGICAL_NAME_PATTERN.matcher(value).matches()) {
-                error("%s is not a valid %s. Only alphanumeric characters are allowed (A-Z, a-z, 0-9).", value, name.toLowerCase());
+                errorAt(path, "%s is not a valid %s. Only alphanumeric characters are allowed (A-Z, a-z, 0-9).", value, name.toLowerCase());
                 return false;
             }
 
@@ -238,16 +590,28 @@ public abstract class TemplateCompiler {
             return new TemplateValue(value, result);
         }
 
-        protected NodePathEntry[] appendPath(String name, Map<String, Object> node) {
-            return appendPath(_currentPath, name, node);
+        protected NodePath appendPath(String name) {
+            return _currentPath.append(name);
         }
 
-        protected static NodePathEntry[] appendPath(NodePathEntry[] path, String name, Map<String, Object> node) {
-            return ArrayUtils.add(path, new NodePathEntry(name, node));
+        protected String getLastPathName() {
+            return _currentPath == null ? "" : _currentPath.getName();
         }
 
-        protected String getLastPathName() {
-            return ArrayUtils.isEmpty(_currentPath) ? "" : _currentPath[_currentPath.length - 1].name;
+        /**
+         * Get the items of a list value, which is an Iterable when parsed from JSON and an array when it comes
+         * from the Ruby DSL.
+         *
+         * @return items or null if the value is not a list
+         */
+        protected static List<Object> asList(Object value) {
+            if (value instanceof Iterable) {
+                return Lists.<Object>newArrayList((Iterable<?>) value);
+            } else if (value instanceof Object[]) {
+                return newArrayList((Object[]) value);
+            }
+
+            return null;
         }
 
         protected static JsonNode copyOf(Object value) {
@@ -279,16 +643,47 @@ public abstract class TemplateCompiler {
                 return JsonNodeFactory.instance.textNode(ObjectUtils.toString(value));
             }
         }
+
+        /**
+         * Copy a value like {@link #copyOf(Object)}, but keep numbers, booleans and nulls as they are instead of
+         * converting them to strings.
+         */
+        protected static JsonNode nativeCopyOf(Object value) {
+            if (value instanceof Map) {
+                ObjectNode result = JsonNodeFactory.instance.objectNode();
+
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    result.put(ObjectUtils.toString(entry.getKey()), nativeCopyOf(entry.getValue()));
+                }
+
+                return result;
+            } else if (asList(value) != null) {
+                ArrayNode result = JsonNodeFactory.instance.arrayNode();
+
+                for (Object entry : asList(value)) {
+                    result.add(nativeCopyOf(entry));
+                }
+
+                return result;
+            } else {
+                return PrimitiveType.JSON.coerce(value);
+            }
+        }
     }
 
     private static class TemplateNodeCompiler extends NodeCompiler {
         private static final Set<String> ALLOWED_KEYS = ImmutableSet.of("AWSTemplateFormatVersion", "Description", "Parameters", "Resources", "Outputs", "Mappings");
-        private static final String TEMPLATE_VERSION = "2010-09-09";
-        private static final int MAX_PARAMETERS = 32;
-        private static final int MAX_OUTPUTS = 32;
+        protected static final String TEMPLATE_VERSION = "2010-09-09";
+        protected static final int MAX_PARAMETERS = 32;
+        protected static final int MAX_OUTPUTS = 32;
+        private static final String STACK_RESOURCE_TYPE = "AWS::CloudFormation::Stack";
+        private static final String STACK_OUTPUT_ATTRIBUTE_PREFIX = "Outputs.";
 
-        public TemplateNodeCompiler(List<CompileIssue> issues) {
+        protected final ResourceSchemaRegistry _resourceSchemas;
+
+        public TemplateNodeCompiler(List<CompileIssue> issues, ResourceSchemaRegistry resourceSchemas) {
             super(issues);
+            _resourceSchemas = resourceSchemas;
         }
 
         @Override
@@ -303,7 +698,14 @@ public abstract class TemplateCompiler {
 
         @Override
         protected ObjectNode compile() {
-            String version = (String) _currentNode.get("AWSTemplateFormatVersion");
+            Object versionValue = _currentNode.get("AWSTemplateFormatVersion");
+
+            if (versionValue != null && !(versionValue instanceof String)) {
+                errorAt(appendPath("AWSTemplateFormatVersion"), "AWSTemplateFormatVersion must be a string.");
+                return null;
+            }
+
+            String version = (String) versionValue;
 
             if (version == null) {
                 error("AWSTemplateFormatVersion is required. Valid versions: %s", TEMPLATE_VERSION);
@@ -316,11 +718,13 @@ public abstract class TemplateCompiler {
             ObjectNode templateNode = JsonNodeFactory.instance.objectNode();
             templateNode.put("AWSTemplateFormatVersion", version);
 
-            String description = (String) _currentNode.get("Description");
+            Object description = _currentNode.get("Description");
 
-            if (!isEmpty(description)) {
-                validateDescription(getName(), description);
-                templateNode.put("Description", description);
+            if (description != null && !(description instanceof String)) {
+                errorAt(appendPath("Description"), "Description must be a string.");
+            } else if (!isEmpty((String) description)) {
+                validateDescription(getName(), (String) description);
+                templateNode.put("Description", (String) description);
             }
 
             Map<String, Object> parameters = (Map<String, Object>) _currentNode.get("Parameters");
@@ -328,16 +732,17 @@ public abstract class TemplateCompiler {
             if (parameters != null && parameters.size() > 0) {
                 Set<String> parameterNames = newHashSet();
                 ParameterNodeCompiler parameterCompiler = new ParameterNodeCompiler(_issues);
-                NodePathEntry[] parametersPath = appendPath("Parameters", _currentNode);
+                NodePath parametersPath = appendPath("Parameters");
                 ObjectNode parametersNode = templateNode.putObject("Parameters");
 
                 for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+                    NodePath parameterPath = parametersPath.append(parameter.getKey());
+
                     if (parameterNames.contains(parameter.getKey().toLowerCase())) {
-                        error("Duplicate parameter name: %s", parameter.getKey());
+                        errorAt(parameterPath, "Duplicate parameter name: %s", parameter.getKey());
                     } else {
-                        validateLogicalName("Parameter name", parameter.getKey());
+                        validateLogicalName(parameterPath, "Parameter name", parameter.getKey());
 
-                        NodePathEntry[] parameterPath = appendPath(parametersPath, parameter.getKey(), parameters);
                         ObjectNode parameterNode = parameterCompiler.compile(parameterPath, (Map<String, Object>) parameter.getValue());
 
                         if (parameterNode != null) {
@@ -348,14 +753,14 @@ public abstract class TemplateCompiler {
                 }
 
                 if (parametersNode.size() > MAX_PARAMETERS) {
-                    error("There are %d parameters defined. This exceeds the limit of %d parameters.", parametersNode.size(), MAX_PARAMETERS);
+                    errorAt(parametersPath, "There are %d parameters defined. This exceeds the limit of %d parameters.", parametersNode.size(), MAX_PARAMETERS);
                 }
             }
 
             Map<String, Object> mappings = (Map<String, Object>) _currentNode.get("Mappings");
 
             if (mappings != null && mappings.size() > 0) {
-                NodePathEntry[] mappingsPath = appendPath("Mappings", _currentNode);
+                NodePath mappingsPath = appendPath("Mappings");
                 ObjectNode mappingsNode = new MappingsNodeCompiler(_issues).compile(mappingsPath, mappings);
 
                 if (mappingsNode != null && mappingsNode.size() > 0) {
@@ -368,8 +773,8 @@ public abstract class TemplateCompiler {
             if (resources == null || resources.size() == 0) {
                 error("At least one resource definition is required.");
             } else {
-                NodePathEntry[] resourcesPath = appendPath("Resources", _currentNode);
-                ObjectNode resourcesNode = new ResourcesNodeCompiler(_issues).compile(resourcesPath, resources);
+                NodePath resourcesPath = appendPath("Resources");
+                ObjectNode resourcesNode = new ResourcesNodeCompiler(_issues, _resourceSchemas).compile(resourcesPath, resources);
 
                 if (resourcesNode != null && resourcesNode.size() > 0) {
                     templateNode.put("Resources", resourcesNode);
@@ -379,12 +784,12 @@ public abstract class TemplateCompiler {
             Map<String, Object> outputs = (Map<String, Object>) _currentNode.get("Outputs");
 
             if (outputs != null && outputs.size() > 0) {
-                NodePathEntry[] outputsPath = appendPath("Outputs", _currentNode);
+                NodePath outputsPath = appendPath("Outputs");
                 ObjectNode outputsNode = new OutputsNodeCompiler(_issues).compile(outputsPath, outputs);
 
                 if (outputsNode != null && outputsNode.size() > 0) {
                     if (outputsNode.size() > MAX_OUTPUTS) {
-                        error("There are %d outputs defined. This exceeds the limit of %d outputs.", outputsNode.size(), MAX_OUTPUTS);
+                        errorAt(outputsPath, "There are %d outputs defined. This exceeds the limit of %d outputs.", outputsNode.size(), MAX_OUTPUTS);
                     }
 
                     templateNode.put("Outputs", outputsNode);
@@ -392,55 +797,220 @@ public abstract class TemplateCompiler {
             }
 
             checkForDuplicateResources(templateNode);
-            checkDependsOn(templateNode);
-            // TODO validate Ref, FindInMap, GetAtt and other function calls
+
+            List<List<String>> dependsOnCycles = checkDependsOn(templateNode);
+            List<IntrinsicReference> references = getReferences(templateNode);
+            checkReferences(SymbolIndex.of(templateNode), references);
+            checkResourceCycles(getResourceGraph(templateNode, references), dependsOnCycles);
 
             return templateNode;
         }
 
-        private void checkDependsOn(ObjectNode templateNode) {
-            ObjectNode resourcesNode = (ObjectNode) templateNode.get("Resources");
+        /**
+         * Build the graph of the order CloudFormation creates resources in. A resource depends on the resources
+         * in its DependsOn and on every resource it refers to with Ref or Fn::GetAtt.
+         *
+         * @param templateNode template, or a skeleton of it with the resource names and DependsOn values
+         * @param references references found in the resources and outputs of the template
+         * @return resource dependency graph
+         */
+        protected static DependencyGraph getResourceGraph(ObjectNode templateNode, List<IntrinsicReference> references) {
+            DependencyGraph graph = new DependencyGraph();
+            JsonNode resourcesNode = templateNode.get("Resources");
 
             if (resourcesNode != null) {
-                Set<String> checkedResources = newHashSet();
-
                 for (String resourceName : asIterable(resourcesNode.getFieldNames())) {
-                    Deque<String> parents = newArrayDeque();
-                    if (!checkedResources.contains(resourceName) && checkCircular(resourcesNode, resourceName, (ObjectNode) resourcesNode.get(resourceName), parents, checkedResources)) {
-                        error("Circular DependsOn dependency chain with resource %s", resourceName);
+                    graph.addNode(resourceName);
+                }
+
+                for (Map.Entry<String, JsonNode> resource : asIterable(resourcesNode.getFields())) {
+                    for (String dependsOnName : getDependsOn(resource.getValue())) {
+                        if (graph.hasNode(dependsOnName)) {
+                            graph.addDependency(resource.getKey(), dependsOnName);
+                        }
+                    }
+                }
+            }
+
+            for (IntrinsicReference reference : references) {
+                if (reference.getSection().equals("Resources")) {
+                    String target = reference.getFunction().equals(IntrinsicReference.REF)
+                            ? reference.getLiteralArgument(-1)
+                            : reference.getFunction().equals(IntrinsicReference.GET_ATT) ? reference.getLiteralArgument(0) : null;
+
+                    if (target != null && graph.hasNode(target)) {
+                        graph.addDependency(reference.getName(), target);
                     }
                 }
             }
+
+            return graph;
         }
 
-        private boolean checkCircular(ObjectNode resourcesNode, String resourceName, ObjectNode resourceNode, Deque<String> parents, Set<String> checked) {
-            checked.add(resourceName);
+        protected static List<IntrinsicReference> getReferences(ObjectNode templateNode) {
+            List<IntrinsicReference> references = newArrayList();
 
-            JsonNode dependsOn = resourceNode.get("DependsOn");
+            for (String section : new String[] {"Resources", "Outputs"}) {
+                JsonNode sectionNode = templateNode.get(section);
 
-            if (dependsOn != null) {
-                String dependsOnName = dependsOn.asText();
-                ObjectNode dependsOnNode = (ObjectNode) resourcesNode.get(dependsOnName);
+                if (sectionNode != null) {
+                    for (Map.Entry<String, JsonNode> entry : asIterable(sectionNode.getFields())) {
+                        IntrinsicReference.collect(section, entry.getKey(), entry.getValue(), references);
+                    }
+                }
+            }
 
-                if (dependsOnNode == null) {
-                    error("DependsOn for resource %s targets resource %s, which does not exist.", resourceName, dependsOnName);
-                } else if (parents.contains(dependsOnName)) {
-                    return true;
-                } else if (!checked.contains(dependsOnName)) {
-                    parents.push(resourceName);
+            return references;
+        }
 
-                    try {
-                        return checkCircular(resourcesNode, dependsOnName, dependsOnNode, parents, checked);
-                    } finally {
-                        parents.pop();
+        protected void checkReferences(SymbolIndex symbols, List<IntrinsicReference> references) {
+            for (IntrinsicReference reference : references) {
+                if (reference.getFunction().equals(IntrinsicReference.REF)) {
+                    checkRef(symbols, reference);
+                } else if (reference.getFunction().equals(IntrinsicReference.GET_ATT)) {
+                    checkGetAtt(symbols, reference);
+                } else if (reference.getFunction().equals(IntrinsicReference.FIND_IN_MAP)) {
+                    checkFindInMap(symbols, reference);
+                }
+            }
+        }
+
+        private void checkRef(SymbolIndex symbols, IntrinsicReference reference) {
+            String name = reference.getLiteralArgument(-1);
+
+            if (name == null) {
+                errorAt(reference.getPath(), "Ref in %s must be the name of a parameter, resource or pseudo parameter.", reference.getLocation());
+            } else if (!symbols.isRefTarget(name)) {
+                errorWithNearestAt(reference.getPath(), name, symbols.getRefTargets(), "Ref in %s targets %s, which is not a parameter, resource or pseudo parameter.", reference.getLocation(), name);
+            }
+        }
+
+        private void checkGetAtt(SymbolIndex symbols, IntrinsicReference reference) {
+            if (!reference.getArguments().isArray() || reference.getArguments().size() != 2) {
+                errorAt(reference.getPath(), "Fn::GetAtt in %s must be a list of a resource name and an attribute name.", reference.getLocation());
+                return;
+            }
+
+            String resource = reference.getLiteralArgument(0);
+
+            if (resource == null) {
+                return;
+            } else if (symbols.hasResource(resource)) {
+                String type = symbols.getResourceType(resource);
+                String attribute = reference.getLiteralArgument(1);
+                ResourceTypeSchema schema = _resourceSchemas.get(type);
+
+                // The specification lags behind CloudFormation, like for properties, and a stack has an attribute
+                // for each output of the nested template
+                if (attribute != null && schema != null && schema.getAttributes() != null && !schema.getAttributes().contains(attribute)
+                        && !(type.equals(STACK_RESOURCE_TYPE) && attribute.startsWith(STACK_OUTPUT_ATTRIBUTE_PREFIX))) {
+                    warnWithNearestAt(reference.getPath(), attribute, schema.getAttributes(), "Fn::GetAtt in %s targets attribute %s, which is not a known attribute of resources of type %s.", reference.getLocation(), attribute, type);
+                }
+            } else if (symbols.hasParameter(resource)) {
+                errorAt(reference.getPath(), "Fn::GetAtt in %s targets %s, which is a parameter, not a resource.", reference.getLocation(), resource);
+            } else {
+                errorWithNearestAt(reference.getPath(), resource, symbols.getResources(), "Fn::GetAtt in %s targets resource %s, which does not exist.", reference.getLocation(), resource);
+            }
+        }
+
+        private void checkFindInMap(SymbolIndex symbols, IntrinsicReference reference) {
+            if (!reference.getArguments().isArray() || reference.getArguments().size() != 3) {
+                errorAt(reference.getPath(), "Fn::FindInMap in %s must be a list of a mapping name, a key and a value name.", reference.getLocation());
+                return;
+            }
+
+            String mapping = reference.getLiteralArgument(0);
+            String key = reference.getLiteralArgument(1);
+            String value = reference.getLiteralArgument(2);
+
+            // Arguments that are function calls themselves, e.g. a Ref to AWS::Region, are only known at stack creation
+            if (mapping == null) {
+                return;
+            } else if (!symbols.hasMapping(mapping)) {
+                errorWithNearestAt(reference.getPath(), mapping, symbols.getMappings(), "Fn::FindInMap in %s targets mapping %s, which does not exist.", reference.getLocation(), mapping);
+            } else if (key != null && !symbols.getMappingKeys(mapping).contains(key)) {
+                errorWithNearestAt(reference.getPath(), key, symbols.getMappingKeys(mapping), "Fn::FindInMap in %s targets key %s, which does not exist in mapping %s.", reference.getLocation(), key, mapping);
+            } else if (value != null && !symbols.getMappingValues(mapping, key).contains(value)) {
+                errorWithNearestAt(reference.getPath(), value, symbols.getMappingValues(mapping, key), "Fn::FindInMap in %s targets value %s, which does not exist in mapping %s.", reference.getLocation(), value, mapping);
+            }
+        }
+
+        /**
+         * @return the DependsOn cycles that were reported
+         */
+        protected List<List<String>> checkDependsOn(ObjectNode templateNode) {
+            ObjectNode resourcesNode = (ObjectNode) templateNode.get("Resources");
+            List<List<String>> cycles = newArrayList();
+
+            if (resourcesNode != null) {
+                DependencyGraph graph = new DependencyGraph();
+
+                for (String resourceName : asIterable(resourcesNode.getFieldNames())) {
+                    graph.addNode(resourceName);
+                }
+
+                for (Map.Entry<String, JsonNode> resource : asIterable(resourcesNode.getFields())) {
+                    for (String dependsOnName : getDependsOn(resource.getValue())) {
+                        if (graph.hasNode(dependsOnName)) {
+                            graph.addDependency(resource.getKey(), dependsOnName);
+                        } else {
+                            errorWithNearestAt(NodePath.ROOT.append("Resources").append(resource.getKey()).append("DependsOn"), dependsOnName, graph.getNodes(), "DependsOn for resource %s targets resource %s, which does not exist.", resource.getKey(), dependsOnName);
+                        }
                     }
                 }
+
+                cycles = graph.getCycles();
+
+                for (List<String> cycle : cycles) {
+                    errorAt(NodePath.ROOT.append("Resources").append(cycle.get(0)), "Circular DependsOn dependency chain between resources: %s", StringUtils.join(cycle, ", "));
+                }
+            }
+
+            return cycles;
+        }
+
+        /**
+         * Report dependency cycles that go through a Ref or Fn::GetAtt, which CloudFormation rejects as well. A
+         * cycle that contains a cycle of DependsOn alone is not reported again, since breaking the DependsOn
+         * cycle may break it too.
+         *
+         * @param graph resource dependency graph
+         * @param dependsOnCycles cycles of DependsOn alone, which were already reported
+         */
+        protected void checkResourceCycles(DependencyGraph graph, List<List<String>> dependsOnCycles) {
+            for (List<String> cycle : graph.getCycles()) {
+                if (!containsAnyCycle(cycle, dependsOnCycles)) {
+                    errorAt(NodePath.ROOT.append("Resources").append(cycle.get(0)), "Circular dependency chain between resources through Ref or Fn::GetAtt: %s", StringUtils.join(cycle, ", "));
+                }
+            }
+        }
+
+        private static boolean containsAnyCycle(List<String> cycle, List<List<String>> cycles) {
+            for (List<String> other : cycles) {
+                if (cycle.containsAll(other)) {
+                    return true;
+                }
             }
 
             return false;
         }
 
-        private void checkForDuplicateResources(ObjectNode templateNode) {
+        private static List<String> getDependsOn(JsonNode resourceNode) {
+            JsonNode dependsOn = resourceNode.get("DependsOn");
+            List<String> names = newArrayList();
+
+            if (dependsOn != null && dependsOn.isArray()) {
+                for (JsonNode name : dependsOn) {
+                    names.add(name.asText());
+                }
+            } else if (dependsOn != null) {
+                names.add(dependsOn.asText());
+            }
+
+            return names;
+        }
+
+        protected void checkForDuplicateResources(ObjectNode templateNode) {
             ObjectNode parametersNode = (ObjectNode) templateNode.get("Parameters");
             ObjectNode resourcesNode = (ObjectNode) templateNode.get("Resources");
 
@@ -453,16 +1023,374 @@ public abstract class TemplateCompiler {
 
                 for (String resourceName : asIterable(resourcesNode.getFieldNames())) {
                     if (parameterNames.contains(resourceName.toLowerCase())) {
-                        error("A parameter and a resource both have name %s. All parameters and resources must have unique names.", resourceName);
+                        errorAt(NodePath.ROOT.append("Resources").append(resourceName), "A parameter and a resource both have name %s. All parameters and resources must have unique names.", resourceName);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Compiles a template while it is being read, one section entry (parameter, mapping, resource or output)
+     * at a time, and writes each compiled entry as soon as it is validated.
+     * <p/>
+     * Only the names and DependsOn values of the entries, and the intrinsic function calls that refer to other
+     * entries, are kept for the checks that span the whole template, so memory use is proportional to the largest
+     * single entry rather than the whole template.
+     */
+    private static class TemplateStreamCompiler extends TemplateNodeCompiler {
+        private final ObjectWriter _writer;
+        private final Map<String, String> _overrides;
+        private final List<CompileIssue> _resultIssues;
+
+        /**
+         * Skeleton of the template with only the parameter and resource names and the resource DependsOn
+         * values, which is enough for the checks that need to see the whole template.
+         */
+        private final ObjectNode _skeleton = JsonNodeFactory.instance.objectNode();
+        private final SymbolIndex _symbols = new SymbolIndex();
+        private final List<IntrinsicReference> _references = newArrayList();
+        private DependencyGraph _resourceGraph;
+
+        /**
+         * @param maxErrors errors after which the compile throws {@link TooManyErrorsException}, or 0 for no limit
+         */
+        public TemplateStreamCompiler(ObjectWriter writer, Map<String, String> overrides, ResourceSchemaRegistry resourceSchemas, List<CompileIssue> issues, int maxErrors) {
+            super(limitErrors(Lists.<CompileIssue>newArrayList(), maxErrors), resourceSchemas);
+            _writer = writer;
+            _overrides = overrides;
+            _resultIssues = issues;
+        }
+
+        /**
+         * @return resource dependency graph, or null if the template is not valid enough to have one
+         */
+        public DependencyGraph compile(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            try {
+                return compileTemplate(parser, generator);
+            } catch (TooManyErrorsException ex) {
+                // The issues are only moved to the result at the end, so keep the ones found so far
+                _resultIssues.addAll(_issues);
+                throw ex;
+            }
+        }
+
+        private DependencyGraph compileTemplate(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            String version = null;
+            boolean versionIsString = true;
+            int resourceCount = 0;
+            int outputCount = 0;
+
+            // Issues are reported relative to the template, like the template compile of TemplateNodeCompiler
+            _currentPath = NodePath.ROOT;
+
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                _resultIssues.add(CompileIssue.error("Template must be a JSON object."));
+                return null;
+            }
+
+            // The only version that compiles is TEMPLATE_VERSION, so it can be written before it is read
+            generator.writeStartObject();
+            generator.writeStringField("AWSTemplateFormatVersion", TEMPLATE_VERSION);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+
+                if (key.equals("AWSTemplateFormatVersion")) {
+                    if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                        version = parser.getText();
+                    } else if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+                        // Skip the whole value, or its contents would be read as top-level keys
+                        versionIsString = false;
+                        parser.skipChildren();
+                    }
+                } else if (key.equals("Description")) {
+                    if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                        String description = parser.getText();
+
+                        if (!isEmpty(description)) {
+                            validateDescription(getName(), description);
+                            generator.writeStringField("Description", description);
+                        }
+                    } else if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+                        errorAt(NodePath.ROOT.append("Description"), "Description must be a string.");
+                        parser.skipChildren();
+                    }
+                } else if (key.equals("Parameters")) {
+                    compileParameters(parser, generator);
+                } else if (key.equals("Mappings")) {
+                    compileMappings(parser, generator);
+                } else if (key.equals("Resources")) {
+                    resourceCount += compileResources(parser, generator);
+                } else if (key.equals("Outputs")) {
+                    outputCount += compileOutputs(parser, generator);
+                } else {
+                    // Unexpected keys are reported before everything else, like NodeCompiler.validateKeys
+                    int issueCount = _issues.size();
+                    errorWithNearestAt(NodePath.ROOT.append(key), key, allowedKeys(), "Unexpected key in %1$s: %2$s. Valid keys for %1$s: %3$s.", getName().toLowerCase(), key, StringUtils.join(allowedKeys(), ", "));
+                    _resultIssues.addAll(_issues.subList(issueCount, _issues.size()));
+                    _issues.subList(issueCount, _issues.size()).clear();
+                    parser.skipChildren();
+                }
+            }
+
+            generator.writeEndObject();
+
+            // Like TemplateNodeCompiler, nothing else is reported if the version is wrong
+            if (!versionIsString) {
+                _resultIssues.add(new CompileIssue(CompileIssueLevel.ERROR, "AWSTemplateFormatVersion must be a string.",
+                        new CompileIssueLocation(NodePath.ROOT.append("AWSTemplateFormatVersion").toString())));
+                return null;
+            } else if (version == null) {
+                _resultIssues.add(CompileIssue.error("AWSTemplateFormatVersion is required. Valid versions: %s", TEMPLATE_VERSION));
+                return null;
+            } else if (!version.equals(TEMPLATE_VERSION)) {
+                _resultIssues.add(CompileIssue.error("Unknown template version: %s. Supported template versions: %s", version, TEMPLATE_VERSION));
+                return null;
+            }
+
+            if (resourceCount == 0) {
+                error("At least one resource definition is required.");
+            }
+
+            if (outputCount > MAX_OUTPUTS) {
+                errorAt(NodePath.ROOT.append("Outputs"), "There are %d outputs defined. This exceeds the limit of %d outputs.", outputCount, MAX_OUTPUTS);
+            }
+
+            checkForDuplicateResources(_skeleton);
+            List<List<String>> dependsOnCycles = checkDependsOn(_skeleton);
+            checkReferences(_symbols, _references);
+            _resourceGraph = getResourceGraph(_skeleton, _references);
+            checkResourceCycles(_resourceGraph, dependsOnCycles);
+
+            _resultIssues.addAll(_issues);
+            return _resourceGraph;
+        }
+
+        private void compileParameters(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            ParameterNodeCompiler parameterCompiler = new ParameterNodeCompiler(_issues);
+            NodePath parametersPath = NodePath.ROOT.append("Parameters");
+            ObjectNode parameterNames = getSkeletonSection("Parameters");
+            boolean started = false;
+
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                errorAt(parametersPath, "Parameters must be an object.");
+                parser.skipChildren();
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                NodePath parameterPath = parametersPath.append(name);
+                Map<String, Object> parameter = readObject(parser, parameterPath, "Parameter " + name);
+
+                if (parameterNames.has(name.toLowerCase())) {
+                    errorAt(parameterPath, "Duplicate parameter name: %s", name);
+                } else if (parameter != null) {
+                    validateLogicalName(parameterPath, "Parameter name", name);
+
+                    String override = _overrides.get(name);
+
+                    if (override != null) {
+                        parameter.put("Default", override);
+                    }
+
+                    ObjectNode parameterNode = parameterCompiler.compile(parameterPath, parameter);
+
+                    if (parameterNode != null) {
+                        if (!started) {
+                            generator.writeObjectFieldStart("Parameters");
+                            started = true;
+                        }
+
+                        parameterNames.putObject(name.toLowerCase());
+                        _symbols.addParameter(name);
+                        generator.writeFieldName(name);
+                        _writer.writeValue(generator, parameterNode);
+                    }
+                }
+            }
+
+            if (started) {
+                generator.writeEndObject();
+            }
+
+            if (parameterNames.size() > MAX_PARAMETERS) {
+                errorAt(parametersPath, "There are %d parameters defined. This exceeds the limit of %d parameters.", parameterNames.size(), MAX_PARAMETERS);
+            }
+        }
+
+        private void compileMappings(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            MappingsNodeCompiler mappingsCompiler = new MappingsNodeCompiler(_issues);
+            NodePath mappingsPath = NodePath.ROOT.append("Mappings");
+            boolean started = false;
+
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                errorAt(mappingsPath, "Mappings must be an object.");
+                parser.skipChildren();
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                Map<String, Object> mapping = readObject(parser, mappingsPath.append(name), "Mapping " + name);
+
+                if (mapping != null) {
+                    ObjectNode mappingsNode = mappingsCompiler.compile(mappingsPath, ImmutableMap.<String, Object>of(name, mapping));
+
+                    if (mappingsNode != null && mappingsNode.size() > 0) {
+                        if (!started) {
+                            generator.writeObjectFieldStart("Mappings");
+                            started = true;
+                        }
+
+                        _symbols.addMapping(name, mappingsNode.get(name));
+                        generator.writeFieldName(name);
+                        _writer.writeValue(generator, mappingsNode.get(name));
+                    }
+                }
+            }
+
+            if (started) {
+                generator.writeEndObject();
+            }
+        }
+
+        private int compileResources(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            ResourceNodeCompiler resourceCompiler = new ResourceNodeCompiler(_issues, _resourceSchemas);
+            NodePath resourcesPath = NodePath.ROOT.append("Resources");
+            ObjectNode resources = getSkeletonSection("Resources");
+            Set<String> resourceNames = newHashSet();
+            boolean started = false;
+            int count = 0;
+
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                errorAt(resourcesPath, "Resources must be an object.");
+                parser.skipChildren();
+                return 0;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                NodePath resourcePath = resourcesPath.append(name);
+                Map<String, Object> resource = readObject(parser, resourcePath, "Resource " + name);
+                count += 1;
+
+                if (resourceNames.contains(name.toLowerCase())) {
+                    errorAt(resourcePath, "Duplicate resource: %s", name);
+                } else if (resource != null) {
+                    resourceNames.add(name.toLowerCase());
+                    validateLogicalName(resourcePath, "Resource name", name);
+
+                    ObjectNode resourceNode = resourceCompiler.compile(resourcePath, resource);
+
+                    if (resourceNode != null) {
+                        if (!started) {
+                            generator.writeObjectFieldStart("Resources");
+                            started = true;
+                        }
+
+                        ObjectNode resourceSkeleton = resources.putObject(name);
+
+                        if (resourceNode.has("DependsOn")) {
+                            resourceSkeleton.put("DependsOn", resourceNode.get("DependsOn"));
+                        }
+
+                        _symbols.addResource(name, resourceNode.get("Type").getTextValue());
+                        IntrinsicReference.collect("Resources", name, resourceNode, _references);
+                        generator.writeFieldName(name);
+                        _writer.writeValue(generator, resourceNode);
+                    }
+                }
+            }
+
+            if (started) {
+                generator.writeEndObject();
+            }
+
+            return count;
+        }
+
+        private int compileOutputs(JsonParser parser, JsonGenerator generator)
+                throws IOException {
+            OutputNodeCompiler outputCompiler = new OutputNodeCompiler(_issues);
+            NodePath outputsPath = NodePath.ROOT.append("Outputs");
+            Set<String> outputNames = newHashSet();
+            boolean started = false;
+            int count = 0;
+
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                errorAt(outputsPath, "Outputs must be an object.");
+                parser.skipChildren();
+                return 0;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                NodePath outputPath = outputsPath.append(name);
+                Map<String, Object> output = readObject(parser, outputPath, "Output " + name);
+
+                if (outputNames.contains(name.toLowerCase())) {
+                    errorAt(outputPath, "Duplicate Output: %s", name);
+                } else if (output != null) {
+                    outputNames.add(name.toLowerCase());
+
+                    ObjectNode outputNode = outputCompiler.compile(outputPath, output);
+
+                    if (outputNode != null) {
+                        if (!started) {
+                            generator.writeObjectFieldStart("Outputs");
+                            started = true;
+                        }
+
+                        count += 1;
+                        IntrinsicReference.collect("Outputs", name, outputNode, _references);
+                        generator.writeFieldName(name);
+                        _writer.writeValue(generator, outputNode);
+                    }
+                }
+            }
+
+            if (started) {
+                generator.writeEndObject();
+            }
+
+            return count;
+        }
+
+        private ObjectNode getSkeletonSection(String name) {
+            ObjectNode section = (ObjectNode) _skeleton.get(name);
+            return section == null ? _skeleton.putObject(name) : section;
+        }
+
+        private Map<String, Object> readObject(JsonParser parser, NodePath path, String name)
+                throws IOException {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                errorAt(path, "%s must be an object.", name);
+                parser.skipChildren();
+                return null;
+            }
+
+            return TEMPLATE_READER.readValue(parser);
+        }
+    }
+
     private static class ResourcesNodeCompiler extends NodeCompiler {
-        public ResourcesNodeCompiler(List<CompileIssue> issues) {
+        private final ResourceSchemaRegistry _resourceSchemas;
+
+        public ResourcesNodeCompiler(List<CompileIssue> issues, ResourceSchemaRegistry resourceSchemas) {
             super(issues);
+            _resourceSchemas = resourceSchemas;
         }
 
         @Override
@@ -473,22 +1401,23 @@ public abstract class TemplateCompiler {
         @Override
         protected ObjectNode compile() {
             ObjectNode resourcesNode = JsonNodeFactory.instance.objectNode();
-            ResourceNodeCompiler resourceNodeCompiler = new ResourceNodeCompiler(_issues);
+            ResourceNodeCompiler resourceNodeCompiler = new ResourceNodeCompiler(_issues, _resourceSchemas);
             Set<String> resourceNames = newHashSet();
 
             for (Map.Entry<String, Map<String, Object>> resource : ((Map<String, Map<String, Object>>) (Map) _currentNode).entrySet()) {
                 String resourceName = resource.getKey();
 
+                NodePath resourcePath = appendPath(resourceName);
+
                 if (resourceNames.contains(resourceName.toLowerCase())) {
-                    error("Duplicate resource: %s", resourceName);
+                    errorAt(resourcePath, "Duplicate resource: %s", resourceName);
                 } else {
                     resourceNames.add(resourceName.toLowerCase());
 
                     Map<String, Object> resourceConfig = resource.getValue();
 
-                    validateLogicalName("Resource name", resourceName);
+                    validateLogicalName(resourcePath, "Resource name", resourceName);
 
-                    NodePathEntry[] resourcePath = appendPath(resourceName, _currentNode);
                     ObjectNode resourceNode = resourceNodeCompiler.compile(resourcePath, resourceConfig);
 
                     if (resourceNode != null) {
@@ -506,14 +1435,18 @@ public abstract class TemplateCompiler {
         private static final Set<String> DELETION_POLICIES = ImmutableSet.of("Delete", "Retain", "Snapshot");
 
         /**
-         * Map from resource type name (e.g. AWS::S3::Bucket) to the compiler for the properties of that type.
+         * Schemas of the resource types (e.g. AWS::S3::Bucket) the properties are validated against.
          */
-        private final Map<String, NodeCompiler> _resourceCompilers;
+        private final ResourceSchemaRegistry _resourceSchemas;
 
-        public ResourceNodeCompiler(List<CompileIssue> issues) {
-            super(issues);
+        /**
+         * Compilers for the properties of each resource type seen so far, which share the immutable schemas.
+         */
+        private final Map<String, ResourcePropertiesNodeCompiler> _propertiesCompilers = newHashMap();
 
-            _resourceCompilers = ImmutableMap.of();
+        public ResourceNodeCompiler(List<CompileIssue> issues, ResourceSchemaRegistry resourceSchemas) {
+            super(issues);
+            _resourceSchemas = resourceSchemas;
         }
 
         @Override
@@ -549,13 +1482,13 @@ public abstract class TemplateCompiler {
                 properties = newHashMap();
             }
 
-            NodeCompiler resourceCompiler = _resourceCompilers.get(type);
+            ResourcePropertiesNodeCompiler propertiesCompiler = getPropertiesCompiler(type);
 
-            if (resourceCompiler == null) {
+            if (propertiesCompiler == null) {
                 resourceNode.put("Properties", copyOf(properties));
             } else {
-                NodePathEntry[] propertiesPath = appendPath("Properties", _currentNode);
-                resourceNode.put("Properties", resourceCompiler.compile(propertiesPath, properties));
+                NodePath propertiesPath = appendPath("Properties");
+                resourceNode.put("Properties", propertiesCompiler.compile(propertiesPath, properties));
             }
 
             Object metadata = _currentNode.get("Metadata");
@@ -564,11 +1497,26 @@ public abstract class TemplateCompiler {
                 resourceNode.put("Metadata", copyOf(metadata));
             }
 
-            String dependsOn = ObjectUtils.toString(_currentNode.get("DependsOn"));
+            Object dependsOn = _currentNode.get("DependsOn");
+            List<Object> dependsOnList = asList(dependsOn);
+
+            if (dependsOnList != null) {
+                ArrayNode dependsOnNode = JsonNodeFactory.instance.arrayNode();
+
+                for (int i = 0; i < dependsOnList.size(); ++i) {
+                    String dependsOnName = ObjectUtils.toString(dependsOnList.get(i));
+
+                    if (validateLogicalName(appendPath("DependsOn").append(i), "DependsOn for resource " + getResourceName(), dependsOnName)) {
+                        dependsOnNode.add(dependsOnName);
+                    }
+                }
 
-            if (!isEmpty(dependsOn)) {
-                if (validateLogicalName("DependsOn for resource " + getResourceName(), dependsOn)) {
-                    resourceNode.put("DependsOn", dependsOn);
+                if (dependsOnNode.size() > 0) {
+                    resourceNode.put("DependsOn", dependsOnNode);
+                }
+            } else if (!isEmpty(ObjectUtils.toString(dependsOn))) {
+                if (validateLogicalName(appendPath("DependsOn"), "DependsOn for resource " + getResourceName(), dependsOn.toString())) {
+                    resourceNode.put("DependsOn", dependsOn.toString());
                 }
             }
 
@@ -576,7 +1524,7 @@ public abstract class TemplateCompiler {
 
             if (!isEmpty(deletionPolicy)) {
                 if (!DELETION_POLICIES.contains(deletionPolicy)) {
-                    errorWithNearest(deletionPolicy, DELETION_POLICIES, "Unexpected deletion policy in resource %s. Allowed values: %s.", getResourceName(), StringUtils.join(DELETION_POLICIES, ", "));
+                    errorWithNearestAt(appendPath("DeletionPolicy"), deletionPolicy, DELETION_POLICIES, "Unexpected deletion policy in resource %s. Allowed values: %s.", getResourceName(), StringUtils.join(DELETION_POLICIES, ", "));
                 }
 
                 resourceNode.put("DeletionPolicy", deletionPolicy);
@@ -584,11 +1532,84 @@ public abstract class TemplateCompiler {
 
             return resourceNode;
         }
+
+        /**
+         * @return compiler for the properties of a resource type, or null if the type has no schema
+         */
+        private ResourcePropertiesNodeCompiler getPropertiesCompiler(String type) {
+            ResourcePropertiesNodeCompiler propertiesCompiler = _propertiesCompilers.get(type);
+
+            if (propertiesCompiler == null) {
+                ResourceTypeSchema schema = _resourceSchemas.get(type);
+
+                if (schema != null) {
+                    propertiesCompiler = new ResourcePropertiesNodeCompiler(_issues, schema);
+                    _propertiesCompilers.put(type, propertiesCompiler);
+                }
+            }
+
+            return propertiesCompiler;
+        }
     }
 
-    private abstract class ResourcePropertiesNodeCompiler extends NodeCompiler {
-        public ResourcePropertiesNodeCompiler(List<CompileIssue> issues) {
+    private static class ResourcePropertiesNodeCompiler extends NodeCompiler {
+        private final ResourceTypeSchema _schema;
+
+        public ResourcePropertiesNodeCompiler(List<CompileIssue> issues, ResourceTypeSchema schema) {
             super(issues);
+            _schema = schema;
+        }
+
+        @Override
+        protected ObjectNode compile() {
+            // The specification lags behind CloudFormation, so a property it does not know may still be valid
+            for (String property : _currentNode.keySet()) {
+                if (!_schema.getProperties().contains(property)) {
+                    warnWithNearestAt(appendPath(property), property, _schema.getProperties(), "%s is not a known property of resource %s of type %s.", property, getResourceName(), _schema.getType());
+                }
+            }
+
+            for (String property : _schema.getRequiredProperties()) {
+                if (!_currentNode.containsKey(property)) {
+                    error("%s is required for resource %s of type %s.", property, getResourceName(), _schema.getType());
+                }
+            }
+
+            ObjectNode propertiesNode = JsonNodeFactory.instance.objectNode();
+
+            for (Map.Entry<String, Object> property : _currentNode.entrySet()) {
+                PrimitiveType type = _schema.getPropertyType(property.getKey());
+
+                if (type == null) {
+                    propertiesNode.put(property.getKey(), copyOf(property.getValue()));
+                } else {
+                    propertiesNode.put(property.getKey(), coerce(property.getKey(), type, property.getValue()));
+                }
+            }
+
+            return propertiesNode;
+        }
+
+        /**
+         * Convert a literal property value to its native JSON type, e.g. "10" to 10 for an Integer property, so
+         * the output matches what CloudFormation returns for the template.
+         */
+        private JsonNode coerce(String property, PrimitiveType type, Object value) {
+            if (type == PrimitiveType.JSON) {
+                return nativeCopyOf(value);
+            } else if (value instanceof Map || asList(value) != null) {
+                // Intrinsic function calls are only resolved at stack creation
+                return copyOf(value);
+            }
+
+            JsonNode node = type.coerce(value);
+
+            if (node == null) {
+                errorAt(appendPath(property), "%s is not a valid value for property %s of resource %s. The value must be %s.", value, property, getResourceName(), type.getDescription());
+                return copyOf(value);
+            }
+
+            return node;
         }
 
         @Override
@@ -598,7 +1619,7 @@ public abstract class TemplateCompiler {
         }
 
         protected String getResourceName() {
-            return (_currentPath == null || _currentPath.length < 2) ? "" : _currentPath[_currentPath.length - 2].name;
+            return (_currentPath == null || _currentPath.isRoot()) ? "" : _currentPath.getParent().getName();
         }
     }
 
@@ -621,11 +1642,11 @@ public abstract class TemplateCompiler {
             for (Map.Entry<String, Object> output : _currentNode.entrySet()) {
                 // TODO validate output name (output.getKey())
                 if (outputNames.contains(output.getKey().toLowerCase())) {
-                    error("Duplicate Output: %s", output.getKey());
+                    errorAt(appendPath(output.getKey()), "Duplicate Output: %s", output.getKey());
                 } else {
                     outputNames.add(output.getKey().toLowerCase());
 
-                    NodePathEntry[] outputPath = appendPath(output.getKey(), _currentNode);
+                    NodePath outputPath = appendPath(output.getKey());
                     ObjectNode outputNode = outputNodeCompiler.compile(outputPath, (Map<String, Object>) output.getValue());
 
                     if (outputNode != null) {
@@ -813,6 +1834,8 @@ public abstract class TemplateCompiler {
                         if (defaultValue != null && !allowedPattern.matcher(defaultValue.stringValue).matches()) {
                             error("Parameter %s Default value %s does not match AllowedPattern constraint.", getParameterName(), defaultValue);
                         }
+                    } catch (TooManyErrorsException ex) {
+                        throw ex;
                     } catch (Exception ex) {
                         error("%s is not a valid AllowedPattern for parameter %s. Value must be a regex. Error: %s", patternStr, getParameterName(), ex);
                     }
@@ -1017,7 +2040,103 @@ public abstract class TemplateCompiler {
     }
 
     protected ObjectNode compile(Map<String, Object> data, List<CompileIssue> issues) {
-        return new TemplateNodeCompiler(issues).compile(new NodePathEntry[0], data);
+        try {
+            return new TemplateNodeCompiler(limitErrors(issues, _maxErrors), _resourceSchemas).compile(NodePath.ROOT, data);
+        } catch (TooManyErrorsException ex) {
+            issues.add(ex.getIssue());
+            return null;
+        }
+    }
+
+    /**
+     * Compile a template while reading it and write the result as it is compiled.
+     * <p/>
+     * The parameter overrides are applied to the parameter defaults. If any issues are reported at the
+     * {@link CompileIssueLevel#ERROR ERROR} level, the written output is incomplete and must be discarded.
+     *
+     * @param parser parser positioned before the start of the template
+     * @param generator generator to write the compiled template to
+     * @param issues list to add compile issues to
+     * @return resource dependency graph of the template, or null if the template is not valid enough to have one
+     */
+    protected DependencyGraph compile(JsonParser parser, JsonGenerator generator, List<CompileIssue> issues)
+            throws IOException {
+        try {
+            return new TemplateStreamCompiler(getWriter(), getParameters(), _resourceSchemas, issues, _maxErrors).compile(parser, generator);
+        } catch (TooManyErrorsException ex) {
+            issues.add(ex.getIssue());
+            return null;
+        }
+    }
+
+    private static List<CompileIssue> limitErrors(List<CompileIssue> issues, int maxErrors) {
+        return maxErrors == 0 ? issues : new ErrorLimitedList(issues, maxErrors);
+    }
+
+    /**
+     * Issue list that stops the compile by throwing {@link TooManyErrorsException} instead of adding an error
+     * beyond the maximum. Every handler that catches all exceptions during a compile rethrows it first, so it
+     * reaches the top of the compile and is reported there.
+     */
+    private static class ErrorLimitedList extends ForwardingList<CompileIssue> {
+        private final List<CompileIssue> _issues;
+        private final int _maxErrors;
+        private int _errors;
+
+        ErrorLimitedList(List<CompileIssue> issues, int maxErrors) {
+            _issues = issues;
+            _maxErrors = maxErrors;
+
+            for (CompileIssue issue : issues) {
+                _errors += issue.getLevel() == CompileIssueLevel.ERROR ? 1 : 0;
+            }
+        }
+
+        @Override
+        protected List<CompileIssue> delegate() {
+            return _issues;
+        }
+
+        @Override
+        public boolean add(CompileIssue issue) {
+            if (issue.getLevel() == CompileIssueLevel.ERROR) {
+                if (_errors >= _maxErrors) {
+                    throw new TooManyErrorsException(_maxErrors);
+                }
+
+                _errors += 1;
+            }
+
+            return super.add(issue);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends CompileIssue> issues) {
+            return standardAddAll(issues);
+        }
+    }
+
+    static class TooManyErrorsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyErrorsException(int maxErrors) {
+            super(String.format("Stopped validating the template after %d errors.", maxErrors));
+        }
+
+        CompileIssue getIssue() {
+            return new CompileIssue(CompileIssueLevel.WARN, getMessage());
+        }
+    }
+
+    /**
+     * Build the resource dependency graph of a compiled template, from DependsOn and the Ref and Fn::GetAtt
+     * calls in the resources.
+     *
+     * @param template compiled template
+     * @return resource dependency graph
+     */
+    static DependencyGraph getResourceGraph(ObjectNode template) {
+        return TemplateNodeCompiler.getResourceGraph(template, TemplateNodeCompiler.getReferences(template));
     }
 
     private static String findNearest(String value, Iterable<String> values) {
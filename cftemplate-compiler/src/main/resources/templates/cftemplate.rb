@@ -20,11 +20,34 @@ module CloudFormation
     VERSION='2010-09-09'
 
     attr_reader :resources
-    attr_accessor :description, :overrides
+    attr_accessor :description
+    attr_reader :overrides
+
+    # Parameter overrides as the template sees them, through the overrides reader or @overrides directly.
+    # A template that reads the overrides can change its structure based on them, so the compiler can not
+    # apply a different set of overrides to the result of a single evaluation. Every use is reported.
+    class Overrides < BasicObject
+      def initialize(overrides)
+        @overrides = overrides
+      end
+
+      def ==(other)
+        method_missing(:==, other)
+      end
+
+      def method_missing(name, *args, &block)
+        $cftemplate_output.readOverrides() unless $cftemplate_output.nil?
+        @overrides.__send__(name, *args, &block)
+      end
+    end
 
     def initialize()
       @resources = {}
-      @overrides = {}
+      self.overrides = {}
+    end
+
+    def overrides=(overrides)
+      @overrides = Overrides.new(overrides)
     end
 
     def parameter(name, type, &block)
@@ -51,20 +74,16 @@ module CloudFormation
       end
 
       if !param.nil?
+        # The compiler applies the overrides to the defaults, so the same evaluation serves several variants
         param.evaluate &block
-
-        if overrides.include?(name) && !overrides[name].nil?
-          param.default = overrides[name]
-        end
-
-        $cftemplate_output.addParameter(location, name, clean_obj(param.cf_build.resource))
+        $cftemplate_output.addParameter(location, name.to_s, param.cf_build.resource)
       end
     end
 
     def mappings(values={})
       location = caller()[0]
       values.each { |k, v|
-        $cftemplate_output.addMapping(location, clean_obj(k), clean_obj(v))
+        $cftemplate_output.addMapping(location, k.to_s, v)
       }
     end
 
@@ -82,7 +101,7 @@ module CloudFormation
       else
         out = StackOutput.new
         out.evaluate &block
-        $cftemplate_output.addOutput(location, name, clean_obj(out.cf_build.resource))
+        $cftemplate_output.addOutput(location, name.to_s, out.cf_build.resource)
       end
     end
 
@@ -90,59 +109,43 @@ module CloudFormation
       location = caller()[0]
 
       values.each { |k, v|
-        $cftemplate_output.addOutput(location, k, clean_obj('Value' => v))
+        $cftemplate_output.addOutput(location, k.to_s, 'Value' => v)
       }
     end
 
     def file(path, options={})
-      content = IO.read(path)
       $cftemplate_output.addFile(path)
 
-      interpolate = options.fetch(:interpolate, true)
-
-      if interpolate
-        start_index = content.index('{{')
-        end_index = 0
-
-        if not start_index.nil?
-          new_content = []
-
-          while not start_index.nil?
-            if start_index != end_index
-              new_content << content.slice(end_index..(start_index - 1))
-            end
-
-            end_index = content.index('}}', start_index)
-
-            if end_index.nil?
-              # TODO get line number
-              # First arg "#{path}:#{line}"
-              $cftemplate_output.error(path, "Unable to find matching close braces.")
-              end_index = start_index
-              break
-            end
-
-            variable_content = content.slice((start_index + 2)..(end_index - 1))
+      if !options.fetch(:interpolate, true)
+        return IO.read(path)
+      end
 
-            begin
-              new_content << eval(variable_content)
-            rescue Exception => ex
-              # TODO get line number
-              # First arg "#{path}:#{line}"
-              $cftemplate_output.error(path, "Error evaluating '#{variable_content}'. Error: #{$!}")
-              break
-            end
+      # Scanned in Java, and cached until the file changes
+      source = $cftemplate_output.readFile(File.expand_path(path))
+      location = source.file.path
+      content = []
 
-            end_index += 2
-            start_index = content.index('{{', end_index)
+      source.segments.each { |segment|
+        if !segment.expression?
+          content << segment.text
+        else
+          begin
+            content << eval(segment.text, binding, location, segment.line)
+          rescue Exception => ex
+            $cftemplate_output.error("#{location}:#{segment.line}", "Error evaluating '#{segment.text}' at column #{segment.column}. Error: #{$!}")
           end
-
-          new_content << content.slice(end_index..-1)
-          content = join('', *new_content)
         end
+      }
+
+      if !source.unclosed.nil?
+        $cftemplate_output.error("#{location}:#{source.unclosed.line}", "Unable to find matching close braces for the {{ at column #{source.unclosed.column}.")
+      end
+
+      if source.hasExpressions
+        return join('', *content)
       end
 
-      return content
+      return content.join
     end
 
     def tags(tags={}, options={})
@@ -173,7 +176,7 @@ module CloudFormation
       end
 
       build_result = resource.cf_build()
-      $cftemplate_output.addResource(nil, clean_obj(name), build_result.resource)
+      $cftemplate_output.addResource(nil, name.to_s, build_result.resource)
       FN.ref(name)
     end
 
@@ -188,30 +191,6 @@ module CloudFormation
       return result
     end
 
-    def clean_obj(map)
-      cleaned = nil
-
-      if map.is_a? Hash
-        cleaned = {}
-
-        map.each do |k, v|
-          cleaned[k.to_s] = clean_obj(v)
-        end
-      elsif map.is_a? String
-        cleaned = map
-      elsif map.is_a?(TrueClass) || map.is_a?(FalseClass)
-        cleaned = map ? 'true' : 'false'
-      elsif map.is_a?(Symbol) || map.is_a?(Numeric)
-        cleaned = map.to_s
-      elsif map.is_a? Enumerable
-        cleaned = map.collect { |x| clean_obj(x) }
-      else
-        raise "Unsupported value type: #{map}"
-      end
-
-      return cleaned
-    end
-
   end
 end
 
@@ -221,7 +200,7 @@ def template(version, &block)
   case version
     when CloudFormation::Template::VERSION
       tmpl = CloudFormation::Template.new()
-      tmpl.overrides.merge!($cftemplate_parameters)
+      tmpl.overrides = {}.merge!($cftemplate_parameters)
       tmpl.instance_eval &block
       $cftemplate_output.setVersion(caller()[0], version, tmpl.description)
     else
@@ -0,0 +1,96 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link CompileDaemonClient}.
+ */
+public class CompileDaemonClientTest {
+    private ServerSocket _serverSocket;
+    private Thread _serverThread;
+
+    @After
+    public void tearDown()
+            throws Exception {
+        if (_serverSocket != null) {
+            _serverSocket.close();
+            _serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Start a server that answers the first request, the check that the daemon is up, and accepts the requests
+     * after it without ever answering, like a daemon that hangs.
+     */
+    private File startHangingDaemon()
+            throws IOException {
+        _serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+        _serverThread = new Thread("hanging-daemon") {
+            @Override
+            public void run() {
+                List<Socket> sockets = newArrayList();
+
+                try {
+                    Socket ping = _serverSocket.accept();
+                    IOUtils.toByteArray(ping.getInputStream());
+                    ping.getOutputStream().write("{\"results\": []}".getBytes(Charsets.UTF_8));
+                    ping.close();
+
+                    while (true) {
+                        sockets.add(_serverSocket.accept());
+                    }
+                } catch (IOException ex) {
+                    // Closed by the test
+                } finally {
+                    for (Socket socket : sockets) {
+                        IOUtils.closeQuietly(socket);
+                    }
+                }
+            }
+        };
+        _serverThread.start();
+
+        File daemonFile = File.createTempFile("daemon", ".json");
+        daemonFile.deleteOnExit();
+        Files.write(String.format("{\"version\": \"%s\", \"port\": %d, \"token\": \"secret\"}",
+                TemplateCompiler.getVersion(), _serverSocket.getLocalPort()), daemonFile, Charsets.UTF_8);
+        return daemonFile;
+    }
+
+    @Test
+    public void testCompile_fails_when_daemon_does_not_respond()
+            throws IOException {
+        CompileDaemonClient client = CompileDaemonClient.connect(startHangingDaemon(), 500);
+        assertNotNull(client);
+
+        long start = System.nanoTime();
+
+        try {
+            client.compile(new File("stack.rb"), null, ImmutableList.<Map<String, String>>of(ImmutableMap.<String, String>of()), 0);
+            fail("Expected the compile to time out");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("did not respond within 500 ms"));
+        }
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+    }
+}
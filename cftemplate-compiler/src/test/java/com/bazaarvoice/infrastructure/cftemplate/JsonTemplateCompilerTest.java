@@ -0,0 +1,412 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link JsonTemplateCompiler}.
+ * <p/>
+ * Every template is compiled both from the parsed template and in streaming mode, and both must produce the
+ * same output and issues.
+ */
+public class JsonTemplateCompilerTest extends TemplateCompilerTest {
+    private List<CompileIssue> assertCompile(String name) {
+        return assertCompile(name, 0);
+    }
+
+    private List<CompileIssue> assertCompile(String name, int errors) {
+        return assertCompile(new JsonTemplateCompiler(), name, errors);
+    }
+
+    private List<CompileIssue> assertCompile(JsonTemplateCompiler compiler, String name, int errors) {
+        return assertCompile(compiler, name, errors, 0);
+    }
+
+    private List<CompileIssue> assertCompile(JsonTemplateCompiler compiler, String name, int errors, int warnings) {
+        compiler.setStreaming(false);
+        List<CompileIssue> treeIssues = assertCompileMode(compiler, name, errors, warnings);
+
+        compiler.setStreaming(true);
+        List<CompileIssue> streamingIssues = assertCompileMode(compiler, name, errors, warnings);
+
+        assertEquals(messages(treeIssues), messages(streamingIssues));
+        assertEquals(locations(treeIssues), locations(streamingIssues));
+        return streamingIssues;
+    }
+
+    private List<CompileIssue> assertCompileMode(JsonTemplateCompiler compiler, String name, int errors, int warnings) {
+        try {
+            File templateFile = resourceFile(name + ".template.json");
+            File outputDir = tempDir(".output");
+            File outputFile = new File(outputDir, name + ".json");
+
+            // Output of an earlier compile, which must not survive a failed compile
+            FileUtils.writeStringToFile(outputFile, "{}");
+
+            CompileResult result = compiler.compile(templateFile, outputFile);
+
+            assertEquals(warnings, result.getIssues(CompileIssueLevel.WARN).size());
+
+            if (errors == 0) {
+                assertEquals(warnings, result.getIssues().size());
+                assertJsonEquals(resourceFile(name + ".json"), outputFile);
+            } else {
+                assertEquals(errors + warnings, result.getIssues().size());
+                assertEquals(errors, result.getIssues(CompileIssueLevel.ERROR).size());
+                assertFalse(outputFile.exists());
+            }
+
+            // Streaming writes to a temporary file first, which must always be cleaned up
+            assertEquals(errors == 0 ? 1 : 0, outputDir.list().length);
+
+            return result.getIssues();
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static String messages(List<CompileIssue> issues) {
+        StringBuilder messages = new StringBuilder();
+
+        for (CompileIssue issue : issues) {
+            messages.append(issue.getMessage()).append('\n');
+        }
+
+        return messages.toString();
+    }
+
+    private static String locations(List<CompileIssue> issues) {
+        StringBuilder locations = new StringBuilder();
+
+        for (CompileIssue issue : issues) {
+            locations.append(issue.getLocation()).append('\n');
+        }
+
+        return locations.toString();
+    }
+
+    @Test
+    public void testCompile_template() {
+        assertCompile("stack");
+    }
+
+    @Test
+    public void testCompile_with_parameter_overrides() {
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+        compiler.setParameters(ImmutableMap.of("InstanceType", "m1.large", "Missing", "value"));
+
+        for (boolean streaming : new boolean[] {false, true}) {
+            try {
+                compiler.setStreaming(streaming);
+
+                File outputFile = new File(tempDir(".output"), "stack.json");
+                CompileResult result = compiler.compile(resourceFile("stack.template.json"), outputFile);
+
+                assertEquals(0, result.getIssues().size());
+                assertEquals("m1.large", new ObjectMapper().readTree(outputFile).path("Parameters").path("InstanceType").path("Default").getTextValue());
+            } catch (Exception ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+    }
+
+    @Test
+    public void testCompile_source_in_memory() {
+        try {
+            File templateFile = resourceFile("stack.template.json");
+            File outputFile = new File(tempDir(".output"), "stack.json");
+
+            CompileResult result = new JsonTemplateCompiler().compile(FileUtils.readFileToString(templateFile), templateFile);
+            new JsonTemplateCompiler().compile(templateFile, outputFile);
+
+            assertEquals(0, result.getIssues().size());
+            assertEquals(new ObjectMapper().readTree(resourceFile("stack.json")), result.getTemplate());
+            assertArrayEquals(FileUtils.readFileToByteArray(outputFile), result.getTemplateBytes());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_source_in_memory_with_errors() {
+        try {
+            CompileResult result = new JsonTemplateCompiler().compile("{\"AWSTemplateFormatVersion\": \"2010-09-09\"}", new File("inline.json"));
+
+            assertEquals(1, result.getIssues(CompileIssueLevel.ERROR).size());
+            assertNull(result.getTemplate());
+            assertNull(result.getTemplateBytes());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_compact_output() {
+        try {
+            File templateFile = resourceFile("stack.template.json");
+
+            for (boolean compact : new boolean[] {false, true}) {
+                JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+                compiler.setCompact(compact);
+
+                File treeFile = new File(tempDir(".output"), "stack.json");
+                compiler.compile(templateFile, treeFile);
+
+                compiler.setStreaming(true);
+                File streamingFile = new File(tempDir(".output"), "stack.json");
+                compiler.compile(templateFile, streamingFile);
+
+                assertJsonEquals(resourceFile("stack.json"), treeFile);
+                assertEquals(FileUtils.readFileToString(treeFile), FileUtils.readFileToString(streamingFile));
+                assertEquals(!compact, FileUtils.readFileToString(treeFile).contains("\n"));
+            }
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_with_invalid_version() {
+        assertCompile("invalidVersion", 1);
+    }
+
+    @Test
+    public void testCompile_with_version_not_a_string() {
+        List<CompileIssue> issues = assertCompile("versionNotString", 1);
+
+        assertEquals("AWSTemplateFormatVersion must be a string.\n", messages(issues));
+        assertEquals("/AWSTemplateFormatVersion\n", locations(issues));
+    }
+
+    @Test
+    public void testCompile_with_description_not_a_string() {
+        // The streaming compiler must skip the whole value and still see the Resources section after it
+        List<CompileIssue> issues = assertCompile("descriptionNotString", 1);
+
+        assertEquals("Description must be a string.\n", messages(issues));
+        assertEquals("/Description\n", locations(issues));
+    }
+
+    @Test
+    public void testCompile_with_unexpected_key() {
+        assertCompile("unexpectedKey", 1);
+    }
+
+    @Test
+    public void testCompile_with_circular_depends_on() {
+        assertCompile("circularDependsOn", 1);
+    }
+
+    @Test
+    public void testCompile_with_depends_on_list() {
+        assertCompile("dependsOnList");
+    }
+
+    @Test
+    public void testCompile_with_multiple_circular_depends_on() {
+        assertEquals(
+                "DependsOn for resource Fifth targets resource Sixht, which does not exist. Perhaps you meant Sixth?\n" +
+                "Circular DependsOn dependency chain between resources: First, Second\n" +
+                "Circular DependsOn dependency chain between resources: Third\n" +
+                "Circular DependsOn dependency chain between resources: Fourth, Fifth, Sixth\n",
+                messages(assertCompile("multipleCycles", 4)));
+    }
+
+    @Test
+    public void testCompile_with_long_depends_on_chain() {
+        StringBuilder template = new StringBuilder("{\"AWSTemplateFormatVersion\": \"2010-09-09\", \"Resources\": {");
+        int count = 20000;
+
+        for (int i = 0; i < count; ++i) {
+            template.append(String.format("%s\"R%d\": {\"Type\": \"AWS::CloudFormation::WaitConditionHandle\", \"DependsOn\": \"R%d\"}",
+                    i == 0 ? "" : ", ", i, (i + 1) % count));
+        }
+
+        template.append("}}");
+
+        try {
+            CompileResult result = new JsonTemplateCompiler().compile(template.toString(), new File("chain.json"));
+
+            assertEquals(1, result.getIssues().size());
+            assertTrue(result.getIssues().get(0).getMessage().endsWith(", R19999"));
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_with_duplicate_parameter_and_resource() {
+        assertCompile("duplicateParameterAndResource", 2);
+    }
+
+    @Test
+    public void testCompile_with_references() {
+        assertCompile("references");
+    }
+
+    @Test
+    public void testCompile_with_broken_references() {
+        assertEquals(
+                "Fn::FindInMap in resource Server targets key us-east-2, which does not exist in mapping RegionMap. Perhaps you meant us-east-1?\n" +
+                "Fn::FindInMap in resource Server targets value AIM, which does not exist in mapping RegionMap. Perhaps you meant AMI?\n" +
+                "Ref in resource Server targets AWS::Regin, which is not a parameter, resource or pseudo parameter. Perhaps you meant AWS::Region?\n" +
+                "Fn::FindInMap in resource Server targets mapping RegionMaps, which does not exist. Perhaps you meant RegionMap?\n" +
+                "Ref in resource Server targets Enviroment, which is not a parameter, resource or pseudo parameter. Perhaps you meant Environment?\n" +
+                "Fn::GetAtt in resource Server targets Environment, which is a parameter, not a resource.\n" +
+                "Fn::GetAtt in output ServerIp targets resource Sever, which does not exist. Perhaps you meant Server?\n" +
+                "Fn::GetAtt in output ServerDns must be a list of a resource name and an attribute name.\n",
+                messages(assertCompile("brokenReferences", 8)));
+    }
+
+    @Test
+    public void testCompile_with_max_errors() {
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+        compiler.setMaxErrors(3);
+
+        for (boolean streaming : new boolean[] {false, true}) {
+            try {
+                compiler.setStreaming(streaming);
+
+                File outputDir = tempDir(".output");
+                CompileResult result = compiler.compile(resourceFile("brokenReferences.template.json"), new File(outputDir, "brokenReferences.json"));
+
+                assertEquals(
+                        "Fn::FindInMap in resource Server targets key us-east-2, which does not exist in mapping RegionMap. Perhaps you meant us-east-1?\n" +
+                        "Fn::FindInMap in resource Server targets value AIM, which does not exist in mapping RegionMap. Perhaps you meant AMI?\n" +
+                        "Ref in resource Server targets AWS::Regin, which is not a parameter, resource or pseudo parameter. Perhaps you meant AWS::Region?\n" +
+                        "Stopped validating the template after 3 errors.\n",
+                        messages(result.getIssues()));
+                assertEquals(3, result.getIssues(CompileIssueLevel.ERROR).size());
+                assertEquals(CompileIssueLevel.WARN, result.getIssues().get(3).getLevel());
+                assertEquals(0, outputDir.list().length);
+            } catch (Exception ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+    }
+
+    @Test
+    public void testCompile_with_max_errors_reached_in_error_handler() {
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+        compiler.setMaxErrors(1);
+
+        for (boolean streaming : new boolean[] {false, true}) {
+            try {
+                compiler.setStreaming(streaming);
+
+                // The second AllowedPattern error is reported inside a handler that catches every exception
+                File outputDir = tempDir(".output");
+                CompileResult result = compiler.compile(resourceFile("maxErrorsInHandler.template.json"), new File(outputDir, "maxErrorsInHandler.json"));
+
+                assertEquals(
+                        "Parameter Port Default value http does not match AllowedPattern constraint.\n" +
+                        "Stopped validating the template after 1 errors.\n",
+                        messages(result.getIssues()));
+                assertEquals(CompileIssueLevel.WARN, result.getIssues().get(1).getLevel());
+                assertEquals(0, outputDir.list().length);
+            } catch (Exception ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+    }
+
+    @Test
+    public void testCompile_with_resource_properties() {
+        List<CompileIssue> issues = assertCompile(new JsonTemplateCompiler(), "resourceProperties", 2, 2);
+
+        assertEquals(
+                "/Resources/Server/Properties/InstanceTyp\n" +
+                "/Resources/Volume/Properties\n" +
+                "/Resources/Volume/Properties/Iops\n" +
+                "/Outputs/ServerIp/Value\n",
+                locations(issues));
+        assertEquals(CompileIssueLevel.WARN, issues.get(0).getLevel());
+        assertEquals("InstanceTyp is not a known property of resource Server of type AWS::EC2::Instance. Perhaps you meant InstanceType?", issues.get(0).getMessage());
+        assertEquals("AvailabilityZone is required for resource Volume of type AWS::EC2::Volume.", issues.get(1).getMessage());
+        assertEquals("fast is not a valid value for property Iops of resource Volume. The value must be an integer.", issues.get(2).getMessage());
+        assertEquals(CompileIssueLevel.WARN, issues.get(3).getLevel());
+        assertEquals("Fn::GetAtt in output ServerIp targets attribute PublicIP, which is not a known attribute of resources of type AWS::EC2::Instance. Perhaps you meant PublicIp?", issues.get(3).getMessage());
+    }
+
+    @Test
+    public void testCompile_with_typed_properties() {
+        assertCompile("typedProperties");
+    }
+
+    @Test
+    public void testCompile_without_resource_schemas() {
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+        compiler.setResourceSchemas(ResourceSchemaRegistry.EMPTY);
+
+        assertCompile(compiler, "resourceProperties", 0);
+    }
+
+    @Test
+    public void testCompile_issue_locations() {
+        assertEquals(
+                "/Resources/Server/Properties/ImageId\n" +
+                "/Resources/Server/Properties/KernelId\n" +
+                "/Resources/Server/Properties/KernelId/Fn::FindInMap/1\n" +
+                "/Resources/Server/Properties/RamdiskId\n" +
+                "/Resources/Server/Properties/Tags/0/Value\n" +
+                "/Resources/Server/Properties/UserData\n" +
+                "/Outputs/ServerIp/Value\n" +
+                "/Outputs/ServerDns/Value\n",
+                locations(assertCompile("brokenReferences", 8)));
+        assertEquals(
+                "/Resource\n",
+                locations(assertCompile("unexpectedKey", 1)));
+        assertEquals(
+                "/Resources/Fifth/DependsOn\n" +
+                "/Resources/First\n" +
+                "/Resources/Third\n" +
+                "/Resources/Fourth\n",
+                locations(assertCompile("multipleCycles", 4)));
+    }
+
+    @Test
+    public void testCompile_with_resource_cycle() {
+        assertEquals(
+                "Circular DependsOn dependency chain between resources: Handle, Wait\n" +
+                "Circular dependency chain between resources through Ref or Fn::GetAtt: Queue, DeadLetterQueue\n",
+                messages(assertCompile("resourceCycle", 2)));
+    }
+
+    @Test
+    public void testCompile_with_dependency_graph() {
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+
+        for (boolean streaming : new boolean[] {false, true}) {
+            for (DependencyGraphFormat format : DependencyGraphFormat.values()) {
+                try {
+                    compiler.setStreaming(streaming);
+                    compiler.setDependencyGraphFormat(format);
+
+                    File outputFile = new File(tempDir(".output"), "deployOrder.json");
+                    CompileResult result = compiler.compile(resourceFile("deployOrder.template.json"), outputFile);
+                    File graphFile = format.getGraphFile(outputFile);
+
+                    assertEquals(0, result.getIssues().size());
+                    assertEquals(ImmutableList.of("SecurityGroup", "Server", "Wait"), result.getResourceGraph().getCriticalPath());
+                    assertEquals(3, result.getResourceGraph().getLevels().size());
+                    assertEquals(FileUtils.readFileToString(resourceFile(graphFile.getName())), FileUtils.readFileToString(graphFile));
+                } catch (Exception ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+        }
+    }
+}
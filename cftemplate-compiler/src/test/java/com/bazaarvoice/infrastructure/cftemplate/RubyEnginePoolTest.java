@@ -0,0 +1,37 @@
+package com.bazaarvoice.infrastructure.cftemplate;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link RubyEnginePool}.
+ */
+public class RubyEnginePoolTest {
+    @Test(timeout = 10000)
+    public void testAcquire_frees_slot_when_engine_fails_to_start() {
+        final AtomicInteger attempts = new AtomicInteger();
+        RubyEnginePool pool = new RubyEnginePool(1) {
+            @Override
+            Engine newEngine() {
+                attempts.incrementAndGet();
+                throw new ExceptionInInitializerError("unsupported Java version");
+            }
+        };
+
+        // Each call tries to start an engine again instead of waiting for the slot of the failed one
+        for (int i = 0; i < 2; ++i) {
+            try {
+                pool.acquire();
+                fail();
+            } catch (ExceptionInInitializerError ex) {
+                // expected
+            }
+        }
+
+        assertEquals(2, attempts.get());
+    }
+}
@@ -1,14 +1,29 @@
 package com.bazaarvoice.infrastructure.cftemplate;
 
 import com.google.common.base.Throwables;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
 import java.util.Map;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit test for {@link RubyTemplateCompiler}.
@@ -25,7 +40,7 @@ public class RubyTemplateCompilerTest extends TemplateCompilerTest {
         return assertCompile(new RubyTemplateCompiler(), name, errors);
     }
 
-    private CompileResult assertCompile(RubyTemplateCompiler compiler, String name, int errors) {
+    private CompileResult assertCompile(TemplateCompiler compiler, String name, int errors) {
         try {
             String templateName = name + ".rb";
             String outputName = name + ".json";
@@ -125,6 +140,11 @@ public class RubyTemplateCompilerTest extends TemplateCompilerTest {
         assertCompile("parameterNumberDefault");
     }
 
+    @Test
+    public void testCompile_floats_formatted_like_ruby() {
+        assertCompile("floatValues");
+    }
+
     @Test
     public void testCompile_list_parameter_with_default() {
         assertCompile("parameterListDefault");
@@ -155,6 +175,22 @@ public class RubyTemplateCompilerTest extends TemplateCompilerTest {
         assertCompile("fileUtility");
     }
 
+    @Test
+    public void testCompile_file_utility_errors() {
+        CompileResult result = assertCompile("fileUtilityErrors", 2);
+        File file = resourceFile("fileUtilityErrors.txt").getAbsoluteFile();
+
+        CompileIssue evaluationError = result.getIssues().get(0);
+        assertEquals(file, evaluationError.getLocation().getFile());
+        assertEquals(3, evaluationError.getLocation().getLine());
+        assertTrue(evaluationError.getMessage(), evaluationError.getMessage().startsWith("Error evaluating 'undefined_helper('SomeRef')' at column 6."));
+
+        CompileIssue unclosedError = result.getIssues().get(1);
+        assertEquals(file, unclosedError.getLocation().getFile());
+        assertEquals(4, unclosedError.getLocation().getLine());
+        assertEquals("Unable to find matching close braces for the {{ at column 7.", unclosedError.getMessage());
+    }
+
     @Test
     public void testCompile_tags_utility_methods() {
         assertCompile("tagsUtility");
@@ -208,8 +244,320 @@ public class RubyTemplateCompilerTest extends TemplateCompilerTest {
         assertCompile(compiler, "parameterOverrides", 0);
     }
 
+    @Test
+    public void testCompileVariants_parameter_overrides() {
+        Map<String, String> parameters = newHashMap();
+        parameters.put("NotFound", "AAAA");
+        parameters.put("NullValue", null);
+        parameters.put("Param1", "");
+        parameters.put("Param2", "BBBB");
+
+        Map<String, Map<String, String>> variants = newLinkedHashMap();
+        variants.put("defaults", Collections.<String, String>emptyMap());
+        variants.put("overrides", parameters);
+
+        try {
+            File templateFile = resourceFile("parameterOverrides.rb");
+            Map<String, CompileResult> results = new RubyTemplateCompiler().compileVariants(templateFile, variants);
+
+            assertEquals(newArrayList("defaults", "overrides"), newArrayList(results.keySet()));
+
+            for (Map.Entry<String, Map<String, String>> variant : variants.entrySet()) {
+                RubyTemplateCompiler compiler = new RubyTemplateCompiler();
+                compiler.setParameters(variant.getValue());
+
+                assertEquals(0, results.get(variant.getKey()).getIssues().size());
+                assertEquals(compiler.compile(templateFile).getTemplate(), results.get(variant.getKey()).getTemplate());
+            }
+
+            assertEquals(new ObjectMapper().readTree(resourceFile("parameterOverrides.json")), results.get("overrides").getTemplate());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompileVariants_template_reads_overrides() {
+        Map<String, Map<String, String>> variants = newLinkedHashMap();
+        variants.put("dev", Collections.<String, String>emptyMap());
+        variants.put("prod", Collections.singletonMap("Environment", "prod"));
+
+        try {
+            Map<String, CompileResult> results = new RubyTemplateCompiler().compileVariants(resourceFile("variantsReadOverrides.rb"), variants);
+
+            assertEquals(1, results.get("dev").getTemplate().get("Resources").size());
+            assertEquals(2, results.get("prod").getTemplate().get("Resources").size());
+            assertEquals("prod", results.get("prod").getTemplate().get("Parameters").get("Environment").get("Default").getTextValue());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompileVariants_template_reads_overrides_directly() {
+        Map<String, Map<String, String>> variants = newLinkedHashMap();
+        variants.put("prod", Collections.singletonMap("Environment", "prod"));
+        variants.put("dev", Collections.<String, String>emptyMap());
+
+        try {
+            Map<String, CompileResult> results = new RubyTemplateCompiler().compileVariants(resourceFile("variantsReadOverridesDirectly.rb"), variants);
+
+            assertEquals(2, results.get("prod").getTemplate().get("Resources").size());
+            assertEquals("prod", results.get("prod").getTemplate().get("Parameters").get("Environment").get("Default").getTextValue());
+            assertEquals(1, results.get("dev").getTemplate().get("Resources").size());
+            assertEquals("dev", results.get("dev").getTemplate().get("Parameters").get("Environment").get("Default").getTextValue());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompileVariants_keeps_defaults_not_overridden() {
+        Map<String, Map<String, String>> variants = newLinkedHashMap();
+        variants.put("overrides", Collections.singletonMap("Param1", "GHI"));
+        variants.put("defaults", Collections.<String, String>emptyMap());
+
+        try {
+            Map<String, CompileResult> results = new RubyTemplateCompiler().compileVariants(resourceFile("parameterOverrides.rb"), variants);
+
+            assertEquals("GHI", results.get("overrides").getTemplate().get("Parameters").get("Param1").get("Default").getTextValue());
+            assertEquals("ABC", results.get("defaults").getTemplate().get("Parameters").get("Param1").get("Default").getTextValue());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
     @Test
     public void testCompile_select_builtin_function() {
         assertCompile("fnSelect");
     }
+
+    @Test
+    public void testCompile_reuses_engine_without_leaking_state() {
+        RubyTemplateCompiler compiler = new RubyTemplateCompiler(new RubyEnginePool(1));
+
+        try {
+            assertCompile(compiler, "engineLeakMethod", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakConstant", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakGlobal", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakDsl", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakVersion", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakRegion", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+            assertCompile(compiler, "engineLeakModuleVariable", 0);
+            assertCompile(compiler, "engineLeakCheck", 0);
+        } finally {
+            compiler.getEnginePool().close();
+        }
+    }
+
+    @Test
+    public void testCompile_source_in_memory() {
+        RubyTemplateCompiler compiler = new RubyTemplateCompiler(new RubyEnginePool(1));
+
+        try {
+            for (String name : new String[] {"engineLeakMethod", "engineLeakCheck", "engineLeakConstant", "engineLeakCheck", "fileUtility"}) {
+                File templateFile = resourceFile(name + ".rb");
+                CompileResult result = compiler.compile(FileUtils.readFileToString(templateFile), templateFile);
+
+                assertEquals(0, result.getIssues().size());
+                assertEquals(new ObjectMapper().readTree(resourceFile(name + ".json")), result.getTemplate());
+            }
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            compiler.getEnginePool().close();
+        }
+    }
+
+    @Test
+    public void testCompile_metrics() {
+        RubyTemplateCompiler compiler = new RubyTemplateCompiler(new RubyEnginePool(1));
+
+        try {
+            CompileMetrics first = assertCompile(compiler, "resources", 0).getMetrics();
+            CompileMetrics second = assertCompile(compiler, "resources", 0).getMetrics();
+
+            // Only the compile that started the engine includes starting it
+            assertTrue(first.getPhase(CompileMetrics.BOOT) > 0);
+            assertTrue(first.getPhase(CompileMetrics.REQUIRE) > 0);
+            assertFalse(second.getPhases().containsKey(CompileMetrics.BOOT));
+
+            for (String phase : new String[] {CompileMetrics.ACQUIRE, CompileMetrics.EVALUATE, CompileMetrics.CONVERT, CompileMetrics.VALIDATE, CompileMetrics.WRITE}) {
+                assertTrue(phase, second.getPhases().containsKey(phase));
+            }
+
+            assertEquals(compiler.compile(resourceFile("resources.rb")).getTemplate().get("Resources").size(), second.getResourceCount());
+            assertTrue(second.getOutputBytes() > 0);
+            assertEquals(second.getTotal(), CompileMetrics.fromJson(second.toJson()).getTotal());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            compiler.getEnginePool().close();
+        }
+    }
+
+    @Test
+    public void testCompile_with_compile_cache() {
+        CompileCache cache = new CompileCache(tempDir(".cache"), 1024 * 1024);
+        CachingTemplateCompiler compiler = new CachingTemplateCompiler(new RubyTemplateCompiler(), cache);
+
+        try {
+            CompileResult compiled = assertCompile(compiler, "fileUtility", 0);
+            CompileResult cached = assertCompile(compiler, "fileUtility", 0);
+
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertEquals(compiled.getFiles(), cached.getFiles());
+
+            // Changing an included file or a parameter override compiles the template again
+            FileUtils.writeStringToFile(resourceFile("fileUtility_novars.txt"), "changed");
+            assertEquals("changed", compiler.compile(resourceFile("fileUtility.rb")).getTemplate().get("Outputs").get("NoVariables").get("Value").getTextValue());
+
+            compiler.setParameters(Collections.singletonMap("SomeRef", "value"));
+            compiler.compile(resourceFile("fileUtility.rb"));
+
+            assertEquals(3, cache.getMisses());
+            assertEquals(1, cache.getHits());
+
+            // Templates with errors are compiled every time
+            assertCompile(compiler, "invalidVersion", 1);
+            assertCompile(compiler, "invalidVersion", 1);
+            assertEquals(5, cache.getMisses());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_with_compile_cache_and_required_files() {
+        CompileCache cache = new CompileCache(tempDir(".cache"), 1024 * 1024);
+        CachingTemplateCompiler compiler = new CachingTemplateCompiler(new RubyTemplateCompiler(), cache);
+
+        try {
+            CompileResult compiled = assertCompile(compiler, "requiredFiles", 0);
+            assertEquals(resourceFile("requiredFiles.rb").getPath(), compiled.getFiles().get(0));
+            assertEquals(newHashSet(
+                    resourceFile("requiredFiles.rb").getPath(),
+                    resourceFile("requiredFiles_helper.rb").getPath(),
+                    resourceFile("requiredFiles_loaded.rb").getPath()), newHashSet(compiled.getFiles()));
+
+            assertCompile(compiler, "requiredFiles", 0);
+            assertEquals(1, cache.getHits());
+
+            // Changing a file the template requires or loads compiles the template again
+            FileUtils.writeStringToFile(resourceFile("requiredFiles_helper.rb"), "module RequiredFilesHelper\n  VALUE = 'changed'\nend\n");
+            assertEquals("changed", compiler.compile(resourceFile("requiredFiles.rb")).getTemplate().get("Outputs").get("Required").get("Value").getTextValue());
+
+            FileUtils.writeStringToFile(resourceFile("requiredFiles_loaded.rb"), "module RequiredFilesLoaded\n  VALUE = 'changed'\nend\n");
+            assertEquals("changed", compiler.compile(resourceFile("requiredFiles.rb")).getTemplate().get("Outputs").get("Loaded").get("Value").getTextValue());
+
+            assertEquals(3, cache.getMisses());
+            assertEquals(1, cache.getHits());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Test
+    public void testCompile_file_changed_within_mtime_resolution() {
+        File dir = tempDir(".files");
+        File templateFile = new File(dir, "included.rb");
+        File includedFile = new File(dir, "included.txt");
+        RubyTemplateCompiler compiler = new RubyTemplateCompiler(new RubyEnginePool(1));
+
+        try {
+            FileUtils.writeStringToFile(templateFile, "template '2010-09-09' do\n" +
+                    "  output 'Text' => file('included.txt')\n" +
+                    "  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'\n" +
+                    "end\n");
+            FileUtils.writeStringToFile(includedFile, "first");
+            long lastModified = includedFile.lastModified();
+            assertEquals("first", compiler.compile(templateFile).getTemplate().get("Outputs").get("Text").get("Value").getTextValue());
+
+            // Same length and modification time, as a second write within a coarse mtime tick would leave it
+            FileUtils.writeStringToFile(includedFile, "other");
+            includedFile.setLastModified(lastModified);
+            assertEquals("other", compiler.compile(templateFile).getTemplate().get("Outputs").get("Text").get("Value").getTextValue());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            compiler.getEnginePool().close();
+        }
+    }
+
+    @Test
+    public void testCompile_in_daemon() {
+        File daemonFile = new File(tempDir(".daemon"), "daemon.json");
+        CompileDaemon daemon = new CompileDaemon(new RubyEnginePool(1), 2);
+
+        try {
+            daemon.start(daemonFile);
+
+            CompileDaemonClient client = CompileDaemonClient.connect(daemonFile);
+            assertNotNull(client);
+
+            DaemonTemplateCompiler compiler = new DaemonTemplateCompiler(client);
+            assertCompile(compiler, "resources", 0);
+            assertCompile(compiler, "fileUtility", 0);
+            assertCompile(compiler, "invalidVersion", 1);
+
+            Map<String, Map<String, String>> variants = newLinkedHashMap();
+            variants.put("dev", Collections.<String, String>emptyMap());
+            variants.put("prod", Collections.singletonMap("Environment", "prod"));
+
+            Map<String, CompileResult> results = compiler.compileVariants(resourceFile("variantsReadOverrides.rb"), variants);
+            assertEquals(newArrayList("dev", "prod"), newArrayList(results.keySet()));
+            assertEquals(1, results.get("dev").getTemplate().get("Resources").size());
+            assertEquals(2, results.get("prod").getTemplate().get("Resources").size());
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            daemon.stop();
+        }
+
+        assertFalse(daemonFile.exists());
+        assertNull(CompileDaemonClient.connect(daemonFile));
+    }
+
+    @Test
+    public void testCompile_daemon_rejects_invalid_requests() {
+        File daemonFile = new File(tempDir(".daemon"), "daemon.json");
+        CompileDaemon daemon = new CompileDaemon(new RubyEnginePool(1), 1);
+
+        try {
+            daemon.start(daemonFile);
+
+            JsonNode response = daemonRequest(daemon.getPort(), "{\"token\": \"invalid\"}".getBytes("UTF-8"));
+            assertEquals("Invalid token", response.path("error").getTextValue());
+
+            response = daemonRequest(daemon.getPort(), new byte[CompileDaemon.MAX_REQUEST_BYTES + 1]);
+            assertTrue(response.path("error").getTextValue(), response.path("error").getTextValue().contains("Request exceeds"));
+        } catch (Exception ex) {
+            throw Throwables.propagate(ex);
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static JsonNode daemonRequest(int port, byte[] request)
+            throws IOException {
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+
+        try {
+            OutputStream output = socket.getOutputStream();
+            output.write(request);
+            output.flush();
+            socket.shutdownOutput();
+
+            return new ObjectMapper().readTree(IOUtils.toByteArray(socket.getInputStream()));
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
 }
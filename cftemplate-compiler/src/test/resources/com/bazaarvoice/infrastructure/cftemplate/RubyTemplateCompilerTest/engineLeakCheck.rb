@@ -0,0 +1,15 @@
+template '2010-09-09' do
+  output 'Helper' => defined?(leaked_helper).inspect,
+         'Constant' => defined?(LeakedConstant).inspect,
+         'Global' => $leaked_global.inspect,
+         'StringMethod' => ''.respond_to?(:leaked_method).inspect,
+         'Region' => aws_region,
+         'StackId' => Aws::STACK_ID,
+         'ClassVariable' => CloudFormation::Template.class_variable_defined?(:@@leaked).inspect,
+         'FieldSeparator' => $,.inspect,
+         'Version' => CloudFormation::Template::VERSION,
+         'ModuleVariable' => CloudFormation::Template.instance_variable_get(:@leaked).inspect
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
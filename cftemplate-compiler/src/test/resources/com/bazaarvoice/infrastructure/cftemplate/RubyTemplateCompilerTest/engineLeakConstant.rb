@@ -0,0 +1,8 @@
+LeakedConstant = 'leaked'
+
+template '2010-09-09' do
+  output 'Constant' => LeakedConstant
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
@@ -0,0 +1,23 @@
+# Replaces parts of the DSL and the runtime without adding or removing any methods, constants or globals
+Ref.class_eval do
+  def aws_region
+    'leaked'
+  end
+end
+
+Aws.send(:remove_const, :STACK_ID)
+Aws.const_set(:STACK_ID, 'leaked')
+
+CloudFormation::Template.class_variable_set(:@@leaked, 'leaked')
+
+$, = 'leaked'
+
+template '2010-09-09' do
+  output 'Region' => aws_region,
+         'StackId' => Aws::STACK_ID,
+         'ClassVariable' => CloudFormation::Template.class_variable_get(:@@leaked),
+         'FieldSeparator' => $,
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
@@ -0,0 +1,15 @@
+$leaked_global = 'leaked'
+
+String.class_eval do
+  def leaked_method
+    'leaked'
+  end
+end
+
+template '2010-09-09' do
+  output 'Global' => $leaked_global,
+         'StringMethod' => ''.leaked_method
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
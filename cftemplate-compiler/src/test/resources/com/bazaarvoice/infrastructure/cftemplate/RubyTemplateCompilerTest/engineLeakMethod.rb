@@ -0,0 +1,10 @@
+def leaked_helper
+  'leaked'
+end
+
+template '2010-09-09' do
+  output 'Helper' => leaked_helper
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
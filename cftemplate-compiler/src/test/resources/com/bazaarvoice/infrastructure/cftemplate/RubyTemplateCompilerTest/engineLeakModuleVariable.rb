@@ -0,0 +1,9 @@
+# Sets an instance variable of a DSL module, which is neither a constant nor a class variable
+CloudFormation::Template.instance_variable_set(:@leaked, 'leaked')
+
+template '2010-09-09' do
+  output 'ModuleVariable' => CloudFormation::Template.instance_variable_get(:@leaked)
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
@@ -0,0 +1,13 @@
+# Changes a constant of the DSL in place instead of reassigning it
+version = begin
+  CloudFormation::Template::VERSION.replace('leaked')
+rescue RuntimeError
+  'frozen'
+end
+
+template '2010-09-09' do
+  output 'Version' => version
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
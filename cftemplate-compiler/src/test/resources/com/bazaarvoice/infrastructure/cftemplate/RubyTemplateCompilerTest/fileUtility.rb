@@ -1,4 +1,6 @@
 template '2010-09-09' do
+  parameter 'SomeRef', 'String'
+
   output 'EmptyFile' => file('fileUtility_empty.txt')
   output 'NoVariables' => file('fileUtility_novars.txt')
   output 'WithVariables' => file('fileUtility_withvars.txt')
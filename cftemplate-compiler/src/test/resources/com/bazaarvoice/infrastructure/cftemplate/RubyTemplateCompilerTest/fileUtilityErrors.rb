@@ -0,0 +1,8 @@
+template '2010-09-09' do
+  parameter 'SomeRef', 'String'
+
+  output 'Script' => file('fileUtilityErrors.txt')
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
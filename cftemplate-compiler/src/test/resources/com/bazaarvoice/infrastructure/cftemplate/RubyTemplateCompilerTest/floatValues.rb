@@ -0,0 +1,23 @@
+# Floats are formatted with Ruby's to_s in parameters, mappings and outputs
+
+template '2010-09-09' do
+  parameter 'Large', :String do
+    default 1.0e20
+  end
+
+  parameter 'Small', :String do
+    default 0.00001
+  end
+
+  mapping 'Mapping' => {
+              'MapA' => {
+                  'Large' => 1.0e20,
+                  'Fraction' => 2.5
+              }
+          }
+
+  output 'Output' => 1.0e20
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
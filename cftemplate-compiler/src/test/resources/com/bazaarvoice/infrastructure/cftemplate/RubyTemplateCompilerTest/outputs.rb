@@ -1,6 +1,8 @@
 # Max 32 outputs
 
 template '2010-09-09' do
+  parameter 'OutputRef', 'String'
+
   output 'Output1' => ref('OutputRef')
   output 'Output2' => 'OutputValue'
 
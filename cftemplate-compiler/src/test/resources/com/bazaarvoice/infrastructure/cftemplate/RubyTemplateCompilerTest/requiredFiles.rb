@@ -0,0 +1,10 @@
+require_relative 'requiredFiles_helper'
+load File.expand_path('requiredFiles_loaded.rb', File.dirname(__FILE__))
+
+template '2010-09-09' do
+  output 'Required' => RequiredFilesHelper::VALUE
+  output 'Loaded' => RequiredFilesLoaded::VALUE
+
+  # At least one resource is required
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+end
@@ -0,0 +1,3 @@
+module RequiredFilesHelper
+  VALUE = 'required'
+end
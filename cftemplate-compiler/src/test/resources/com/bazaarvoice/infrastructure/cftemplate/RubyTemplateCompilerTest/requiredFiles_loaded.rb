@@ -0,0 +1,3 @@
+module RequiredFilesLoaded
+  VALUE = 'loaded'
+end
@@ -1,4 +1,6 @@
 template '2010-09-09' do
+  parameter 'Role1', 'String'
+
   # Plural 'roles'
   iam_instance_profile 'Profile1' do
     path '/'
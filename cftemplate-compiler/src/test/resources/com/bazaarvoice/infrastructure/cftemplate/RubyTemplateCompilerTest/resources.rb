@@ -1,4 +1,6 @@
 template '2010-09-09' do
+  parameter 'InstanceRole', 'String'
+
   resource 'Resource1', 'AWS::IAM::InstanceProfile' do
     properties 'Path' => '/',
                'Roles' => [ref('InstanceRole')]
@@ -12,7 +14,7 @@ template '2010-09-09' do
     depends_on 'Resource1'
   end
 
-  resource 'ResourceSingle', 'AWS::IAM::InstanceProfile' do
+  resource 'ResourceSingle', 'Custom::Settings' do
     property 'Path' => '/'
     property 'Other' => 7,
              'Some' => 8.0
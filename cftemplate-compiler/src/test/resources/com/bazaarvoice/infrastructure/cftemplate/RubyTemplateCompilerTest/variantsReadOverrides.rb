@@ -0,0 +1,11 @@
+template '2010-09-09' do
+  parameter 'Environment', :String do
+    default 'dev'
+  end
+
+  resource 'Dummy', 'AWS::CloudFormation::WaitConditionHandle'
+
+  if overrides['Environment'] == 'prod'
+    resource 'ProdOnly', 'AWS::CloudFormation::WaitConditionHandle'
+  end
+end
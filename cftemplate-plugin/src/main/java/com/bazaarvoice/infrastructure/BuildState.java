@@ -0,0 +1,306 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLocation;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newTreeMap;
+
+/**
+ * Persisted record of the inputs that produced each compiled template.
+ * <p/>
+ * A template is up to date when its output file exists and the compiler version, the parameter overrides
+ * and the content of every file that was part of the compilation unit (the template itself plus any files
+ * included with the DSL <code>file</code> helper) are unchanged since the last successful compile. The warnings
+ * of that compile are recorded with it, so they can be reported again when the template is not compiled.
+ * <p/>
+ * The files are hashed before the compile starts, so a file that is edited while the template is compiled
+ * does not get recorded with content the compiler never read.
+ */
+public class BuildState {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Coarsest modification time resolution of the file systems a build may run on.
+     */
+    private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+    private final File _stateFile;
+    private final String _compilerVersion;
+    private final ConcurrentMap<String, Entry> _entries = newConcurrentMap();
+
+    /**
+     * Initialize a new, empty instance.
+     *
+     * @param stateFile file the state is saved to
+     * @param compilerVersion version of the compiler doing the current build
+     */
+    public BuildState(File stateFile, String compilerVersion) {
+        _stateFile = checkNotNull(stateFile);
+        _compilerVersion = checkNotNull(compilerVersion);
+    }
+
+    /**
+     * Load the build state from a file.
+     *
+     * @param stateFile file the state is stored in; a missing or unreadable file results in an empty state
+     * @param compilerVersion version of the compiler doing the current build
+     * @return build state
+     */
+    public static BuildState load(File stateFile, String compilerVersion) {
+        BuildState state = new BuildState(stateFile, compilerVersion);
+
+        if (stateFile.isFile()) {
+            try {
+                Map<String, Entry> entries = MAPPER.readValue(stateFile, new TypeReference<Map<String, Entry>>() {
+                });
+                state._entries.putAll(entries);
+            } catch (IOException ex) {
+                // Corrupt or incompatible state, everything is compiled again
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * File the state is saved to.
+     *
+     * @return state file
+     */
+    public File getStateFile() {
+        return _stateFile;
+    }
+
+    /**
+     * Check whether a compiled template is up to date.
+     *
+     * @param outputFile compiled template file
+     * @param parameters parameter overrides for the current build
+     * @return true if the template does not need to be compiled again
+     */
+    public boolean isUpToDate(File outputFile, Map<String, String> parameters) {
+        Entry entry = _entries.get(key(outputFile));
+
+        if (entry == null || !outputFile.isFile()) {
+            return false;
+        }
+
+        if (!_compilerVersion.equals(entry.compilerVersion) || !newHashMap(parameters).equals(entry.parameters)) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> file : entry.files.entrySet()) {
+            if (!file.getValue().equals(hash(new File(file.getKey())))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Files that were part of the last recorded compile of a template.
+     *
+     * @param outputFile compiled template file
+     * @return absolute paths of the files, or empty if no compile of the template is recorded
+     */
+    public Set<String> getFiles(File outputFile) {
+        Entry entry = _entries.get(key(outputFile));
+        return entry == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(entry.files.keySet());
+    }
+
+    /**
+     * Issues of the last recorded compile of a template, to report again while the template is up to date.
+     *
+     * @param outputFile compiled template file
+     * @return warnings and other issues below the error level, or empty if no compile of the template is recorded
+     */
+    public List<CompileIssue> getIssues(File outputFile) {
+        Entry entry = _entries.get(key(outputFile));
+        List<CompileIssue> issues = newArrayList();
+
+        if (entry != null && entry.issues != null) {
+            for (Issue issue : entry.issues) {
+                issues.add(issue.toCompileIssue());
+            }
+        }
+
+        return issues;
+    }
+
+    /**
+     * Hash the files a compile of a template is known to read, before the compile starts: the source file and
+     * the files of the last recorded compile of each output file.
+     *
+     * @param sourceFile template about to be compiled
+     * @param outputFiles compiled template files the compile writes
+     * @return hashes to pass to {@link #update(File, Map, CompileResult, Inputs)} once the compile is done
+     */
+    public Inputs hashInputs(File sourceFile, Collection<File> outputFiles) {
+        Inputs inputs = new Inputs(System.currentTimeMillis());
+        inputs.hash(sourceFile.getAbsolutePath());
+
+        for (File outputFile : outputFiles) {
+            for (String file : getFiles(outputFile)) {
+                inputs.hash(file);
+            }
+        }
+
+        return inputs;
+    }
+
+    /**
+     * Record the inputs of a compile.
+     * <p/>
+     * Only compiles without errors are recorded, so templates with errors are compiled on every build. The other
+     * issues are recorded with the compile and returned by {@link #getIssues(File)}. Files that were hashed
+     * before the compile are recorded with that hash. A file the template read for the first time is hashed now,
+     * unless it was modified after the compile started, in which case the compile is not recorded and the
+     * template is compiled again in the next build.
+     *
+     * @param outputFile compiled template file
+     * @param parameters parameter overrides the template was compiled with
+     * @param result result of the compile
+     * @param inputs hashes taken with {@link #hashInputs(File, Collection)} before the compile started
+     */
+    public void update(File outputFile, Map<String, String> parameters, CompileResult result, Inputs inputs) {
+        String key = key(outputFile);
+
+        if (!result.getIssues(CompileIssueLevel.ERROR).isEmpty()) {
+            _entries.remove(key);
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.compilerVersion = _compilerVersion;
+        entry.parameters = newHashMap(parameters);
+        entry.files = newTreeMap();
+        entry.issues = newArrayList();
+
+        for (CompileIssue issue : result.getIssues()) {
+            entry.issues.add(Issue.of(issue));
+        }
+
+        for (String file : result.getFiles()) {
+            String path = new File(file).getAbsolutePath();
+            String hash = inputs._hashes.containsKey(path) ? inputs._hashes.get(path) : inputs.hashIfUnmodified(path);
+
+            if (hash == null) {
+                _entries.remove(key);
+                return;
+            }
+
+            entry.files.put(path, hash);
+        }
+
+        _entries.put(key, entry);
+    }
+
+    /**
+     * Write the build state to disk.
+     */
+    public void save()
+            throws IOException {
+        Files.createParentDirs(_stateFile);
+        MAPPER.writeValue(_stateFile, ImmutableSortedMap.copyOf(_entries));
+    }
+
+    private static String key(File outputFile) {
+        return outputFile.getAbsolutePath();
+    }
+
+    private static String hash(File file) {
+        try {
+            return file.isFile() ? Files.hash(file, Hashing.sha1()).toString() : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Hashes of the files a compile reads, taken before it started.
+     */
+    public static class Inputs {
+        private final long _startMillis;
+        private final Map<String, String> _hashes = newHashMap();
+
+        private Inputs(long startMillis) {
+            _startMillis = startMillis;
+        }
+
+        private void hash(String path) {
+            if (!_hashes.containsKey(path)) {
+                _hashes.put(path, BuildState.hash(new File(path)));
+            }
+        }
+
+        private String hashIfUnmodified(String path) {
+            File file = new File(path);
+            return file.lastModified() + MTIME_RESOLUTION_MILLIS <= _startMillis ? BuildState.hash(file) : null;
+        }
+    }
+
+    /**
+     * Inputs of a single compiled template.
+     */
+    public static class Entry {
+        public String compilerVersion;
+        public Map<String, String> parameters;
+        public Map<String, String> files;
+        public List<Issue> issues;
+    }
+
+    /**
+     * Issue of a recorded compile.
+     */
+    public static class Issue {
+        public String level;
+        public String message;
+        public String file;
+        public int line = -1;
+        public String path;
+
+        static Issue of(CompileIssue compileIssue) {
+            Issue issue = new Issue();
+            issue.level = compileIssue.getLevel().name();
+            issue.message = compileIssue.getMessage();
+
+            CompileIssueLocation location = compileIssue.getLocation();
+
+            if (location != null) {
+                issue.file = location.getFile() == null ? null : location.getFile().getPath();
+                issue.line = location.getLine();
+                issue.path = location.getPath();
+            }
+
+            return issue;
+        }
+
+        CompileIssue toCompileIssue() {
+            CompileIssueLocation location = file == null && path == null
+                    ? null
+                    : new CompileIssueLocation(file == null ? null : new File(file), line, path);
+            return new CompileIssue(CompileIssueLevel.valueOf(level), message, location);
+        }
+    }
+}
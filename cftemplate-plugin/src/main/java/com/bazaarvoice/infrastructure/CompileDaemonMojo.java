@@ -0,0 +1,67 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileDaemon;
+import com.bazaarvoice.infrastructure.cftemplate.RubyEnginePool;
+import com.bazaarvoice.infrastructure.cftemplate.TemplateCompiler;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Goal which runs a compile daemon until Maven is stopped.
+ * <p/>
+ * The daemon keeps warm JRuby engines with the DSL loaded, and the cftemplates goal of other builds on the same
+ * host compiles Ruby templates in it instead of starting JRuby itself.
+ *
+ * @goal daemon
+ * @requiresProject false
+ */
+public class CompileDaemonMojo extends AbstractMojo {
+    /**
+     * File to advertise the daemon in. Builds must use the same file.
+     *
+     * @parameter expression="${cftemplate.daemonFile}" default-value="${user.home}/.cftemplate/daemon.json"
+     */
+    private File daemonFile;
+
+    /**
+     * Number of templates to compile concurrently. Default is the number of available processors.
+     *
+     * @parameter expression="${cftemplate.threads}"
+     */
+    private Integer threads;
+
+    public void execute()
+            throws MojoExecutionException {
+        int threadCount = threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        final CompileDaemon daemon = new CompileDaemon(new RubyEnginePool(threadCount), threadCount);
+        Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                daemon.stop();
+            }
+        };
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            info("Starting compile daemon %s with %d threads", TemplateCompiler.getVersion(), threadCount);
+            daemon.start(daemonFile);
+            info("Compile daemon listening on port %d, advertised in %s. Press Ctrl-C to stop.", daemon.getPort(), daemonFile);
+            daemon.await();
+        } catch (IOException ex) {
+            throw new MojoExecutionException("Unable to start the compile daemon", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            daemon.stop();
+
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // Maven is being stopped, the hook is running
+            }
+        }
+    }
+}
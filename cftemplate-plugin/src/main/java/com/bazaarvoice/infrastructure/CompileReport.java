@@ -0,0 +1,423 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLocation;
+import com.bazaarvoice.infrastructure.cftemplate.CompileMetrics;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.bazaarvoice.infrastructure.cftemplate.TemplateCompiler;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Report of the issues and metrics of every template of a build, as JSON and as SARIF for code scanning tools.
+ * <p/>
+ * Templates are written to both files as their compiles finish, in the order they finish, and the files are
+ * flushed after each one, so the reports do not grow with the number of templates in memory and show the
+ * progress of a build that is still running. Templates skipped because the build reached its maximum number of
+ * errors are listed too, and are notes in the SARIF report. Templates that are up to date are listed with the
+ * issues recorded by the build that compiled them, so a code scanning tool does not take them for fixed. The
+ * totals are written when the report is closed.
+ * <p/>
+ * Failures to write are remembered rather than thrown, so a report that can not be written never fails the
+ * build; see {@link #getFailure()}. No more templates are written after a failure, but closing the report still
+ * writes the totals, marked incomplete, so the files stay well-formed if they can be written at all.
+ */
+public class CompileReport {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String SARIF_SCHEMA = "https://json.schemastore.org/sarif-2.1.0.json";
+    private static final String SOURCE_ROOT = "SRCROOT";
+
+    private final File _baseDirectory;
+    private final JsonGenerator _json;
+    private final JsonGenerator _sarif;
+    private final CompileMetrics _total = new CompileMetrics();
+    private final int[] _issueCounts = new int[CompileIssueLevel.values().length];
+    private int _templates;
+    private int _compiled;
+    private int _skipped;
+    private IOException _failure;
+
+    private CompileReport(File baseDirectory, JsonGenerator json, JsonGenerator sarif) {
+        _baseDirectory = baseDirectory;
+        _json = json;
+        _sarif = sarif;
+    }
+
+    /**
+     * Create the report files and write their headers.
+     *
+     * @param jsonFile file to write the JSON report to
+     * @param sarifFile file to write the SARIF report to
+     * @param baseDirectory directory the SARIF report gives the paths of files relative to
+     * @return open report
+     */
+    public static CompileReport open(File jsonFile, File sarifFile, File baseDirectory)
+            throws IOException {
+        Files.createParentDirs(jsonFile.getAbsoluteFile());
+        Files.createParentDirs(sarifFile.getAbsoluteFile());
+
+        OutputStream json = new FileOutputStream(jsonFile);
+        OutputStream sarif = null;
+
+        try {
+            sarif = new FileOutputStream(sarifFile);
+        } finally {
+            if (sarif == null) {
+                Closeables.closeQuietly(json);
+            }
+        }
+
+        return open(json, sarif, baseDirectory);
+    }
+
+    /**
+     * Write the headers of a report to streams, which are closed when the report is.
+     */
+    static CompileReport open(OutputStream jsonStream, OutputStream sarifStream, File baseDirectory)
+            throws IOException {
+        JsonGenerator json = null;
+        JsonGenerator sarif = null;
+        boolean opened = false;
+
+        try {
+            json = createGenerator(jsonStream);
+            sarif = createGenerator(sarifStream);
+
+            CompileReport report = new CompileReport(checkNotNull(baseDirectory).getAbsoluteFile(), json, sarif);
+            report.writeHeaders();
+            opened = true;
+            return report;
+        } finally {
+            if (!opened) {
+                Closeables.closeQuietly(json != null ? json : jsonStream);
+                Closeables.closeQuietly(sarif != null ? sarif : sarifStream);
+            }
+        }
+    }
+
+    /**
+     * Add a target of a template to the report. Can be called from any thread.
+     *
+     * @param sourceFile template file
+     * @param variant variant of the target, or null if there are no variants
+     * @param targetFile file the template is compiled to
+     * @param result result of the compile, or null if the target was up to date and had no issues
+     */
+    public void add(File sourceFile, String variant, File targetFile, CompileResult result) {
+        if (result == null) {
+            addUpToDate(sourceFile, variant, targetFile, Collections.<CompileIssue>emptyList());
+        } else {
+            add(sourceFile, variant, targetFile, result, result.getIssues());
+        }
+    }
+
+    /**
+     * Add a target that was up to date, with the issues of the compile that produced it, so the issues are
+     * reported by every build and not only by the one that compiled the template. Can be called from any thread.
+     *
+     * @param sourceFile template file
+     * @param variant variant of the target, or null if there are no variants
+     * @param targetFile file the template was compiled to
+     * @param issues issues recorded for the target, see {@link BuildState#getIssues(File)}
+     */
+    public void addUpToDate(File sourceFile, String variant, File targetFile, List<CompileIssue> issues) {
+        add(sourceFile, variant, targetFile, null, issues);
+    }
+
+    private synchronized void add(File sourceFile, String variant, File targetFile, CompileResult result, List<CompileIssue> issues) {
+        _templates += 1;
+
+        if (result != null) {
+            _compiled += 1;
+            _total.addAll(result.getMetrics());
+        }
+
+        for (CompileIssue issue : issues) {
+            _issueCounts[issue.getLevel().ordinal()] += 1;
+        }
+
+        if (_failure != null) {
+            return;
+        }
+
+        try {
+            writeTemplate(sourceFile, variant, targetFile, result, issues);
+            _json.flush();
+
+            for (CompileIssue issue : issues) {
+                writeSarifResult(sourceFile, issue);
+            }
+
+            _sarif.flush();
+        } catch (IOException ex) {
+            _failure = ex;
+        }
+    }
+
+    /**
+     * Add a target that was not compiled because the build reached its maximum number of errors. Can be called
+     * from any thread.
+     *
+     * @param sourceFile template file
+     * @param variant variant of the target, or null if there are no variants
+     * @param targetFile file the template would have been compiled to
+     */
+    public synchronized void addSkipped(File sourceFile, String variant, File targetFile) {
+        _templates += 1;
+        _skipped += 1;
+
+        if (_failure != null) {
+            return;
+        }
+
+        try {
+            _json.writeStartObject();
+            writeTarget(sourceFile, variant, targetFile);
+            _json.writeStringField("status", "skipped");
+            _json.writeEndObject();
+            _json.flush();
+
+            writeSarifResult(sourceFile, new CompileIssue(CompileIssueLevel.INFO, String.format(
+                    "Not compiled to %s because the build reached its maximum number of errors", targetFile.getPath())));
+            _sarif.flush();
+        } catch (IOException ex) {
+            _failure = ex;
+        }
+    }
+
+    /**
+     * Write the totals and close the files. The totals are written even if writing a template failed, so the
+     * files are well-formed unless they can not be written at all.
+     */
+    public synchronized void close() {
+        try {
+            writeFooters();
+        } catch (IOException ex) {
+            if (_failure == null) {
+                _failure = ex;
+            }
+        } finally {
+            Closeables.closeQuietly(_json);
+            Closeables.closeQuietly(_sarif);
+        }
+    }
+
+    /**
+     * Error that stopped the report from being written.
+     *
+     * @return error, or null if the report was written
+     */
+    public synchronized IOException getFailure() {
+        return _failure;
+    }
+
+    private static JsonGenerator createGenerator(OutputStream stream)
+            throws IOException {
+        JsonGenerator generator = MAPPER.getJsonFactory().createJsonGenerator(stream, JsonEncoding.UTF8);
+        generator.useDefaultPrettyPrinter();
+        return generator;
+    }
+
+    private void writeHeaders()
+            throws IOException {
+        _json.writeStartObject();
+        _json.writeStringField("version", TemplateCompiler.getVersion());
+        _json.writeArrayFieldStart("templates");
+        _json.flush();
+
+        _sarif.writeStartObject();
+        _sarif.writeStringField("$schema", SARIF_SCHEMA);
+        _sarif.writeStringField("version", "2.1.0");
+        _sarif.writeArrayFieldStart("runs");
+        _sarif.writeStartObject();
+        _sarif.writeObjectFieldStart("tool");
+        _sarif.writeObjectFieldStart("driver");
+        _sarif.writeStringField("name", "cftemplate-compiler");
+        _sarif.writeStringField("version", TemplateCompiler.getVersion());
+        _sarif.writeEndObject();
+        _sarif.writeEndObject();
+        _sarif.writeObjectFieldStart("originalUriBaseIds");
+        _sarif.writeObjectFieldStart(SOURCE_ROOT);
+        _sarif.writeStringField("uri", _baseDirectory.toURI().toString());
+        _sarif.writeEndObject();
+        _sarif.writeEndObject();
+        _sarif.writeArrayFieldStart("results");
+        _sarif.flush();
+    }
+
+    private void writeTemplate(File sourceFile, String variant, File targetFile, CompileResult result, List<CompileIssue> issues)
+            throws IOException {
+        _json.writeStartObject();
+        writeTarget(sourceFile, variant, targetFile);
+
+        if (result == null) {
+            _json.writeStringField("status", "upToDate");
+        } else {
+            _json.writeStringField("status", result.getIssues(CompileIssueLevel.ERROR).isEmpty() ? "compiled" : "failed");
+        }
+
+        _json.writeArrayFieldStart("issues");
+
+        for (CompileIssue issue : issues) {
+            CompileIssueLocation location = issue.getLocation();
+
+            _json.writeStartObject();
+            _json.writeStringField("level", issue.getLevel().name());
+            _json.writeStringField("message", issue.getMessage());
+
+            if (location != null && location.getFile() != null) {
+                _json.writeStringField("file", location.getFile().getPath());
+            }
+
+            if (location != null && location.getLine() >= 0) {
+                _json.writeNumberField("line", location.getLine());
+            }
+
+            if (location != null && location.getPath() != null) {
+                _json.writeStringField("path", location.getPath());
+            }
+
+            _json.writeEndObject();
+        }
+
+        _json.writeEndArray();
+
+        if (result != null) {
+            _json.writeFieldName("metrics");
+            MAPPER.writeTree(_json, result.getMetrics().toJson());
+        }
+
+        _json.writeEndObject();
+    }
+
+    private void writeTarget(File sourceFile, String variant, File targetFile)
+            throws IOException {
+        _json.writeStringField("source", sourceFile.getPath());
+        _json.writeStringField("target", targetFile.getPath());
+
+        if (variant != null) {
+            _json.writeStringField("variant", variant);
+        }
+    }
+
+    private void writeSarifResult(File sourceFile, CompileIssue issue)
+            throws IOException {
+        CompileIssueLocation location = issue.getLocation();
+        File file = location != null && location.getFile() != null ? location.getFile() : sourceFile;
+
+        _sarif.writeStartObject();
+        _sarif.writeStringField("level", getSarifLevel(issue.getLevel()));
+        _sarif.writeObjectFieldStart("message");
+        _sarif.writeStringField("text", issue.getMessage());
+        _sarif.writeEndObject();
+        _sarif.writeArrayFieldStart("locations");
+        _sarif.writeStartObject();
+        _sarif.writeObjectFieldStart("physicalLocation");
+        _sarif.writeObjectFieldStart("artifactLocation");
+        writeUri(file);
+        _sarif.writeEndObject();
+
+        // SARIF lines start from 1
+        if (location != null && location.getLine() > 0) {
+            _sarif.writeObjectFieldStart("region");
+            _sarif.writeNumberField("startLine", location.getLine());
+            _sarif.writeEndObject();
+        }
+
+        _sarif.writeEndObject();
+
+        if (location != null && location.getPath() != null) {
+            _sarif.writeArrayFieldStart("logicalLocations");
+            _sarif.writeStartObject();
+            _sarif.writeStringField("fullyQualifiedName", location.getPath());
+            _sarif.writeStringField("kind", "object");
+            _sarif.writeEndObject();
+            _sarif.writeEndArray();
+        }
+
+        _sarif.writeEndObject();
+        _sarif.writeEndArray();
+        _sarif.writeEndObject();
+    }
+
+    /**
+     * Write the location of a file relative to the base directory, or as an absolute URI if it is outside it.
+     */
+    private void writeUri(File file)
+            throws IOException {
+        String prefix = _baseDirectory.getPath() + File.separator;
+        String path = file.getAbsolutePath();
+
+        if (path.startsWith(prefix)) {
+            _sarif.writeStringField("uri", path.substring(prefix.length()).replace(File.separatorChar, '/'));
+            _sarif.writeStringField("uriBaseId", SOURCE_ROOT);
+        } else {
+            _sarif.writeStringField("uri", file.getAbsoluteFile().toURI().toString());
+        }
+    }
+
+    private static String getSarifLevel(CompileIssueLevel level) {
+        switch (level) {
+            case ERROR:
+                return "error";
+            case WARN:
+                return "warning";
+            default:
+                return "note";
+        }
+    }
+
+    private void writeFooters()
+            throws IOException {
+        _json.writeEndArray();
+        _json.writeObjectFieldStart("summary");
+        writeSummary(_json);
+        _json.writeEndObject();
+        _json.writeEndObject();
+
+        _sarif.writeEndArray();
+        _sarif.writeObjectFieldStart("properties");
+        writeSummary(_sarif);
+        _sarif.writeEndObject();
+        _sarif.writeEndObject();
+        _sarif.writeEndArray();
+        _sarif.writeEndObject();
+    }
+
+    private void writeSummary(JsonGenerator generator)
+            throws IOException {
+        generator.writeNumberField("templates", _templates);
+        generator.writeNumberField("compiled", _compiled);
+        generator.writeNumberField("upToDate", _templates - _compiled - _skipped);
+        generator.writeNumberField("skipped", _skipped);
+        generator.writeBooleanField("complete", _failure == null);
+        generator.writeObjectFieldStart("issues");
+
+        for (CompileIssueLevel level : CompileIssueLevel.values()) {
+            generator.writeNumberField(level.name(), _issueCounts[level.ordinal()]);
+        }
+
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("phases");
+
+        for (Map.Entry<String, Long> phase : _total.getPhases().entrySet()) {
+            generator.writeNumberField(phase.getKey(), phase.getValue());
+        }
+
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,184 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileMetrics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * Compile metrics of the templates of a build, formatted as a table for the log and as a JSON report.
+ */
+public class CompileTimings {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Phases in the order they run, so the columns of the table are in that order.
+     */
+    private static final List<String> PHASE_ORDER = ImmutableList.of(
+            CompileMetrics.CACHE, CompileMetrics.DAEMON, CompileMetrics.ACQUIRE, CompileMetrics.BOOT,
+            CompileMetrics.REQUIRE, CompileMetrics.EVALUATE, CompileMetrics.CONVERT, CompileMetrics.READ,
+            CompileMetrics.VALIDATE, CompileMetrics.WRITE);
+
+    private final List<Entry> _entries = newArrayList();
+    private final CompileMetrics _total = new CompileMetrics();
+    private int _resources;
+
+    /**
+     * Add the metrics of a compiled target.
+     *
+     * @param name name of the template to show, such as its path in the input directory
+     * @param targetFile file the template was compiled to
+     * @param metrics metrics of the compile
+     */
+    public void add(String name, File targetFile, CompileMetrics metrics) {
+        _entries.add(new Entry(checkNotNull(name), checkNotNull(targetFile), checkNotNull(metrics)));
+        _total.addAll(metrics);
+        _resources += Math.max(metrics.getResourceCount(), 0);
+    }
+
+    /**
+     * Check whether any targets were added.
+     *
+     * @return true if there are no metrics
+     */
+    public boolean isEmpty() {
+        return _entries.isEmpty();
+    }
+
+    /**
+     * Metrics of all targets added together.
+     *
+     * @return total metrics, without the counts of the templates
+     */
+    public CompileMetrics getTotal() {
+        return _total;
+    }
+
+    /**
+     * Table with a row for each target and a row with the totals, with a column for every phase that ran in
+     * any compile, in milliseconds.
+     *
+     * @return lines of the table
+     */
+    public List<String> formatTable() {
+        List<String> phases = getPhases();
+        int nameWidth = "Total".length();
+
+        for (Entry entry : _entries) {
+            nameWidth = Math.max(nameWidth, entry.name.length());
+        }
+
+        List<String> lines = newArrayList();
+        StringBuilder header = new StringBuilder(String.format("%-" + nameWidth + "s %9s", "Template", "total"));
+
+        for (String phase : phases) {
+            header.append(String.format(" %9s", phase));
+        }
+
+        lines.add(header.append(String.format(" %9s %9s %9s", "resources", "out KB", "alloc MB")).toString());
+
+        for (Entry entry : _entries) {
+            lines.add(formatRow(entry.name, nameWidth, phases, entry.metrics, entry.metrics.getResourceCount()));
+        }
+
+        lines.add(formatRow("Total", nameWidth, phases, _total, _resources));
+        return lines;
+    }
+
+    /**
+     * One line with the total time of each phase.
+     *
+     * @return summary of the build
+     */
+    public String formatSummary() {
+        StringBuilder summary = new StringBuilder();
+
+        for (String phase : getPhases()) {
+            summary.append(summary.length() == 0 ? "" : ", ").append(String.format("%s %d ms", phase, millis(_total.getPhase(phase))));
+        }
+
+        return String.format("Compile time of %d templates by phase: %s", _entries.size(), summary);
+    }
+
+    /**
+     * Write the metrics of every target and the totals as JSON, with durations in nanoseconds.
+     *
+     * @param file file to write the report to
+     */
+    public void write(File file)
+            throws IOException {
+        ObjectNode report = JsonNodeFactory.instance.objectNode();
+        ArrayNode templates = report.putArray("templates");
+
+        for (Entry entry : _entries) {
+            ObjectNode template = templates.addObject();
+            template.put("template", entry.name);
+            template.put("target", entry.targetFile.getPath());
+            template.put("metrics", entry.metrics.toJson());
+        }
+
+        ObjectNode total = report.putObject("total");
+        total.putAll((ObjectNode) _total.toJson());
+        total.put("resources", _resources);
+
+        Files.createParentDirs(file.getAbsoluteFile());
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, report);
+    }
+
+    /**
+     * Phases that ran in any compile, known phases first.
+     */
+    private List<String> getPhases() {
+        Set<String> phases = newLinkedHashSet();
+
+        for (String phase : PHASE_ORDER) {
+            if (_total.getPhases().containsKey(phase)) {
+                phases.add(phase);
+            }
+        }
+
+        phases.addAll(_total.getPhases().keySet());
+        return newArrayList(phases);
+    }
+
+    private static String formatRow(String name, int nameWidth, List<String> phases, CompileMetrics metrics, int resources) {
+        StringBuilder row = new StringBuilder(String.format("%-" + nameWidth + "s %9d", name, millis(metrics.getTotal())));
+
+        for (String phase : phases) {
+            row.append(String.format(" %9d", millis(metrics.getPhase(phase))));
+        }
+
+        return row.append(String.format(" %9s %9s %9s",
+                resources < 0 ? "-" : String.valueOf(resources),
+                metrics.getOutputBytes() < 0 ? "-" : String.valueOf(metrics.getOutputBytes() / 1024),
+                metrics.getAllocatedBytes() < 0 ? "-" : String.valueOf(metrics.getAllocatedBytes() / (1024 * 1024)))).toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static class Entry {
+        final String name;
+        final File targetFile;
+        final CompileMetrics metrics;
+
+        Entry(String name, File targetFile, CompileMetrics metrics) {
+            this.name = name;
+            this.targetFile = targetFile;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.bazaarvoice.infrastructure;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Lists;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Deterministic automaton that matches a string against any of a set of globs in a single pass.
+ * <p/>
+ * The globs are compiled to one nondeterministic automaton, which is turned into a deterministic one for ASCII
+ * characters when the instance is created. Matching then costs one table lookup per character however many
+ * globs there are. ASCII letters match case-insensitively, like {@link java.util.regex.Pattern#CASE_INSENSITIVE}
+ * does, by giving both cases the same transitions. Other characters are rare in file names; from the first one
+ * on the string is matched with the nondeterministic automaton instead.
+ * <p/>
+ * Globs support * and ? wildcards and character classes such as [a-z] and [!0-9]. In path globs, * and ? and
+ * classes do not match a slash, and ** matches any number of directories.
+ */
+class GlobAutomaton {
+    private static final int ASCII = 128;
+    private static final int DEAD = -1;
+    private static final int MAX_STATES = 4096;
+
+    // Nondeterministic automaton: each node has at most one transition that reads a character
+    private final List<CharMatcher> _matchers = newArrayList();
+    private final List<Integer> _targets = newArrayList();
+    private final List<List<Integer>> _epsilons = newArrayList();
+    private final BitSet _acceptNodes = new BitSet();
+    private final BitSet _universalNodes = new BitSet();
+    private final BitSet[] _closures;
+
+    // Deterministic automaton for ASCII characters: the transitions of state s are at s * _classCount
+    private final int[] _charClasses = new int[ASCII];
+    private final int _classCount;
+    private final int[] _transitions;
+    private final boolean[] _accepting;
+    private final BitSet[] _states;
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param globs globs to match
+     * @param paths true if the globs match paths, false if they match names
+     */
+    GlobAutomaton(Iterable<String> globs, boolean paths) {
+        int start = addNode();
+
+        for (String glob : globs) {
+            _epsilons.get(start).add(addGlob(glob, paths));
+        }
+
+        _closures = createClosures();
+        findUniversalNodes();
+
+        List<BitSet> classSignatures = createCharClasses();
+        _classCount = classSignatures.size();
+
+        List<BitSet> states = newArrayList(canonical(_closures[start]));
+        List<int[]> transitions = determinize(states, classSignatures);
+
+        if (transitions == null) {
+            // Globs such as *a???????????? need a state for every combination of their partial matches. Those
+            // are matched with the nondeterministic automaton, which grows linearly with the globs.
+            _transitions = null;
+            _accepting = null;
+            _states = new BitSet[] {states.get(0)};
+        } else {
+            _transitions = new int[states.size() * _classCount];
+            _accepting = new boolean[states.size()];
+            _states = states.toArray(new BitSet[states.size()]);
+
+            for (int s = 0; s < _states.length; ++s) {
+                System.arraycopy(transitions.get(s), 0, _transitions, s * _classCount, _classCount);
+                _accepting[s] = _states[s].intersects(_acceptNodes);
+            }
+        }
+    }
+
+    /**
+     * Check whether a string matches any of the globs.
+     *
+     * @param value name or path
+     * @return true if a glob matches all of the value
+     */
+    boolean matches(CharSequence value) {
+        if (_transitions == null) {
+            return matches(_states[0], value, 0);
+        }
+
+        int state = 0;
+
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            if (c >= ASCII) {
+                return matches(_states[state], value, i);
+            }
+
+            state = _transitions[state * _classCount + _charClasses[c]];
+
+            if (state == DEAD) {
+                return false;
+            }
+        }
+
+        return _accepting[state];
+    }
+
+    private boolean matches(BitSet nodes, CharSequence value, int offset) {
+        for (int i = offset; i < value.length() && !nodes.isEmpty() && !nodes.intersects(_universalNodes); ++i) {
+            nodes = step(nodes, value.charAt(i));
+        }
+
+        return nodes.intersects(_acceptNodes);
+    }
+
+    /**
+     * Subset construction, numbering the states in the order they are found.
+     *
+     * @param states list with the initial state, to which the other states are added
+     * @param classSignatures nodes with a transition for the characters of each character class
+     * @return transitions of each state, or null if there are more than {@link #MAX_STATES} states
+     */
+    private List<int[]> determinize(List<BitSet> states, List<BitSet> classSignatures) {
+        Map<BitSet, Integer> stateIds = newHashMap();
+        List<int[]> transitions = newArrayList();
+        stateIds.put(states.get(0), 0);
+
+        for (int s = 0; s < states.size(); ++s) {
+            int[] stateTransitions = new int[_classCount];
+
+            for (int k = 0; k < _classCount; ++k) {
+                BitSet nodes = (BitSet) states.get(s).clone();
+                nodes.and(classSignatures.get(k));
+
+                BitSet next = canonical(step(nodes));
+                Integer id = stateIds.get(next);
+
+                if (next.isEmpty()) {
+                    id = DEAD;
+                } else if (id == null) {
+                    if (states.size() == MAX_STATES) {
+                        return null;
+                    }
+
+                    id = states.size();
+                    states.add(next);
+                    stateIds.put(next, id);
+                }
+
+                stateTransitions[k] = id;
+            }
+
+            transitions.add(stateTransitions);
+        }
+
+        return transitions;
+    }
+
+    /**
+     * Replace a set of nodes that accepts any remaining string, such as the set after the "a" of "a*", by the same
+     * set whichever glob it came from. Otherwise globs like *test* would need a state for every combination of
+     * globs that already matched.
+     */
+    private BitSet canonical(BitSet nodes) {
+        if (!nodes.intersects(_universalNodes)) {
+            return nodes;
+        }
+
+        return _closures[_universalNodes.nextSetBit(0)];
+    }
+
+    /**
+     * Find the nodes that loop on any character and can accept, so every string is accepted from them.
+     */
+    private void findUniversalNodes() {
+        for (int node = 0; node < _matchers.size(); ++node) {
+            if (_matchers.get(node) == CharMatcher.ANY && _targets.get(node) == node && _closures[node].intersects(_acceptNodes)) {
+                _universalNodes.set(node);
+            }
+        }
+    }
+
+    /**
+     * Add the nodes of a glob.
+     *
+     * @return first node of the glob
+     */
+    private int addGlob(String glob, boolean paths) {
+        CharMatcher any = paths ? CharMatcher.isNot('/') : CharMatcher.ANY;
+        int first = addNode();
+        int node = first;
+
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+
+            if (c == '*' && paths && glob.startsWith("**/", i)) {
+                // (.*/)? so **/*.rb matches a.rb too
+                int next = addNode();
+                int directories = addLoop(CharMatcher.ANY);
+                int slash = addNode();
+                _epsilons.get(node).add(next);
+                _epsilons.get(node).add(directories);
+                _epsilons.get(directories).add(slash);
+                addTransition(slash, CharMatcher.is('/'), next);
+                node = next;
+                i += 2;
+            } else if (c == '*') {
+                boolean directories = paths && glob.startsWith("**", i);
+                int next = addNode();
+                int loop = addLoop(directories ? CharMatcher.ANY : any);
+                _epsilons.get(node).add(loop);
+                _epsilons.get(loop).add(next);
+                node = next;
+                i += directories ? 1 : 0;
+            } else {
+                int end = c == '[' ? findClassEnd(glob, i) : -1;
+                CharMatcher matcher;
+
+                if (c == '?') {
+                    matcher = any;
+                } else if (end > 0) {
+                    matcher = parseClass(glob.substring(i + 1, end));
+                    matcher = paths ? matcher.and(CharMatcher.isNot('/')) : matcher;
+                    i = end;
+                } else {
+                    matcher = ignoreCase(CharMatcher.is(c));
+                }
+
+                int next = addNode();
+                addTransition(node, matcher, next);
+                node = next;
+            }
+        }
+
+        _acceptNodes.set(node);
+        return first;
+    }
+
+    private int addNode() {
+        _matchers.add(null);
+        _targets.add(DEAD);
+        _epsilons.add(Lists.<Integer>newArrayList());
+        return _matchers.size() - 1;
+    }
+
+    private int addLoop(CharMatcher matcher) {
+        int node = addNode();
+        addTransition(node, matcher, node);
+        return node;
+    }
+
+    private void addTransition(int node, CharMatcher matcher, int target) {
+        checkArgument(_matchers.get(node) == null);
+        _matchers.set(node, matcher);
+        _targets.set(node, target);
+    }
+
+    /**
+     * @return index of the ] that ends the class starting at the given index, or -1 if it is not a class
+     */
+    private static int findClassEnd(String glob, int start) {
+        int i = start + 1;
+
+        if (i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+            ++i;
+        }
+
+        // A ] right after the [ is part of the class
+        return glob.indexOf(']', i + 1);
+    }
+
+    private static CharMatcher parseClass(String body) {
+        boolean negated = body.startsWith("!") || body.startsWith("^");
+        CharMatcher matcher = CharMatcher.NONE;
+
+        for (int i = negated ? 1 : 0; i < body.length(); ++i) {
+            char c = body.charAt(i);
+
+            if (i + 2 < body.length() && body.charAt(i + 1) == '-') {
+                matcher = matcher.or(CharMatcher.inRange(c, body.charAt(i + 2)));
+                i += 2;
+            } else {
+                matcher = matcher.or(CharMatcher.is(c));
+            }
+        }
+
+        matcher = ignoreCase(matcher);
+        return negated ? matcher.negate() : matcher;
+    }
+
+    /**
+     * @return matcher that also matches the other case of the ASCII letters the given one matches
+     */
+    private static CharMatcher ignoreCase(CharMatcher matcher) {
+        StringBuilder otherCase = new StringBuilder();
+
+        for (char c = 'a'; c <= 'z'; ++c) {
+            char upper = Character.toUpperCase(c);
+
+            if (matcher.matches(c) != matcher.matches(upper)) {
+                otherCase.append(c).append(upper);
+            }
+        }
+
+        return otherCase.length() == 0 ? matcher : matcher.or(CharMatcher.anyOf(otherCase));
+    }
+
+    /**
+     * Divide the ASCII characters into classes of characters every transition treats the same.
+     *
+     * @return nodes with a transition for the characters of each class
+     */
+    private List<BitSet> createCharClasses() {
+        Map<BitSet, Integer> classes = newHashMap();
+        List<BitSet> signatures = newArrayList();
+
+        for (char c = 0; c < ASCII; ++c) {
+            BitSet signature = new BitSet();
+
+            for (int node = 0; node < _matchers.size(); ++node) {
+                if (_matchers.get(node) != null && _matchers.get(node).matches(c)) {
+                    signature.set(node);
+                }
+            }
+
+            Integer id = classes.get(signature);
+
+            if (id == null) {
+                id = signatures.size();
+                classes.put(signature, id);
+                signatures.add(signature);
+            }
+
+            _charClasses[c] = id;
+        }
+
+        return signatures;
+    }
+
+    /**
+     * @return nodes reachable from each node without reading a character, including the node itself
+     */
+    private BitSet[] createClosures() {
+        BitSet[] closures = new BitSet[_matchers.size()];
+
+        for (int node = 0; node < closures.length; ++node) {
+            closures[node] = new BitSet();
+            closures[node].set(node);
+            closure(closures[node]);
+        }
+
+        return closures;
+    }
+
+    /**
+     * @return nodes after reading a character with the given nodes, all of which must match it
+     */
+    private BitSet step(BitSet nodes) {
+        BitSet next = new BitSet();
+
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+            next.or(_closures[_targets.get(node)]);
+        }
+
+        return next;
+    }
+
+    private BitSet step(BitSet nodes, char c) {
+        BitSet matching = new BitSet();
+
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+            CharMatcher matcher = _matchers.get(node);
+
+            if (matcher != null && matcher.matches(c)) {
+                matching.set(node);
+            }
+        }
+
+        return step(matching);
+    }
+
+    private BitSet closure(BitSet nodes) {
+        List<Integer> pending = newArrayList();
+
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+            pending.add(node);
+        }
+
+        while (!pending.isEmpty()) {
+            for (int next : _epsilons.get(pending.remove(pending.size() - 1))) {
+                if (!nodes.get(next)) {
+                    nodes.set(next);
+                    pending.add(next);
+                }
+            }
+        }
+
+        return nodes;
+    }
+}
@@ -1,81 +1,118 @@
 package com.bazaarvoice.infrastructure;
 
-import com.google.common.collect.Iterables;
-
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.List;
-import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * File name matcher that accepts a glob.
+ * <p/>
+ * Globs without a slash, e.g. *stack.rb, match the file name. Globs with a slash match the path relative to the
+ * base directory, with / as the separator: * and ? do not match a slash there, and ** matches any number of
+ * directories, e.g. stacks/**&#47;*.rb or **&#47;legacy/**. Character classes such as [a-z] and [!0-9] match one
+ * character. All include globs are compiled into a single {@link GlobAutomaton}, and so are all exclude globs, so
+ * each name is matched in one pass however many globs there are.
+ * <p/>
+ * Directories matched by an exclude glob ending in /** contain nothing to include, so a walk does not need to
+ * enter them (see {@link #acceptDirectory(File, String)}).
  */
 public class GlobFilenameFilter implements FilenameFilter {
-    private final Pattern[] _includes;
-    private final Pattern[] _excludes;
+    private final String _basePath;
+    private final GlobAutomaton _includeNames;
+    private final GlobAutomaton _includePaths;
+    private final GlobAutomaton _excludeNames;
+    private final GlobAutomaton _excludePaths;
+    private final GlobAutomaton _excludeDirectories;
 
+    /**
+     * Initialize a new instance for globs that only match file names.
+     */
     public GlobFilenameFilter(Iterable<String> includes, Iterable<String> excludes) {
-        _includes = createRegexesFromGlobs(includes);
-        _excludes = createRegexesFromGlobs(excludes);
+        this(null, includes, excludes);
+    }
+
+    /**
+     * Initialize a new instance.
+     *
+     * @param baseDirectory directory path globs are relative to, or null if there are none
+     * @param includes globs of the files to accept
+     * @param excludes globs of the files to reject, even if they are included
+     */
+    public GlobFilenameFilter(File baseDirectory, Iterable<String> includes, Iterable<String> excludes) {
+        _basePath = baseDirectory == null ? null : baseDirectory.getAbsolutePath();
+        _includeNames = createAutomaton(includes, false);
+        _includePaths = createAutomaton(includes, true);
+        _excludeNames = createAutomaton(excludes, false);
+        _excludePaths = createAutomaton(excludes, true);
+        _excludeDirectories = createDirectoryAutomaton(excludes);
     }
 
     @Override
     public boolean accept(File dir, String name) {
-        return matchesAny(_includes, name) && !matchesAny(_excludes, name);
+        String path = _includePaths == null && _excludePaths == null ? null : relativePath(dir, name);
+        return matches(_includeNames, _includePaths, name, path) && !matches(_excludeNames, _excludePaths, name, path);
     }
 
-    private static boolean matchesAny(Pattern[] patterns, String value) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(value).matches()) {
-                return true;
-            }
+    /**
+     * Check whether a directory can contain accepted files.
+     *
+     * @param dir parent directory
+     * @param name directory name
+     * @return false if the directory is excluded as a whole
+     */
+    public boolean acceptDirectory(File dir, String name) {
+        return _excludeDirectories == null || !_excludeDirectories.matches(relativePath(dir, name));
+    }
+
+    private static boolean matches(GlobAutomaton names, GlobAutomaton paths, String name, String path) {
+        return (names != null && names.matches(name)) || (paths != null && paths.matches(path));
+    }
+
+    private String relativePath(File dir, String name) {
+        String path = new File(dir, name).getAbsolutePath();
+        checkNotNull(_basePath, "Path globs require a base directory");
+
+        if (path.startsWith(_basePath + File.separator)) {
+            path = path.substring(_basePath.length() + 1);
         }
 
-         return false;
+        return path.replace(File.separatorChar, '/');
     }
 
-    private static Pattern[] createRegexesFromGlobs(Iterable<String> globs) {
-        List<Pattern> regexes = newArrayList();
+    /**
+     * @return automaton matching any of the name globs, or of the path globs, or null if there are none
+     */
+    private static GlobAutomaton createAutomaton(Iterable<String> globs, boolean paths) {
+        List<String> selected = newArrayList();
 
         for (String glob : globs) {
-            regexes.add(createRegexFromGlob(glob));
+            if (isPathGlob(glob) == paths) {
+                selected.add(glob);
+            }
         }
 
-        return Iterables.toArray(regexes, Pattern.class);
+        return selected.isEmpty() ? null : new GlobAutomaton(selected, paths);
     }
 
     /**
-     * Borrowed from http://stackoverflow.com/questions/1247772/is-there-an-equivalent-of-java-util-regex-for-glob-type-patterns
+     * @return automaton matching the directories excluded by globs ending in /**, or null if there are none
      */
-    private static Pattern createRegexFromGlob(String glob) {
-        StringBuilder buffer = new StringBuilder(glob.length() + 10);
-        buffer.append('^');
-
-        for (int i = 0; i < glob.length(); ++i) {
-            final char c = glob.charAt(i);
-
-            switch (c) {
-                case '*':
-                    buffer.append(".*");
-                    break;
-                case '?':
-                    buffer.append('.');
-                    break;
-                case '.':
-                    buffer.append("\\.");
-                    break;
-                case '\\':
-                    buffer.append("\\\\");
-                    break;
-                default:
-                    buffer.append(c);
-                    break;
+    private static GlobAutomaton createDirectoryAutomaton(Iterable<String> globs) {
+        List<String> directories = newArrayList();
+
+        for (String glob : globs) {
+            if (glob.endsWith("/**")) {
+                directories.add(glob.substring(0, glob.length() - 3));
             }
         }
 
-        buffer.append('$');
-        return Pattern.compile(buffer.toString(), Pattern.CASE_INSENSITIVE);
+        return directories.isEmpty() ? null : new GlobAutomaton(directories, true);
+    }
+
+    private static boolean isPathGlob(String glob) {
+        return glob.indexOf('/') >= 0;
     }
 }
@@ -1,26 +1,51 @@
 package com.bazaarvoice.infrastructure;
 
+import com.bazaarvoice.infrastructure.cftemplate.CachingTemplateCompiler;
+import com.bazaarvoice.infrastructure.cftemplate.CompileCache;
 import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
 import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileDaemonClient;
 import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.bazaarvoice.infrastructure.cftemplate.DaemonTemplateCompiler;
+import com.bazaarvoice.infrastructure.cftemplate.DependencyGraph;
+import com.bazaarvoice.infrastructure.cftemplate.DependencyGraphFormat;
 import com.bazaarvoice.infrastructure.cftemplate.JsonTemplateCompiler;
+import com.bazaarvoice.infrastructure.cftemplate.ResourceSchemaRegistry;
+import com.bazaarvoice.infrastructure.cftemplate.RubyEnginePool;
 import com.bazaarvoice.infrastructure.cftemplate.RubyTemplateCompiler;
 import com.bazaarvoice.infrastructure.cftemplate.TemplateCompiler;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
+import static com.google.common.base.Strings.isNullOrEmpty;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Sets.newHashSet;
 
 /**
@@ -34,6 +59,11 @@ import static com.google.common.collect.Sets.newHashSet;
  */
 public class TemplateCompilerMojo
         extends AbstractMojo {
+    /**
+     * Variant names are used as directory names, so they must be a single plain path segment.
+     */
+    private static final Pattern VARIANT_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
     /**
      * @parameter default-value="${project}"
      * @required
@@ -65,14 +95,18 @@ public class TemplateCompilerMojo
     private File outputDirectory;
 
     /**
-     * Set of case-insensitive patterns for files to include in compilation. Default is *stack.rb and *stack.json.
+     * Set of case-insensitive patterns for files to include in compilation. Patterns without a slash match file
+     * names, patterns with one match paths relative to the input directory, where ** matches any number of
+     * directories, e.g. stacks/**&#47;*.rb. Default is *stack.rb and *stack.json.
      *
      * @parameter
      */
     private Set<String> includes = newHashSet("*stack.rb", "*stack.json");
 
     /**
-     * Set of case-insensitive patterns for files to exclude from compilation. Default is no excludes.
+     * Set of case-insensitive patterns for files to exclude from compilation, like the includes. Directories
+     * matched by a pattern ending in /**, e.g. **&#47;node_modules/**, are not searched at all. Default is no
+     * excludes.
      *
      * @parameter
      */
@@ -85,8 +119,150 @@ public class TemplateCompilerMojo
      */
     private Map<String, String> parameters = newHashMap();
 
-    private RubyTemplateCompiler _rubyTemplateCompiler = new RubyTemplateCompiler();
-    private JsonTemplateCompiler _jsonTemplateCompiler = new JsonTemplateCompiler();
+    /**
+     * Named sets of template parameter overrides. Each template is compiled once for each variant into a
+     * subdirectory of the output directory named after the variant. Ruby templates are only evaluated once for
+     * all variants, unless they read the overrides themselves. Default is a single compile with the parameters.
+     * Variant names may only contain letters, digits, '.', '_' and '-'.
+     *
+     * @parameter
+     */
+    private List<Variant> variants;
+
+    /**
+     * Number of templates to compile concurrently. Default is the number of available processors.
+     *
+     * @parameter expression="${cftemplate.threads}"
+     */
+    private Integer threads;
+
+    /**
+     * Compile all templates, even if their inputs have not changed since the last build.
+     *
+     * @parameter expression="${cftemplate.force}" default-value="false"
+     */
+    private boolean force;
+
+    /**
+     * Compile JSON templates while they are read instead of loading each template into memory first. Output
+     * sections are written in the order they appear in the template. Each variant of a template is streamed
+     * separately, so the template is read once per variant.
+     *
+     * @parameter expression="${cftemplate.streamJson}" default-value="false"
+     */
+    private boolean streamJson;
+
+    /**
+     * Write compiled templates without indentation.
+     *
+     * @parameter expression="${cftemplate.compact}" default-value="false"
+     */
+    private boolean compact;
+
+    /**
+     * Write the resource dependency graph of each compiled template next to it, as "dot" (Graphviz) or "json".
+     * The size of the critical path and the number of resources that can be created in parallel are logged for
+     * each template. Default is no graph.
+     *
+     * @parameter expression="${cftemplate.dependencyGraph}"
+     */
+    private String dependencyGraph;
+
+    /**
+     * Resource specification to validate the properties of resources against, in the format of the AWS
+     * CloudFormation resource specification. Missing required properties and values of the wrong type are
+     * errors, properties the specification does not know are warnings. Default is the specification bundled
+     * with the compiler.
+     *
+     * @parameter expression="${cftemplate.resourceSpecification}"
+     */
+    private File resourceSpecification;
+
+    /**
+     * Validate the properties of resources against the resource specification.
+     *
+     * @parameter expression="${cftemplate.validateResourceProperties}" default-value="true"
+     */
+    private boolean validateResourceProperties;
+
+    /**
+     * Compile Ruby templates in a compile daemon (see the daemon goal) when one of the same version is running,
+     * instead of starting JRuby in the build. Templates are compiled in the build when no daemon is running or
+     * the daemon stops responding (see daemonTimeout), or with a resourceSpecification or
+     * validateResourceProperties of false, as the daemon validates against the bundled specification.
+     *
+     * @parameter expression="${cftemplate.useDaemon}" default-value="true"
+     */
+    private boolean useDaemon;
+
+    /**
+     * File a running compile daemon is advertised in.
+     *
+     * @parameter expression="${cftemplate.daemonFile}" default-value="${user.home}/.cftemplate/daemon.json"
+     */
+    private File daemonFile;
+
+    /**
+     * Milliseconds to wait for the compile daemon to respond to a request before compiling the template in the
+     * build instead. Generous by default, as a large template can take a while to compile.
+     *
+     * @parameter expression="${cftemplate.daemonTimeout}" default-value="300000"
+     */
+    private int daemonTimeout;
+
+    /**
+     * Directory to cache compiled templates in, by the content of the template and the files it includes, the
+     * parameter overrides and the compiler version. Templates found in the cache are not compiled again, even
+     * after a clean build or in another checkout. The directory can be shared by builds. Templates are only
+     * cached when they are validated against the bundled resource specification. Default is no cache.
+     *
+     * @parameter expression="${cftemplate.compileCache}"
+     */
+    private File compileCache;
+
+    /**
+     * Maximum size of the compile cache in megabytes. The templates used least recently are removed when the
+     * cache grows beyond it.
+     *
+     * @parameter expression="${cftemplate.compileCacheSize}" default-value="256"
+     */
+    private int compileCacheSize;
+
+    /**
+     * Log a table of where the compile time of each template went: starting JRuby, evaluating the DSL,
+     * validating, writing and so on. The table is logged at debug level otherwise. The totals are always logged,
+     * and the time, counts, output size and memory allocated by each compile are written to
+     * compile-timings.json in the state directory.
+     *
+     * @parameter expression="${cftemplate.timings}" default-value="false"
+     */
+    private boolean timings;
+
+    /**
+     * Directory to write the compile report to, as compile-report.json and, for code scanning tools,
+     * compile-report.sarif. The reports list the issues and metrics of every template, and the templates skipped
+     * after the maximum number of errors, and are written while the build runs.
+     *
+     * @parameter expression="${cftemplate.reportDirectory}" default-value="${project.build.directory}/cftemplate-reports"
+     */
+    private File reportDirectory;
+
+    /**
+     * Stop the build at the first error: templates that have not started compiling are skipped, and a template
+     * stops being validated at its first error. Same as a maxErrors of 1.
+     *
+     * @parameter expression="${cftemplate.failFast}" default-value="false"
+     */
+    private boolean failFast;
+
+    /**
+     * Number of errors after which the build stops: templates that have not started compiling are skipped, and
+     * each template stops being validated after this many errors. Templates that are compiling when the limit
+     * is reached still finish. 0 compiles every template in full.
+     *
+     * @parameter expression="${cftemplate.maxErrors}" default-value="0"
+     */
+    private int maxErrors;
 
     public void execute()
             throws MojoExecutionException {
@@ -95,51 +271,293 @@ public class TemplateCompilerMojo
             return;
         }
 
-        _rubyTemplateCompiler.setParameters(parameters);
-        _jsonTemplateCompiler.setParameters(parameters);
+        List<Compilation> compiles = getCompilations(findSourceFiles());
 
+        if (compiles.size() == 0) {
+            info("No templates to compile in %s", inputDirectory);
+        } else {
+            int threadCount = Math.min(getThreads(), compiles.size());
+            int targetCount = compiles.size() * compiles.get(0).targets.size();
+            info("Compiling %d CloudFormation templates to %s using %d threads", targetCount, getOutputDirectory(), threadCount);
+
+            CompileSession session = new CompileSession(threadCount, force);
+            CompileReport report = openReport();
+            session.setMaxErrors(getMaxErrors());
+
+            try {
+                int failures = 0;
+                int upToDate = 0;
+                int skipped = 0;
+                List<List<CompileResult>> results = session.compile(compiles, report);
+                CompileTimings compileTimings = new CompileTimings();
+
+                // Results are logged in source order, regardless of the order the compiles complete
+                for (int i = 0; i < compiles.size(); ++i) {
+                    Compilation c = compiles.get(i);
+                    List<CompileResult> targetResults = results.get(i);
+
+                    if (targetResults == null) {
+                        debug("Skipped %s", c.sourceFile);
+                        skipped += c.targets.size();
+                        continue;
+                    }
+
+                    for (int j = 0; j < c.targets.size(); ++j) {
+                        Target target = c.targets.get(j);
+                        CompileResult result = targetResults.get(j);
+
+                        if (result == null) {
+                            debug("%s is up to date", target.targetFile);
+                            upToDate += 1;
+
+                            // Warnings are reported on every build, not only by the build that compiled the template
+                            for (CompileIssue issue : session.getBuildState().getIssues(target.targetFile)) {
+                                outputIssue(issue);
+                            }
+                        } else {
+                            info("Compiling %s to %s", c.sourceFile, target.targetFile);
+                            failures += outputResults(result);
+                            outputResourceGraph(result, !isNullOrEmpty(dependencyGraph));
+                            compileTimings.add(getTemplateName(c.sourceFile, target), target.targetFile, result.getMetrics());
+                        }
+                    }
+                }
+
+                if (upToDate > 0) {
+                    info("%d of %d CloudFormation templates are up to date", upToDate, targetCount);
+                }
+
+                if (session.getCompileCache() != null && session.getCompileCache().getHits() > 0) {
+                    info("%d CloudFormation templates were taken from the compile cache", session.getCompileCache().getHits());
+                }
+
+                if (skipped > 0) {
+                    warn("Skipped %d of %d CloudFormation templates after %d errors", skipped, targetCount, failures);
+                }
+
+                outputTimings(compileTimings);
+
+                saveBuildState(session.getBuildState());
+
+                if (failures > 0) {
+                    throw new MojoExecutionException(String.format("%d errors compiling CloudFormation templates", failures));
+                }
+            } finally {
+                session.close();
+                closeReport(report);
+            }
+        }
+    }
+
+    /**
+     * Start the compile report.
+     *
+     * @return report, or null if it could not be created
+     */
+    private CompileReport openReport() {
+        if (reportDirectory == null) {
+            return null;
+        }
+
+        File baseDirectory = project.getBasedir() != null ? project.getBasedir() : new File("");
+
+        try {
+            return CompileReport.open(new File(reportDirectory, "compile-report.json"), new File(reportDirectory, "compile-report.sarif"), baseDirectory);
+        } catch (IOException ex) {
+            warn("Unable to write the compile report to %s: %s", reportDirectory, ex);
+            return null;
+        }
+    }
+
+    private void closeReport(CompileReport report) {
+        if (report == null) {
+            return;
+        }
+
+        report.close();
+
+        if (report.getFailure() != null) {
+            warn("Unable to write the compile report to %s: %s", reportDirectory, report.getFailure());
+        } else {
+            debug("Wrote the compile report to %s", reportDirectory);
+        }
+    }
+
+    /**
+     * Template files in the input directory that match the includes and excludes, sorted by path.
+     */
+    List<File> findSourceFiles() {
+        List<File> sourceFiles = walk(inputDirectory, new GlobFilenameFilter(inputDirectory, includes, excludes));
+        Collections.sort(sourceFiles);
+        return sourceFiles;
+    }
+
+    /**
+     * Compilation of each template file, with a target for each variant.
+     */
+    List<Compilation> getCompilations(List<File> sourceFiles)
+            throws MojoExecutionException {
         File outDir = getOutputDirectory();
-        List<File> sourceFiles = walk(inputDirectory, new GlobFilenameFilter(includes, excludes));
+        Map<String, Map<String, String>> variantParameters = getVariantParameters();
         List<Compilation> compiles = newArrayListWithCapacity(sourceFiles.size());
 
         for (File file : sourceFiles) {
             String extension = FilenameUtils.getExtension(file.getName());
-            File outputFile = changeExtension(changeBaseDir(inputDirectory, outDir, file), ".json");
-            TemplateCompiler compiler = null;
 
-            if (extension.equals("rb")) {
-                compiler = _rubyTemplateCompiler;
-            } else if (extension.equals("json")) {
-                compiler = _jsonTemplateCompiler;
+            if (extension.equals("rb") || extension.equals("json")) {
+                Compilation compilation = new Compilation(file);
+
+                for (Map.Entry<String, Map<String, String>> variant : variantParameters.entrySet()) {
+                    File variantDir = variant.getKey() == null ? outDir : new File(outDir, variant.getKey());
+                    File outputFile = changeExtension(changeBaseDir(inputDirectory, variantDir, file), ".json");
+                    compilation.targets.add(new Target(variant.getKey(), outputFile, variant.getValue()));
+                }
+
+                compiles.add(compilation);
             } else {
                 warn("Unknown CloudFormation template type: %s", file);
             }
+        }
 
-            if (compiler != null) {
-                compiles.add(new Compilation(file, outputFile, compiler));
-            }
+        return compiles;
+    }
+
+    File getInputDirectory() {
+        return inputDirectory;
+    }
+
+    /**
+     * Version of the compiler including the options that change the output, so changing an option compiles
+     * every template again.
+     */
+    private String getCompilerVersion()
+            throws MojoExecutionException {
+        return String.format("%s streamJson=%s compact=%s dependencyGraph=%s resourceSpecification=%s", TemplateCompiler.getVersion(), streamJson, compact, dependencyGraph, getResourceSpecificationVersion());
+    }
+
+    /**
+     * Schemas to validate the properties of resources against.
+     */
+    private ResourceSchemaRegistry getResourceSchemas()
+            throws MojoExecutionException {
+        if (!validateResourceProperties) {
+            return ResourceSchemaRegistry.EMPTY;
+        } else if (resourceSpecification == null) {
+            return ResourceSchemaRegistry.getDefault();
         }
 
-        if (compiles.size() == 0) {
-            info("No templates to compile in %s", inputDirectory);
-        } else {
-            info("Compiling %d CloudFormation templates to %s", compiles.size(), outDir);
-            int failures = 0;
+        InputStream specification = null;
 
-            for (Compilation c : compiles) {
-                info("Compiling %s to %s", c.sourceFile, c.targetFile);
+        try {
+            specification = new FileInputStream(resourceSpecification);
+            return ResourceSchemaRegistry.read(specification);
+        } catch (IOException ex) {
+            throw new MojoExecutionException(String.format("Unable to read resource specification %s", resourceSpecification), ex);
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException(String.format("Invalid resource specification %s: %s", resourceSpecification, ex.getMessage()));
+        } finally {
+            Closeables.closeQuietly(specification);
+        }
+    }
 
-                try {
-                    CompileResult result = c.compile();
-                    failures += outputResults(result);
-                } catch (IOException ex) {
-                    throw new MojoExecutionException(String.format("Error compiling %s", c.sourceFile), ex);
-                }
-            }
+    /**
+     * Hash of the resource specification, so editing it compiles every template again.
+     */
+    private String getResourceSpecificationVersion()
+            throws MojoExecutionException {
+        if (!validateResourceProperties) {
+            return "none";
+        } else if (resourceSpecification == null) {
+            return "bundled";
+        }
+
+        try {
+            return Files.hash(resourceSpecification, Hashing.sha1()).toString();
+        } catch (IOException ex) {
+            throw new MojoExecutionException(String.format("Unable to read resource specification %s", resourceSpecification), ex);
+        }
+    }
+
+    private DependencyGraphFormat getDependencyGraphFormat()
+            throws MojoExecutionException {
+        if (isNullOrEmpty(dependencyGraph)) {
+            return null;
+        }
+
+        try {
+            return DependencyGraphFormat.valueOf(dependencyGraph.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException(String.format("Unknown dependency graph format: %s. Valid formats: dot, json", dependencyGraph));
+        }
+    }
+
+    private File getBuildStateFile() {
+        return new File(stateDir, "build-state.json");
+    }
+
+    void saveBuildState(BuildState buildState) {
+        try {
+            debug("Saving build state to %s", buildState.getStateFile());
+            buildState.save();
+        } catch (IOException ex) {
+            warn("Unable to save build state to %s: %s", buildState.getStateFile(), ex);
+        }
+    }
+
+    /**
+     * Get the parameter overrides of each variant, including the overrides shared by all variants.
+     *
+     * @return parameter overrides by variant name, or a single entry with a null name if no variants are configured
+     */
+    private Map<String, Map<String, String>> getVariantParameters()
+            throws MojoExecutionException {
+        Map<String, Map<String, String>> result = newLinkedHashMap();
+
+        if (variants == null || variants.isEmpty()) {
+            result.put(null, parameters);
+            return result;
+        }
 
-            if (failures > 0) {
-                throw new MojoExecutionException(String.format("%d errors compiling CloudFormation templates", failures));
+        for (Variant variant : variants) {
+            if (isNullOrEmpty(variant.getName())) {
+                throw new MojoExecutionException("Every variant must have a name");
+            } else if (!VARIANT_NAME.matcher(variant.getName()).matches() || variant.getName().equals(".") || variant.getName().equals("..")) {
+                // The name is used as a directory, so it must not reach outside the output directory
+                throw new MojoExecutionException(String.format("Invalid variant name \"%s\". Names must be a single directory name of letters, digits, '.', '_' and '-'", variant.getName()));
+            } else if (result.containsKey(variant.getName())) {
+                throw new MojoExecutionException(String.format("Duplicate variant name: %s", variant.getName()));
             }
+
+            Map<String, String> variantParameters = newHashMap(parameters);
+            variantParameters.putAll(variant.getParameters());
+            result.put(variant.getName(), variantParameters);
+        }
+
+        return result;
+    }
+
+    /**
+     * Number of errors after which the build stops.
+     *
+     * @return maximum number of errors, or 0 for no limit
+     */
+    int getMaxErrors() {
+        return failFast ? 1 : Math.max(maxErrors, 0);
+    }
+
+    int getThreads() {
+        return threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    private static List<CompileResult> waitFor(Compilation c, Future<List<CompileResult>> result)
+            throws MojoExecutionException {
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(String.format("Interrupted compiling %s", c.sourceFile), ex);
+        } catch (ExecutionException ex) {
+            throw new MojoExecutionException(String.format("Error compiling %s", c.sourceFile), ex.getCause());
         }
     }
 
@@ -148,50 +566,143 @@ public class TemplateCompilerMojo
         return new File(newBaseDir, subPath);
     }
 
-    private static void walk(File directory, FilenameFilter filter, List<File> files) {
-        for (File file : directory.listFiles()) {
+    /**
+     * Find the files a filter accepts, without entering the directories it excludes as a whole.
+     */
+    private static void walk(File directory, GlobFilenameFilter filter, List<File> files) {
+        String[] names = directory.list();
+
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            File file = new File(directory, name);
+
             if (file.isDirectory()) {
-                walk(file, filter, files);
-            } else if (filter.accept(directory, file.getName())) {
+                if (filter.acceptDirectory(directory, name)) {
+                    walk(file, filter, files);
+                }
+            } else if (filter.accept(directory, name)) {
                 files.add(file);
             }
         }
     }
 
-    private static List<File> walk(File directory, FilenameFilter filter) {
+    private static List<File> walk(File directory, GlobFilenameFilter filter) {
         List<File> files = newArrayList();
         walk(directory, filter, files);
         return files;
     }
 
-    private int outputResults(CompileResult result) {
+    int outputResults(CompileResult result) {
         int failureCount = 0;
 
         for (CompileIssue issue : result.getIssues()) {
-            CompileIssueLevel level = issue.getLevel();
-            String message;
-
-            if (issue.getLocation() != null) {
-                message = String.format("%s\n%s", issue.getLocation(), issue.getMessage());
-            } else {
-                message = issue.getMessage();
-            }
-
-            if (level.compareTo(CompileIssueLevel.ERROR) >= 0) {
+            if (outputIssue(issue)) {
                 failureCount += 1;
-                error(message);
-            } else if (level.compareTo(CompileIssueLevel.WARN) >= 0) {
-                warn(message);
-            } else if (level.compareTo(CompileIssueLevel.INFO) >= 0) {
-                info(message);
-            } else {
-                debug(message);
             }
         }
 
         return failureCount;
     }
 
+    /**
+     * Log an issue at its level.
+     *
+     * @return true if the issue is an error
+     */
+    boolean outputIssue(CompileIssue issue) {
+        CompileIssueLevel level = issue.getLevel();
+        String message = formatIssue(issue);
+
+        if (level.getValue() >= CompileIssueLevel.ERROR.getValue()) {
+            error(message);
+            return true;
+        } else if (level.getValue() >= CompileIssueLevel.WARN.getValue()) {
+            warn(message);
+        } else if (level.getValue() >= CompileIssueLevel.INFO.getValue()) {
+            info(message);
+        } else {
+            debug(message);
+        }
+
+        return false;
+    }
+
+    static String formatIssue(CompileIssue issue) {
+        if (issue.getLocation() != null) {
+            return String.format("%s\n%s", issue.getLocation(), issue.getMessage());
+        }
+
+        return issue.getMessage();
+    }
+
+    /**
+     * Name of a target in the timings table: the path of its template in the input directory, and its variant.
+     */
+    private String getTemplateName(File sourceFile, Target target) {
+        String path = sourceFile.getAbsolutePath().substring(inputDirectory.getAbsolutePath().length() + 1);
+        return target.variant == null ? path : String.format("%s (%s)", path, target.variant);
+    }
+
+    /**
+     * Log the compile time by phase and write the timings report.
+     */
+    private void outputTimings(CompileTimings compileTimings) {
+        if (compileTimings.isEmpty()) {
+            return;
+        }
+
+        if (timings || getLog().isDebugEnabled()) {
+            for (String line : compileTimings.formatTable()) {
+                if (timings) {
+                    info(line);
+                } else {
+                    debug(line);
+                }
+            }
+        }
+
+        info(compileTimings.formatSummary());
+
+        File reportFile = new File(stateDir, "compile-timings.json");
+
+        try {
+            compileTimings.write(reportFile);
+        } catch (IOException ex) {
+            warn("Unable to write compile timings to %s: %s", reportFile, ex);
+        }
+    }
+
+    /**
+     * Log how long a chain of resources CloudFormation has to create one after another, and how many resources
+     * it can create at the same time, which together bound how long the stack takes to create.
+     */
+    void outputResourceGraph(CompileResult result, boolean verbose) {
+        DependencyGraph graph = result.getResourceGraph();
+
+        if (graph == null || graph.getNodes().isEmpty() || !(verbose || getLog().isDebugEnabled())) {
+            return;
+        }
+
+        List<List<String>> levels = graph.getLevels();
+        int width = 0;
+
+        for (List<String> level : levels) {
+            width = Math.max(width, level.size());
+        }
+
+        String message = String.format("%d resources in %d creation levels, at most %d in parallel. Critical path: %s",
+                graph.getNodes().size(), levels.size(), width, Joiner.on(" -> ").join(graph.getCriticalPath()));
+
+        if (verbose) {
+            info(message);
+        } else {
+            debug(message);
+        }
+    }
+
     private static File changeExtension(File path, String extension) {
         String name = path.getName();
         int dotIndex = name.lastIndexOf('.');
@@ -227,20 +738,423 @@ public class TemplateCompilerMojo
         return outputDirectory;
     }
 
-    private static class Compilation {
+    /**
+     * Compilers, worker threads and build state shared by the compiles of a build, or by every round of
+     * compiles of the watch goal, so the Ruby engines stay warm between rounds.
+     */
+    class CompileSession {
+        private final RubyEnginePool _enginePool;
+        private final ExecutorService _executor;
+        private final Compilers _compilers;
+        private final CompileCache _compileCache;
+        private final BuildState _buildState;
+        private boolean _daemonFailureLogged;
+        private int _maxErrors;
+
+        public CompileSession(int threadCount, boolean force)
+                throws MojoExecutionException {
+            ResourceSchemaRegistry resourceSchemas = getResourceSchemas();
+
+            // The daemon validates against the bundled specification
+            CompileDaemonClient daemon = useDaemon && resourceSchemas == ResourceSchemaRegistry.getDefault()
+                    ? CompileDaemonClient.connect(daemonFile, daemonTimeout)
+                    : null;
+            _enginePool = new RubyEnginePool(threadCount);
+
+            if (daemon != null) {
+                info("Compiling Ruby templates in the compile daemon on port %d", daemon.getPort());
+            }
+
+            _compileCache = compileCache == null ? null : new CompileCache(compileCache, compileCacheSize * 1024L * 1024L);
+
+            if (_compileCache != null) {
+                debug("Caching compiled templates in %s", _compileCache.getDirectory());
+            }
+
+            _executor = Executors.newFixedThreadPool(threadCount);
+            _compilers = new Compilers(daemon, _enginePool, _compileCache, streamJson, compact, getDependencyGraphFormat(), resourceSchemas, getMaxErrors());
+            _buildState = force
+                    ? new BuildState(getBuildStateFile(), getCompilerVersion())
+                    : BuildState.load(getBuildStateFile(), getCompilerVersion());
+        }
+
+        public BuildState getBuildState() {
+            return _buildState;
+        }
+
+        /**
+         * @return cache of compiled templates, or null if there is none
+         */
+        public CompileCache getCompileCache() {
+            return _compileCache;
+        }
+
+        /**
+         * Set the number of errors after which a call to {@link #compile(List, CompileReport)} skips the
+         * templates that have not started compiling. Default is to compile every template.
+         *
+         * @param maxErrors maximum number of errors, or 0 for no limit
+         */
+        public void setMaxErrors(int maxErrors) {
+            _maxErrors = maxErrors;
+        }
+
+        /**
+         * Compile templates concurrently and record the results in the build state.
+         *
+         * @return results for the targets of each compilation in the order of the compilations, with null for
+         * targets that are up to date
+         */
+        public List<List<CompileResult>> compile(List<Compilation> compiles)
+                throws MojoExecutionException {
+            return compile(compiles, null);
+        }
+
+        /**
+         * Compile templates concurrently, record the results in the build state and add each target to a
+         * report as soon as its compile finishes.
+         *
+         * @param report report to add the targets to, or null
+         * @return results for the targets of each compilation in the order of the compilations, with null for
+         * targets that are up to date, and null instead of the results of compilations that were skipped because
+         * the maximum number of errors was reached
+         */
+        public List<List<CompileResult>> compile(List<Compilation> compiles, CompileReport report)
+                throws MojoExecutionException {
+            List<Future<List<CompileResult>>> futures = newArrayListWithCapacity(compiles.size());
+            List<List<CompileResult>> results = newArrayListWithCapacity(compiles.size());
+            ErrorLimit errorLimit = new ErrorLimit(_maxErrors);
+
+            for (Compilation c : compiles) {
+                futures.add(_executor.submit(new CompileTask(c, _compilers, _buildState, report, errorLimit)));
+            }
+
+            for (int i = 0; i < compiles.size(); ++i) {
+                Compilation c = compiles.get(i);
+                List<CompileResult> targetResults = waitFor(c, futures.get(i));
+
+                if (targetResults == null) {
+                    results.add(null);
+                    continue;
+                }
+
+                results.add(targetResults);
+            }
+
+            if (_compilers.getDaemonFailure() != null && !_daemonFailureLogged) {
+                warn("The compile daemon failed, templates were compiled in the build instead: %s", _compilers.getDaemonFailure().getMessage());
+                _daemonFailureLogged = true;
+            }
+
+            return results;
+        }
+
+        public void close() {
+            _executor.shutdownNow();
+            _enginePool.close();
+        }
+    }
+
+    static class Compilation {
         public final File sourceFile;
-        public final File targetFile;
-        public final TemplateCompiler compiler;
+        public final List<Target> targets = newArrayList();
 
-        public Compilation(File sourceFile, File targetFile, TemplateCompiler compiler) {
+        public Compilation(File sourceFile) {
             this.sourceFile = sourceFile;
+        }
+
+        /**
+         * Compile the source file for the given targets. The variants of a template are compiled in one call,
+         * except by a streaming compiler, which writes each target while it reads the template.
+         *
+         * @return results in the order of the targets
+         */
+        public List<CompileResult> compile(TemplateCompiler compiler, List<Target> staleTargets)
+                throws IOException {
+            if (staleTargets.size() == 1 || isStreaming(compiler)) {
+                List<CompileResult> results = newArrayList();
+
+                for (Target target : staleTargets) {
+                    compiler.setParameters(newHashMap(target.parameters));
+                    results.add(compiler.compile(sourceFile, target.targetFile));
+                }
+
+                return results;
+            }
+
+            Map<String, Map<String, String>> variantParameters = newLinkedHashMap();
+
+            for (Target target : staleTargets) {
+                variantParameters.put(target.variant, target.parameters);
+            }
+
+            compiler.setParameters(Collections.<String, String>emptyMap());
+
+            Map<String, CompileResult> variantResults = compiler.compileVariants(sourceFile, variantParameters);
+            List<CompileResult> results = newArrayList();
+
+            for (Target target : staleTargets) {
+                CompileResult result = variantResults.get(target.variant);
+                TemplateCompiler.write(result, target.targetFile);
+                compiler.writeDependencyGraph(result, target.targetFile);
+                results.add(result);
+            }
+
+            return results;
+        }
+
+        private static boolean isStreaming(TemplateCompiler compiler) {
+            return compiler instanceof JsonTemplateCompiler && ((JsonTemplateCompiler) compiler).isStreaming();
+        }
+    }
+
+    /**
+     * Output of a source file for one variant.
+     */
+    static class Target {
+        public final String variant;
+        public final File targetFile;
+        public final Map<String, String> parameters;
+
+        public Target(String variant, File targetFile, Map<String, String> parameters) {
+            this.variant = variant;
             this.targetFile = targetFile;
-            this.compiler = compiler;
+            this.parameters = parameters;
         }
+    }
 
-        public CompileResult compile()
+    /**
+     * Compiler instances for each worker thread, so no mutable compiler state (such as the parameter
+     * overrides) is shared between threads.
+     * <p/>
+     * Ruby templates are compiled in the compile daemon if there is one, until it fails once. Templates are
+     * looked up in the compile cache first if there is one, except streamed JSON templates, which are not kept in
+     * memory.
+     */
+    static class Compilers {
+        private final ThreadLocal<DaemonTemplateCompiler> _daemonTemplateCompiler;
+        private final ThreadLocal<RubyTemplateCompiler> _rubyTemplateCompiler;
+        private final ThreadLocal<JsonTemplateCompiler> _jsonTemplateCompiler;
+        private final CompileCache _cache;
+        private final boolean _streamJson;
+        private volatile IOException _daemonFailure;
+
+        public Compilers(final CompileDaemonClient daemon, final RubyEnginePool enginePool, CompileCache cache, final boolean streamJson, final boolean compact, final DependencyGraphFormat graphFormat, final ResourceSchemaRegistry resourceSchemas, final int maxErrors) {
+            _cache = cache;
+            _streamJson = streamJson;
+
+            _daemonTemplateCompiler = daemon == null ? null : new ThreadLocal<DaemonTemplateCompiler>() {
+                @Override
+                protected DaemonTemplateCompiler initialValue() {
+                    DaemonTemplateCompiler compiler = new DaemonTemplateCompiler(daemon);
+                    compiler.setCompact(compact);
+                    compiler.setDependencyGraphFormat(graphFormat);
+                    compiler.setResourceSchemas(resourceSchemas);
+                    compiler.setMaxErrors(maxErrors);
+                    return compiler;
+                }
+            };
+
+            _rubyTemplateCompiler = new ThreadLocal<RubyTemplateCompiler>() {
+                @Override
+                protected RubyTemplateCompiler initialValue() {
+                    RubyTemplateCompiler compiler = new RubyTemplateCompiler(enginePool);
+                    compiler.setCompact(compact);
+                    compiler.setDependencyGraphFormat(graphFormat);
+                    compiler.setResourceSchemas(resourceSchemas);
+                    compiler.setMaxErrors(maxErrors);
+                    return compiler;
+                }
+            };
+
+            _jsonTemplateCompiler = new ThreadLocal<JsonTemplateCompiler>() {
+                @Override
+                protected JsonTemplateCompiler initialValue() {
+                    JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+                    compiler.setStreaming(streamJson);
+                    compiler.setCompact(compact);
+                    compiler.setDependencyGraphFormat(graphFormat);
+                    compiler.setResourceSchemas(resourceSchemas);
+                    compiler.setMaxErrors(maxErrors);
+                    return compiler;
+                }
+            };
+        }
+
+        public TemplateCompiler forFile(File file) {
+            boolean ruby = FilenameUtils.getExtension(file.getName()).equals("rb");
+            TemplateCompiler compiler;
+
+            if (!ruby) {
+                compiler = _jsonTemplateCompiler.get();
+            } else if (_daemonTemplateCompiler != null && _daemonFailure == null) {
+                compiler = _daemonTemplateCompiler.get();
+            } else {
+                compiler = _rubyTemplateCompiler.get();
+            }
+
+            return _cache == null || (!ruby && _streamJson) ? compiler : new CachingTemplateCompiler(compiler, _cache);
+        }
+
+        /**
+         * Check whether a compiler from {@link #forFile(File)} compiles in the compile daemon.
+         *
+         * @param compiler compiler to check
+         * @return true if the compiler or the compiler it looks up cached templates for is a daemon compiler
+         */
+        public static boolean usesDaemon(TemplateCompiler compiler) {
+            if (compiler instanceof CachingTemplateCompiler) {
+                compiler = ((CachingTemplateCompiler) compiler).getCompiler();
+            }
+
+            return compiler instanceof DaemonTemplateCompiler;
+        }
+
+        /**
+         * Stop using the compile daemon.
+         *
+         * @param failure error from the daemon
+         */
+        public void daemonFailed(IOException failure) {
+            _daemonFailure = failure;
+        }
+
+        /**
+         * Error that made the compilers stop using the compile daemon.
+         *
+         * @return daemon error, or null if the daemon did not fail
+         */
+        public IOException getDaemonFailure() {
+            return _daemonFailure;
+        }
+    }
+
+    /**
+     * Errors of the compiles of a build so far, shared by its compile tasks so they can stop starting new
+     * compiles as soon as the maximum is reached, whichever task reaches it.
+     */
+    static class ErrorLimit {
+        private final int _maxErrors;
+        private final AtomicInteger _errors = new AtomicInteger();
+
+        /**
+         * @param maxErrors maximum number of errors, or 0 for no limit
+         */
+        public ErrorLimit(int maxErrors) {
+            _maxErrors = maxErrors;
+        }
+
+        public boolean isReached() {
+            return _maxErrors > 0 && _errors.get() >= _maxErrors;
+        }
+
+        /**
+         * Count the errors of the results of a compile.
+         *
+         * @param results results, with null for targets that were not compiled
+         */
+        public void add(List<CompileResult> results) {
+            for (CompileResult result : results) {
+                if (result != null) {
+                    _errors.addAndGet(result.getIssues(CompileIssueLevel.ERROR).size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a template for every target that is not up to date, and records the inputs of each compiled
+     * target in the build state. The inputs are hashed before the compile starts.
+     * <p/>
+     * Returns a result for each target, with null for targets that were skipped, or null instead of the results
+     * if the error limit was reached before the task started. The targets are added to the report either way.
+     */
+    static class CompileTask implements Callable<List<CompileResult>> {
+        private final Compilation _compilation;
+        private final Compilers _compilers;
+        private final BuildState _buildState;
+        private final CompileReport _report;
+        private final ErrorLimit _errorLimit;
+
+        public CompileTask(Compilation compilation, Compilers compilers, BuildState buildState, CompileReport report, ErrorLimit errorLimit) {
+            _compilation = compilation;
+            _compilers = compilers;
+            _buildState = buildState;
+            _report = report;
+            _errorLimit = errorLimit;
+        }
+
+        @Override
+        public List<CompileResult> call()
+                throws IOException {
+            if (_errorLimit.isReached()) {
+                if (_report != null) {
+                    for (Target target : _compilation.targets) {
+                        _report.addSkipped(_compilation.sourceFile, target.variant, target.targetFile);
+                    }
+                }
+
+                return null;
+            }
+
+            List<Target> staleTargets = newArrayList();
+
+            for (Target target : _compilation.targets) {
+                if (!_buildState.isUpToDate(target.targetFile, target.parameters)) {
+                    staleTargets.add(target);
+                }
+            }
+
+            List<CompileResult> results = newArrayList();
+            Iterator<CompileResult> staleResults = Iterators.emptyIterator();
+            BuildState.Inputs inputs = null;
+
+            if (!staleTargets.isEmpty()) {
+                List<File> staleFiles = newArrayList();
+
+                for (Target target : staleTargets) {
+                    staleFiles.add(target.targetFile);
+                }
+
+                inputs = _buildState.hashInputs(_compilation.sourceFile, staleFiles);
+                staleResults = compile(staleTargets).iterator();
+            }
+
+            for (Target target : _compilation.targets) {
+                CompileResult result = staleTargets.contains(target) ? staleResults.next() : null;
+                results.add(result);
+
+                if (result != null) {
+                    _buildState.update(target.targetFile, target.parameters, result, inputs);
+                }
+
+                if (_report != null) {
+                    if (result != null) {
+                        _report.add(_compilation.sourceFile, target.variant, target.targetFile, result);
+                    } else {
+                        _report.addUpToDate(_compilation.sourceFile, target.variant, target.targetFile, _buildState.getIssues(target.targetFile));
+                    }
+                }
+            }
+
+            _errorLimit.add(results);
+            return results;
+        }
+
+        private List<CompileResult> compile(List<Target> staleTargets)
                 throws IOException {
-            return compiler.compile(sourceFile, targetFile);
+            TemplateCompiler compiler = _compilers.forFile(_compilation.sourceFile);
+
+            try {
+                return _compilation.compile(compiler, staleTargets);
+            } catch (IOException ex) {
+                if (!Compilers.usesDaemon(compiler)) {
+                    throw ex;
+                }
+
+                _compilers.daemonFailed(ex);
+                return _compilation.compile(_compilers.forFile(_compilation.sourceFile), staleTargets);
+            }
         }
     }
 }
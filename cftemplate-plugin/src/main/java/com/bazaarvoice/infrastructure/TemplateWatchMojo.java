@@ -0,0 +1,273 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newTreeSet;
+
+/**
+ * Goal which compiles CloudFormation templates whenever they or the files they include change, until Maven is
+ * stopped.
+ * <p/>
+ * All templates are compiled when the goal starts, like the cftemplates goal does. After that the input
+ * directory and the files the templates include are checked for changes, and only the templates that use a
+ * changed file are compiled again, with the same warm compilers. The issues of each template are reported as
+ * the difference from its previous compile. A compile that fails, for example because a file was renamed away
+ * while it was saved, is logged and the goal keeps watching.
+ *
+ * @goal watch
+ */
+public class TemplateWatchMojo extends TemplateCompilerMojo {
+    /**
+     * Milliseconds between checks for changed files.
+     *
+     * @parameter expression="${cftemplate.pollInterval}" default-value="200"
+     */
+    private int pollInterval;
+
+    /**
+     * Milliseconds without further changes to wait for after a change, so a burst of saves is compiled once.
+     *
+     * @parameter expression="${cftemplate.quietPeriod}" default-value="150"
+     */
+    private int quietPeriod;
+
+    /**
+     * Files each template used in its last compile, by template file.
+     */
+    private final Map<File, Set<File>> _inputs = newHashMap();
+
+    /**
+     * Issues of the last compile of each target, by output file.
+     */
+    private final Map<File, List<String>> _issues = newHashMap();
+
+    @Override
+    public void execute()
+            throws MojoExecutionException {
+        if (!getInputDirectory().isDirectory()) {
+            info("No templates found in %s", getInputDirectory());
+            return;
+        }
+
+        CompileSession session = new CompileSession(getThreads(), false);
+
+        try {
+            compile(session, getCompilations(findSourceFiles()));
+            Map<File, String> snapshot = snapshot();
+            info("Watching %s for changes. Press Ctrl-C to stop.", getInputDirectory());
+
+            while (true) {
+                Thread.sleep(pollInterval);
+
+                Map<File, String> current = snapshot();
+                Set<File> changed = changes(snapshot, current);
+
+                // Wait until the files stop changing
+                while (!changed.isEmpty()) {
+                    snapshot = current;
+                    Thread.sleep(quietPeriod);
+                    current = snapshot();
+
+                    Set<File> moreChanged = changes(snapshot, current);
+
+                    if (moreChanged.isEmpty()) {
+                        recompileQuietly(session, changed);
+                        break;
+                    }
+
+                    changed.addAll(moreChanged);
+                }
+
+                snapshot = current;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Compile the templates that use the changed files, logging a compile that fails instead of stopping the goal.
+     * A file can disappear for a moment while an editor saves it, and the templates whose compile failed are
+     * compiled again when their files next change.
+     */
+    private void recompileQuietly(CompileSession session, Set<File> changed) {
+        try {
+            recompile(session, changed);
+        } catch (MojoExecutionException ex) {
+            error("%s: %s", ex.getMessage(), ex.getCause() != null ? ex.getCause() : "unknown error");
+        }
+    }
+
+    private void recompile(CompileSession session, Set<File> changed)
+            throws MojoExecutionException {
+        Set<File> sourceFiles = newTreeSet();
+        List<File> affected = newArrayList();
+
+        for (File sourceFile : findSourceFiles()) {
+            sourceFiles.add(sourceFile.getAbsoluteFile());
+        }
+
+        for (File sourceFile : newArrayList(_inputs.keySet())) {
+            if (!sourceFiles.contains(sourceFile)) {
+                info("%s was removed", sourceFile);
+                _inputs.remove(sourceFile);
+            }
+        }
+
+        for (File sourceFile : sourceFiles) {
+            Set<File> inputs = _inputs.get(sourceFile);
+
+            if (inputs == null || !Collections.disjoint(inputs, changed)) {
+                affected.add(sourceFile);
+            }
+        }
+
+        if (affected.isEmpty()) {
+            debug("No templates use the changed files %s", changed);
+        } else {
+            compile(session, getCompilations(affected));
+        }
+    }
+
+    private void compile(CompileSession session, List<Compilation> compiles)
+            throws MojoExecutionException {
+        long start = System.nanoTime();
+        List<List<CompileResult>> results = session.compile(compiles);
+        int compiled = 0;
+        int errors = 0;
+
+        for (int i = 0; i < compiles.size(); ++i) {
+            Compilation c = compiles.get(i);
+            Set<File> inputs = newHashSet(c.sourceFile.getAbsoluteFile());
+
+            for (int j = 0; j < c.targets.size(); ++j) {
+                Target target = c.targets.get(j);
+                CompileResult result = results.get(i).get(j);
+
+                if (result == null) {
+                    debug("%s is up to date", target.targetFile);
+
+                    for (String file : session.getBuildState().getFiles(target.targetFile)) {
+                        inputs.add(new File(file));
+                    }
+                } else {
+                    info("Compiling %s to %s", c.sourceFile, target.targetFile);
+                    errors += outputIssueChanges(target, result);
+                    outputResourceGraph(result, false);
+                    compiled += 1;
+
+                    for (String file : result.getFiles()) {
+                        inputs.add(new File(file).getAbsoluteFile());
+                    }
+                }
+            }
+
+            _inputs.put(c.sourceFile.getAbsoluteFile(), inputs);
+        }
+
+        saveBuildState(session.getBuildState());
+
+        if (compiled > 0) {
+            info("Compiled %d CloudFormation templates in %d ms with %d errors", compiled, (System.nanoTime() - start) / 1000000, errors);
+        }
+    }
+
+    /**
+     * Log the issues of a target that were not reported by its previous compile, and the previous issues that
+     * are gone. All issues are logged the first time the target is compiled.
+     *
+     * @return number of errors
+     */
+    private int outputIssueChanges(Target target, CompileResult result) {
+        List<String> previous = _issues.get(target.targetFile);
+        List<String> current = newArrayList();
+        int unchanged = 0;
+
+        for (CompileIssue issue : result.getIssues()) {
+            String key = issue.getLevel() + " " + formatIssue(issue);
+            current.add(key);
+
+            if (previous != null && previous.contains(key)) {
+                unchanged += 1;
+            } else {
+                outputIssue(issue);
+            }
+        }
+
+        if (previous != null) {
+            for (String key : previous) {
+                if (!current.contains(key)) {
+                    info("Fixed: %s", key);
+                }
+            }
+        }
+
+        if (unchanged > 0) {
+            info("%d issues are unchanged", unchanged);
+        }
+
+        _issues.put(target.targetFile, current);
+        return result.getIssues(CompileIssueLevel.ERROR).size();
+    }
+
+    /**
+     * Modification time and size of every file in the input directory and of every file a template included
+     * from elsewhere.
+     */
+    private Map<File, String> snapshot() {
+        Map<File, String> snapshot = newHashMap();
+
+        for (File file : FileUtils.listFiles(getInputDirectory(), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+            snapshot.put(file.getAbsoluteFile(), file.lastModified() + ":" + file.length());
+        }
+
+        for (Set<File> inputs : _inputs.values()) {
+            for (File file : inputs) {
+                if (!snapshot.containsKey(file)) {
+                    snapshot.put(file, file.exists() ? file.lastModified() + ":" + file.length() : "missing");
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    private Set<File> changes(Map<File, String> before, Map<File, String> after) {
+        String inputPath = getInputDirectory().getAbsolutePath() + File.separator;
+        Set<File> changed = newHashSet();
+
+        for (Map.Entry<File, String> file : after.entrySet()) {
+            String previous = before.get(file.getKey());
+
+            // Files outside the input directory are new to the snapshot when a compile starts using them, which
+            // is not a change
+            if (previous == null ? file.getKey().getPath().startsWith(inputPath) : !previous.equals(file.getValue())) {
+                changed.add(file.getKey());
+            }
+        }
+
+        for (File file : before.keySet()) {
+            if (!after.containsKey(file)) {
+                changed.add(file);
+            }
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,31 @@
+package com.bazaarvoice.infrastructure;
+
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Named set of template parameter overrides, e.g. for one environment.
+ * <p/>
+ * When variants are configured every template is compiled once per variant, and the output of each variant
+ * is written to a subdirectory of the output directory named after the variant.
+ */
+public class Variant {
+    /**
+     * Name of the variant.
+     */
+    private String name;
+
+    /**
+     * Template parameter default value overrides, applied on top of the overrides shared by all variants.
+     */
+    private Map<String, String> parameters = newHashMap();
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+}
@@ -0,0 +1,98 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLocation;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link BuildState}.
+ */
+public class BuildStateTest {
+    private static final String VERSION = "1.0";
+    private static final Map<String, String> PARAMETERS = ImmutableMap.of("Environment", "dev");
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private File _stateFile;
+    private File _source;
+    private File _output;
+
+    @Before
+    public void setUp()
+            throws IOException {
+        _stateFile = new File(_folder.getRoot(), "build-state.json");
+        _source = _folder.newFile("stack.json");
+        _output = _folder.newFile("stack.out.json");
+        Files.write("{}", _source, Charsets.UTF_8);
+    }
+
+    private BuildState compile(CompileIssue... issues)
+            throws IOException {
+        BuildState state = BuildState.load(_stateFile, VERSION);
+        BuildState.Inputs inputs = state.hashInputs(_source, Collections.singleton(_output));
+        state.update(_output, PARAMETERS, new CompileResult(_source, ImmutableList.copyOf(issues)), inputs);
+        state.save();
+        return BuildState.load(_stateFile, VERSION);
+    }
+
+    @Test
+    public void testCompile_with_warnings_is_recorded()
+            throws IOException {
+        BuildState state = compile(
+                new CompileIssue(CompileIssueLevel.WARN, "Unused", new CompileIssueLocation(_source, 3, "/Resources/Queue")),
+                new CompileIssue(CompileIssueLevel.WARN, "Unknown property"));
+
+        assertTrue(state.isUpToDate(_output, PARAMETERS));
+
+        List<CompileIssue> issues = state.getIssues(_output);
+        assertEquals(2, issues.size());
+        assertEquals(CompileIssueLevel.WARN, issues.get(0).getLevel());
+        assertEquals("Unused", issues.get(0).getMessage());
+        assertEquals(_source, issues.get(0).getLocation().getFile());
+        assertEquals(3, issues.get(0).getLocation().getLine());
+        assertEquals("/Resources/Queue", issues.get(0).getLocation().getPath());
+        assertEquals("Unknown property", issues.get(1).getMessage());
+        assertNull(issues.get(1).getLocation());
+    }
+
+    @Test
+    public void testCompile_with_errors_is_not_recorded()
+            throws IOException {
+        BuildState state = compile(
+                new CompileIssue(CompileIssueLevel.ERROR, "Broken"),
+                new CompileIssue(CompileIssueLevel.WARN, "Unused"));
+
+        assertFalse(state.isUpToDate(_output, PARAMETERS));
+        assertTrue(state.getIssues(_output).isEmpty());
+    }
+
+    @Test
+    public void testCompile_without_issues_is_recorded()
+            throws IOException {
+        BuildState state = compile();
+
+        assertTrue(state.isUpToDate(_output, PARAMETERS));
+        assertTrue(state.getIssues(_output).isEmpty());
+    }
+}
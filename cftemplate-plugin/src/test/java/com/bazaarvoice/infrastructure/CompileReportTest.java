@@ -0,0 +1,208 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssue;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLocation;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link CompileReport}.
+ */
+public class CompileReportTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final File BASE = new File("base").getAbsoluteFile();
+
+    private final ByteArrayOutputStream _json = new ByteArrayOutputStream();
+    private final FailingOutputStream _sarif = new FailingOutputStream();
+
+    private CompileReport open()
+            throws IOException {
+        return CompileReport.open(_json, _sarif, BASE);
+    }
+
+    private JsonNode readJson()
+            throws IOException {
+        return MAPPER.readTree(_json.toByteArray());
+    }
+
+    private JsonNode readSarif()
+            throws IOException {
+        return MAPPER.readTree(_sarif.toByteArray());
+    }
+
+    @Test
+    public void testReport()
+            throws IOException {
+        CompileReport report = open();
+        File source = new File(BASE, "stack.rb");
+        CompileResult failed = new CompileResult(source, ImmutableList.of(
+                new CompileIssue(CompileIssueLevel.ERROR, "Broken", new CompileIssueLocation(source, 3, "Resources.Queue")),
+                new CompileIssue(CompileIssueLevel.WARN, "Unused")));
+
+        report.add(source, "dev", new File("out/dev/stack.json"), failed);
+        report.add(source, "prod", new File("out/prod/stack.json"), null);
+        report.add(new File(BASE, "vpc.json"), null, new File("out/vpc.json"), new CompileResult(source, ImmutableList.<CompileIssue>of()));
+        report.addSkipped(new File(BASE, "db.rb"), null, new File("out/db.json"));
+        report.close();
+
+        assertNull(report.getFailure());
+
+        JsonNode json = readJson();
+        JsonNode templates = json.get("templates");
+        assertEquals(4, templates.size());
+        assertEquals("failed", templates.get(0).get("status").asText());
+        assertEquals("dev", templates.get(0).get("variant").asText());
+        assertEquals(2, templates.get(0).get("issues").size());
+        assertEquals(3, templates.get(0).get("issues").get(0).get("line").asInt());
+        assertEquals("upToDate", templates.get(1).get("status").asText());
+        assertEquals("compiled", templates.get(2).get("status").asText());
+        assertFalse(templates.get(2).has("variant"));
+        assertEquals("skipped", templates.get(3).get("status").asText());
+        assertEquals("out/db.json", templates.get(3).get("target").asText());
+
+        JsonNode summary = json.get("summary");
+        assertEquals(4, summary.get("templates").asInt());
+        assertEquals(2, summary.get("compiled").asInt());
+        assertEquals(1, summary.get("upToDate").asInt());
+        assertEquals(1, summary.get("skipped").asInt());
+        assertTrue(summary.get("complete").asBoolean());
+        assertEquals(1, summary.get("issues").get("ERROR").asInt());
+        assertEquals(1, summary.get("issues").get("WARN").asInt());
+
+        JsonNode run = readSarif().get("runs").get(0);
+        JsonNode results = run.get("results");
+        assertEquals(3, results.size());
+        assertEquals("error", results.get(0).get("level").asText());
+        assertEquals("stack.rb", results.get(0).get("locations").get(0).get("physicalLocation").get("artifactLocation").get("uri").asText());
+        assertEquals(3, results.get(0).get("locations").get(0).get("physicalLocation").get("region").get("startLine").asInt());
+        assertEquals("warning", results.get(1).get("level").asText());
+        assertEquals("note", results.get(2).get("level").asText());
+        assertEquals("db.rb", results.get(2).get("locations").get(0).get("physicalLocation").get("artifactLocation").get("uri").asText());
+        assertEquals(4, run.get("properties").get("templates").asInt());
+    }
+
+    @Test
+    public void testReport_up_to_date_with_recorded_issues()
+            throws IOException {
+        CompileReport report = open();
+        File source = new File(BASE, "stack.rb");
+
+        report.addUpToDate(source, null, new File("out/stack.json"), ImmutableList.of(
+                new CompileIssue(CompileIssueLevel.WARN, "Unused", new CompileIssueLocation(source, 5, "/Parameters/Size"))));
+        report.addUpToDate(source, "prod", new File("out/prod/stack.json"), ImmutableList.<CompileIssue>of());
+        report.close();
+
+        assertNull(report.getFailure());
+
+        JsonNode json = readJson();
+        JsonNode templates = json.get("templates");
+        assertEquals("upToDate", templates.get(0).get("status").asText());
+        assertEquals(1, templates.get(0).get("issues").size());
+        assertEquals("WARN", templates.get(0).get("issues").get(0).get("level").asText());
+        assertEquals("Unused", templates.get(0).get("issues").get(0).get("message").asText());
+        assertEquals(5, templates.get(0).get("issues").get(0).get("line").asInt());
+        assertFalse(templates.get(0).has("metrics"));
+        assertEquals(0, templates.get(1).get("issues").size());
+
+        JsonNode summary = json.get("summary");
+        assertEquals(2, summary.get("upToDate").asInt());
+        assertEquals(0, summary.get("compiled").asInt());
+        assertEquals(1, summary.get("issues").get("WARN").asInt());
+
+        // Code scanning tools must keep seeing the warning while the template is not compiled again
+        JsonNode run = readSarif().get("runs").get(0);
+        assertEquals(1, run.get("results").size());
+        assertEquals("warning", run.get("results").get(0).get("level").asText());
+        assertEquals("Unused", run.get("results").get(0).get("message").get("text").asText());
+        assertEquals(1, run.get("properties").get("issues").get("WARN").asInt());
+    }
+
+    @Test
+    public void testReport_closed_before_any_template()
+            throws IOException {
+        CompileReport report = open();
+        report.close();
+
+        assertNull(report.getFailure());
+        assertEquals(0, readJson().get("templates").size());
+        assertEquals(0, readJson().get("summary").get("templates").asInt());
+        assertEquals(0, readSarif().get("runs").get(0).get("results").size());
+    }
+
+    @Test
+    public void testReport_after_write_failure()
+            throws IOException {
+        CompileReport report = open();
+        File source = new File(BASE, "stack.rb");
+
+        report.add(source, null, new File("out/a.json"), new CompileResult(source, ImmutableList.of(new CompileIssue(CompileIssueLevel.WARN, "First"))));
+        _sarif.failFlush = true;
+        report.add(source, null, new File("out/b.json"), new CompileResult(source, ImmutableList.of(new CompileIssue(CompileIssueLevel.WARN, "Second"))));
+        _sarif.failFlush = false;
+        report.add(source, null, new File("out/c.json"), null);
+        report.addSkipped(source, null, new File("out/d.json"));
+        report.close();
+
+        assertNotNull(report.getFailure());
+
+        // Templates after the failure are not written, but both files are still well-formed with the totals
+        JsonNode json = readJson();
+        assertEquals(2, json.get("templates").size());
+        assertEquals(4, json.get("summary").get("templates").asInt());
+        assertEquals(1, json.get("summary").get("skipped").asInt());
+        assertFalse(json.get("summary").get("complete").asBoolean());
+
+        JsonNode run = readSarif().get("runs").get(0);
+        assertEquals(2, run.get("results").size());
+        assertFalse(run.get("properties").get("complete").asBoolean());
+    }
+
+    @Test
+    public void testOpen_failure_closes_streams() {
+        _sarif.failFlush = true;
+
+        try {
+            open();
+        } catch (IOException ex) {
+            assertTrue(_sarif.closed);
+            return;
+        }
+
+        throw new AssertionError("Expected open to fail");
+    }
+
+    /**
+     * Stream that keeps what is written to it, but can fail to flush.
+     */
+    private static class FailingOutputStream extends ByteArrayOutputStream {
+        boolean failFlush;
+        boolean closed;
+
+        @Override
+        public void flush()
+                throws IOException {
+            if (failFlush) {
+                throw new IOException("Flush failed");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.bazaarvoice.infrastructure;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link GlobFilenameFilter} and the {@link GlobAutomaton} it matches with.
+ */
+public class GlobFilenameFilterTest {
+    private static final File BASE = new File("base").getAbsoluteFile();
+    private static final List<String> NONE = Collections.emptyList();
+
+    private static GlobFilenameFilter filter(List<String> includes, List<String> excludes) {
+        return new GlobFilenameFilter(BASE, includes, excludes);
+    }
+
+    private static boolean accept(GlobFilenameFilter filter, String path) {
+        File file = new File(BASE, path);
+        return filter.accept(file.getParentFile(), file.getName());
+    }
+
+    private static boolean acceptDirectory(GlobFilenameFilter filter, String path) {
+        File directory = new File(BASE, path);
+        return filter.acceptDirectory(directory.getParentFile(), directory.getName());
+    }
+
+    @Test
+    public void testName_globs() {
+        GlobFilenameFilter filter = new GlobFilenameFilter(ImmutableList.of("*stack.rb", "t?.json"), NONE);
+
+        assertTrue(filter.accept(BASE, "stack.rb"));
+        assertTrue(filter.accept(new File(BASE, "a/b"), "mystack.rb"));
+        assertTrue(filter.accept(BASE, "t1.json"));
+        assertFalse(filter.accept(BASE, "t12.json"));
+        assertFalse(filter.accept(BASE, "stack.rbx"));
+        assertFalse(filter.accept(BASE, "stack.json"));
+    }
+
+    @Test
+    public void testPath_globs() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("stacks/*.rb"), NONE);
+
+        assertTrue(accept(filter, "stacks/web.rb"));
+        assertFalse(accept(filter, "stacks/web/app.rb"));
+        assertFalse(accept(filter, "other/web.rb"));
+    }
+
+    @Test
+    public void testPath_globs_any_directories() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("stacks/**/*.rb", "**/shared.json"), NONE);
+
+        assertTrue(accept(filter, "stacks/web.rb"));
+        assertTrue(accept(filter, "stacks/web/app.rb"));
+        assertTrue(accept(filter, "stacks/a/b/c/app.rb"));
+        assertFalse(accept(filter, "stacksx/app.rb"));
+        assertFalse(accept(filter, "other/stacks/app.rb"));
+
+        assertTrue(accept(filter, "shared.json"));
+        assertTrue(accept(filter, "a/b/shared.json"));
+        assertFalse(accept(filter, "a/notshared.json"));
+    }
+
+    @Test
+    public void testCharacter_classes() {
+        GlobFilenameFilter filter = new GlobFilenameFilter(ImmutableList.of("v[0-9].rb", "[!t]*.json"), NONE);
+
+        assertTrue(filter.accept(BASE, "v1.rb"));
+        assertFalse(filter.accept(BASE, "vx.rb"));
+        assertFalse(filter.accept(BASE, "v12.rb"));
+
+        assertTrue(filter.accept(BASE, "stack.json"));
+        assertFalse(filter.accept(BASE, "test.json"));
+        assertFalse(filter.accept(BASE, "Test.json"));
+    }
+
+    @Test
+    public void testCharacter_classes_do_not_match_slash_in_paths() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("a[!x]b/*.rb", "a?b/*.json"), NONE);
+
+        assertTrue(accept(filter, "acb/t.rb"));
+        assertFalse(accept(filter, "axb/t.rb"));
+        assertTrue(accept(filter, "acb/t.json"));
+        assertFalse(new GlobAutomaton(ImmutableList.of("a[!x]b"), true).matches("a/b"));
+        assertFalse(new GlobAutomaton(ImmutableList.of("a?b"), true).matches("a/b"));
+        assertTrue(new GlobAutomaton(ImmutableList.of("a?b"), false).matches("a/b"));
+    }
+
+    @Test
+    public void testCase_folding() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("*.RB", "Stacks/[a-c]*.json"), NONE);
+
+        assertTrue(accept(filter, "stack.rb"));
+        assertTrue(accept(filter, "STACK.Rb"));
+        assertTrue(accept(filter, "stacks/B.json"));
+        assertTrue(accept(filter, "STACKS/app.JSON"));
+        assertFalse(accept(filter, "stacks/d.json"));
+    }
+
+    @Test
+    public void testNon_ascii_names() {
+        GlobFilenameFilter filter = new GlobFilenameFilter(ImmutableList.of("h*.rb", "?ber.json", "caf\u00e9.rb"), NONE);
+
+        assertTrue(filter.accept(BASE, "h\u00e9llo.rb"));
+        assertFalse(filter.accept(BASE, "h\u00e9llo.rbx"));
+        assertTrue(filter.accept(BASE, "\u00fcber.json"));
+        assertFalse(filter.accept(BASE, "\u00fc\u00fcber.json"));
+        assertTrue(filter.accept(BASE, "caf\u00e9.rb"));
+        assertTrue(filter.accept(BASE, "CAF\u00e9.rb"));
+        assertFalse(filter.accept(BASE, "caf\u00c9.rb"));
+        assertFalse(filter.accept(BASE, "cafe.rb"));
+    }
+
+    @Test
+    public void testMany_partial_matches() {
+        // An "a" 13th from the end needs a deterministic state for every combination of the last 13 characters,
+        // more than the automaton allows, so it is matched nondeterministically
+        GlobAutomaton automaton = new GlobAutomaton(ImmutableList.of("*a????????????"), false);
+
+        assertTrue(automaton.matches("a123456789012"));
+        assertTrue(automaton.matches("xxA123456789012"));
+        assertFalse(automaton.matches("a12345678901"));
+        assertFalse(automaton.matches("ab123456789012"));
+        assertTrue(automaton.matches("\u00e9a123456789012"));
+    }
+
+    @Test
+    public void testExcludes() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("**/*.rb"), ImmutableList.of("*_test.rb", "legacy/*.rb"));
+
+        assertTrue(accept(filter, "stack.rb"));
+        assertTrue(accept(filter, "a/stack.rb"));
+        assertFalse(accept(filter, "a/stack_test.rb"));
+        assertFalse(accept(filter, "legacy/stack.rb"));
+        assertTrue(accept(filter, "legacy/a/stack.rb"));
+    }
+
+    @Test
+    public void testAccept_directory() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("**/*.rb"), ImmutableList.of("**/legacy/**", "build/**"));
+
+        assertFalse(acceptDirectory(filter, "legacy"));
+        assertFalse(acceptDirectory(filter, "a/b/legacy"));
+        assertFalse(acceptDirectory(filter, "build"));
+        assertTrue(acceptDirectory(filter, "a/build"));
+        assertTrue(acceptDirectory(filter, "a/legacyx"));
+        assertTrue(acceptDirectory(filter, "a"));
+
+        assertFalse(accept(filter, "a/legacy/stack.rb"));
+        assertFalse(accept(filter, "build/stack.rb"));
+        assertTrue(accept(filter, "a/build/stack.rb"));
+    }
+
+    @Test
+    public void testAccept_directory_without_directory_excludes() {
+        GlobFilenameFilter filter = filter(ImmutableList.of("*.rb"), ImmutableList.of("legacy/*.rb"));
+
+        assertTrue(acceptDirectory(filter, "legacy"));
+        assertFalse(accept(filter, "legacy/stack.rb"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.bazaarvoice.infrastructure;
+
+import com.bazaarvoice.infrastructure.cftemplate.CompileIssueLevel;
+import com.bazaarvoice.infrastructure.cftemplate.CompileResult;
+import com.bazaarvoice.infrastructure.cftemplate.JsonTemplateCompiler;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link TemplateCompilerMojo}.
+ */
+public class TemplateCompilerMojoTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void testCompile_streams_each_variant()
+            throws IOException {
+        File source = _folder.newFile("stack.json");
+        Files.write("{\"AWSTemplateFormatVersion\": \"2010-09-09\", \"Parameters\": {\"Environment\": {\"Type\": \"String\"}}, " +
+                "\"Resources\": {\"Handle\": {\"Type\": \"AWS::CloudFormation::WaitConditionHandle\"}}}", source, Charsets.UTF_8);
+
+        File devFile = new File(_folder.getRoot(), "dev/stack.json");
+        File prodFile = new File(_folder.getRoot(), "prod/stack.json");
+        TemplateCompilerMojo.Compilation compilation = new TemplateCompilerMojo.Compilation(source);
+        compilation.targets.add(new TemplateCompilerMojo.Target("dev", devFile, ImmutableMap.of("Environment", "dev")));
+        compilation.targets.add(new TemplateCompilerMojo.Target("prod", prodFile, ImmutableMap.of("Environment", "prod")));
+
+        JsonTemplateCompiler compiler = new JsonTemplateCompiler();
+        compiler.setStreaming(true);
+        List<CompileResult> results = compilation.compile(compiler, compilation.targets);
+
+        assertEquals(2, results.size());
+
+        for (CompileResult result : results) {
+            assertTrue(result.getIssues(CompileIssueLevel.ERROR).isEmpty());
+            // Streamed results are written straight to the output file, not kept in memory
+            assertNull(result.getTemplate());
+        }
+
+        JsonNode dev = MAPPER.readTree(devFile);
+        JsonNode prod = MAPPER.readTree(prodFile);
+        assertEquals("dev", dev.path("Parameters").path("Environment").path("Default").getTextValue());
+        assertEquals("prod", prod.path("Parameters").path("Environment").path("Default").getTextValue());
+    }
+}